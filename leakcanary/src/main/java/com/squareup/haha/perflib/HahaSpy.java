@@ -18,9 +18,17 @@ package com.squareup.haha.perflib;
 
 import androidx.annotation.NonNull;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+/**
+ * @deprecated the analysis reads heap dumps through its own index rather than through a parsed
+ * haha snapshot, nothing in LeakCanary uses it anymore. It will be removed.
+ */
+@Deprecated
 public final class HahaSpy {
 
   public static @NonNull
@@ -39,13 +47,45 @@ public final class HahaSpy {
   /**
    * Returns the GC Roots for all heaps in the Snapshot. Unfortunately,
    * {@link Snapshot#getGCRoots()} only returns the GC Roots of the first heap.
+   *
+   * This is an unmodifiable view backed by the heaps, nothing is copied. Each root is in a single
+   * heap, so the view has no duplicates. Contains is linear.
    */
-  public static Set<RootObj> allGcRoots(Snapshot snapshot) {
-    Set<RootObj> allRoots = new HashSet<>();
-    for (Heap heap : snapshot.getHeaps()) {
-      allRoots.addAll(heap.mRoots);
-    }
-    return allRoots;
+  public static Set<RootObj> allGcRoots(final Snapshot snapshot) {
+    return new AbstractSet<RootObj>() {
+      @Override public Iterator<RootObj> iterator() {
+        final Iterator<Heap> heaps = snapshot.getHeaps().iterator();
+        return new Iterator<RootObj>() {
+          Iterator<RootObj> roots = Collections.<RootObj>emptyList().iterator();
+
+          @Override public boolean hasNext() {
+            while (!roots.hasNext() && heaps.hasNext()) {
+              roots = heaps.next().mRoots.iterator();
+            }
+            return roots.hasNext();
+          }
+
+          @Override public RootObj next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return roots.next();
+          }
+
+          @Override public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override public int size() {
+        int size = 0;
+        for (Heap heap : snapshot.getHeaps()) {
+          size += heap.mRoots.size();
+        }
+        return size;
+      }
+    };
   }
 
   private HahaSpy() {
@@ -20,26 +20,64 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 
 public final class AnalysisResult implements Serializable {
 
   public static final long RETAINED_HEAP_SKIPPED = -1;
 
+  /**
+   * Steps that {@link HeapAnalyzer} skips when the analysis would not fit its memory budget, or
+   * cuts short at the limits of its {@link PathFinderConfig}.
+   */
+  public enum SkippedStep {
+    /** The retained heap size was not computed. */
+    DOMINATORS,
+    /** The retained heap size does not include bitmaps held by native gc roots. */
+    BITMAP_RETAINED_SIZE,
+    /** The leak trace elements have no {@link LeakTraceElement#fieldReferences}. */
+    FIELD_DESCRIPTIONS,
+    /**
+     * The search for the shortest path stopped at a limit. The leak trace is the best path found
+     * so far, which may be longer than the shortest path or go through excluded references.
+     */
+    SHORTEST_PATH,
+  }
+
   public static @NonNull
   AnalysisResult noLeak(String className, long analysisDurationMs) {
-    return new AnalysisResult(false, false, className, null, null, 0, analysisDurationMs);
+    return new AnalysisResult(false, false, className, null, null, 0, analysisDurationMs,
+        Collections.<SkippedStep>emptyList(), Collections.<LeakTrace>emptyList());
   }
 
   public static @NonNull AnalysisResult leakDetected(boolean excludedLeak,
       @NonNull String className,
       @NonNull LeakTrace leakTrace, long retainedHeapSize, long analysisDurationMs) {
+    return leakDetected(excludedLeak, className, leakTrace, retainedHeapSize, analysisDurationMs,
+        Collections.<SkippedStep>emptyList());
+  }
+
+  public static @NonNull AnalysisResult leakDetected(boolean excludedLeak,
+      @NonNull String className,
+      @NonNull LeakTrace leakTrace, long retainedHeapSize, long analysisDurationMs,
+      @NonNull List<SkippedStep> skippedSteps) {
+    return leakDetected(excludedLeak, className, leakTrace, retainedHeapSize, analysisDurationMs,
+        skippedSteps, Collections.<LeakTrace>emptyList());
+  }
+
+  public static @NonNull AnalysisResult leakDetected(boolean excludedLeak,
+      @NonNull String className,
+      @NonNull LeakTrace leakTrace, long retainedHeapSize, long analysisDurationMs,
+      @NonNull List<SkippedStep> skippedSteps, @NonNull List<LeakTrace> alternativeLeakTraces) {
     return new AnalysisResult(true, excludedLeak, className, leakTrace, null, retainedHeapSize,
-        analysisDurationMs);
+        analysisDurationMs, skippedSteps, alternativeLeakTraces);
   }
 
   public static @NonNull AnalysisResult failure(@NonNull Throwable failure,
       long analysisDurationMs) {
-    return new AnalysisResult(false, false, null, null, failure, 0, analysisDurationMs);
+    return new AnalysisResult(false, false, null, null, failure, 0, analysisDurationMs,
+        Collections.<SkippedStep>emptyList(), Collections.<LeakTrace>emptyList());
   }
 
   /** True if a leak was found in the heap dump. */
@@ -64,6 +102,13 @@ public final class AnalysisResult implements Serializable {
    */
   @Nullable public final LeakTrace leakTrace;
 
+  /**
+   * Next cheapest paths to GC roots for the leaking object, each through a different reference
+   * to it, when the analysis looked for more than one path with
+   * {@link PathFinderConfig#pathCount}. Empty otherwise.
+   */
+  @NonNull public final List<LeakTrace> alternativeLeakTraces;
+
   /** Null unless the analysis failed. */
   @Nullable public final Throwable failure;
 
@@ -77,6 +122,12 @@ public final class AnalysisResult implements Serializable {
   /** Total time spent analyzing the heap. */
   public final long analysisDurationMs;
 
+  /**
+   * Steps skipped to stay within the memory budget or the path search limits, empty if the
+   * analysis was complete.
+   */
+  @NonNull public final List<SkippedStep> skippedSteps;
+
   /**
    * <p>Creates a new {@link RuntimeException} with a fake stack trace that maps the leak trace.
    *
@@ -137,7 +188,8 @@ public final class AnalysisResult implements Serializable {
   }
 
   private AnalysisResult(boolean leakFound, boolean excludedLeak, String className,
-      LeakTrace leakTrace, Throwable failure, long retainedHeapSize, long analysisDurationMs) {
+      LeakTrace leakTrace, Throwable failure, long retainedHeapSize, long analysisDurationMs,
+      List<SkippedStep> skippedSteps, List<LeakTrace> alternativeLeakTraces) {
     this.leakFound = leakFound;
     this.excludedLeak = excludedLeak;
     this.className = className;
@@ -145,6 +197,8 @@ public final class AnalysisResult implements Serializable {
     this.failure = failure;
     this.retainedHeapSize = retainedHeapSize;
     this.analysisDurationMs = analysisDurationMs;
+    this.skippedSteps = skippedSteps;
+    this.alternativeLeakTraces = alternativeLeakTraces;
   }
 
   private String classSimpleName(String className) {
@@ -15,6 +15,11 @@ public interface AnalyzerProgressListener {
   enum Step {
     READING_HEAP_DUMP_FILE,
     PARSING_HEAP_DUMP,
+    /**
+     * @deprecated gc roots are deduplicated while indexing, this step isn't reported anymore. Kept
+     * so that the progress computed from the ordinal of the other steps doesn't change.
+     */
+    @Deprecated
     DEDUPLICATING_GC_ROOTS,
     FINDING_LEAKING_REF,
     FINDING_SHORTEST_PATH,
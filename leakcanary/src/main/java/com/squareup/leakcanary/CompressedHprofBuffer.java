@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Not thread safe.
+ *
+ * Reads a heap dump stored by {@link CompressedHprofFile} as if it was not compressed. Blocks
+ * are inflated when first read and kept in a LRU cache, so positions close to each other don't
+ * inflate the same block again.
+ */
+final class CompressedHprofBuffer implements HprofBuffer, Closeable {
+
+  /** 32 MB of cache with the default block size. */
+  static final int DEFAULT_CACHED_BLOCKS = 128;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int blockSize;
+  private final long length;
+  private final long[] blockOffsets;
+  private final int maxCachedBlocks;
+  private final Map<Integer, byte[]> cachedBlocks;
+  private final Inflater inflater;
+  private byte[] compressedBlock;
+
+  /** The block holding the current position, also in {@link #cachedBlocks}. */
+  private byte[] block;
+  private long blockStart;
+  private int blockLength;
+  private long position;
+
+  CompressedHprofBuffer(File compressedFile) throws IOException {
+    this(compressedFile, DEFAULT_CACHED_BLOCKS);
+  }
+
+  CompressedHprofBuffer(File compressedFile, int maxCachedBlocks) throws IOException {
+    if (maxCachedBlocks < 1) {
+      throw new IllegalArgumentException("maxCachedBlocks must be at least 1");
+    }
+    this.maxCachedBlocks = maxCachedBlocks;
+    file = new RandomAccessFile(compressedFile, "r");
+    try {
+      channel = file.getChannel();
+      ByteBuffer header = read(0, CompressedHprofFile.HEADER_SIZE);
+      if (header.getInt() != CompressedHprofFile.MAGIC
+          || header.getInt() != CompressedHprofFile.VERSION) {
+        throw new IOException("Not a compressed heap dump: " + compressedFile);
+      }
+      blockSize = header.getInt();
+      length = header.getLong();
+
+      ByteBuffer trailer =
+          read(channel.size() - CompressedHprofFile.TRAILER_SIZE, CompressedHprofFile.TRAILER_SIZE);
+      int blockCount = trailer.getInt();
+      long tableOffset = trailer.getLong();
+      // Checked before anything is allocated from them.
+      if (trailer.getInt() != CompressedHprofFile.MAGIC || blockSize <= 0
+          || blockSize > CompressedHprofFile.MAX_BLOCK_SIZE || length < 0
+          || blockCount != (length + blockSize - 1) / blockSize) {
+        throw new IOException("Corrupted compressed heap dump: " + compressedFile);
+      }
+      ByteBuffer table = read(tableOffset, (blockCount + 1) * 8);
+      blockOffsets = new long[blockCount + 1];
+      table.asLongBuffer().get(blockOffsets);
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+    cachedBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    inflater = new Inflater();
+    compressedBlock = new byte[blockSize];
+    blockStart = -1;
+  }
+
+  @Override public byte readByte() {
+    int offset = blockOffset(1);
+    if (offset == -1) {
+      loadBlock();
+      offset = (int) (position - blockStart);
+    }
+    position++;
+    return block[offset];
+  }
+
+  @Override public void read(byte[] b) {
+    readFully(b, 0, b.length);
+  }
+
+  @Override public void readSubSequence(byte[] b, int sourceStart, int length) {
+    position += sourceStart;
+    readFully(b, 0, length);
+  }
+
+  @Override public char readChar() {
+    return (char) readShort();
+  }
+
+  @Override public short readShort() {
+    int offset = blockOffset(2);
+    if (offset == -1) {
+      return (short) ((readByte() & 0xff) << 8 | (readByte() & 0xff));
+    }
+    position += 2;
+    return (short) ((block[offset] & 0xff) << 8 | (block[offset + 1] & 0xff));
+  }
+
+  @Override public int readInt() {
+    int offset = blockOffset(4);
+    if (offset == -1) {
+      return (readShort() & 0xffff) << 16 | (readShort() & 0xffff);
+    }
+    position += 4;
+    return (block[offset] & 0xff) << 24
+        | (block[offset + 1] & 0xff) << 16
+        | (block[offset + 2] & 0xff) << 8
+        | (block[offset + 3] & 0xff);
+  }
+
+  @Override public long readLong() {
+    return (readInt() & 0xffffffffL) << 32 | (readInt() & 0xffffffffL);
+  }
+
+  @Override public float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override public double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override public void setPosition(long position) {
+    this.position = position;
+  }
+
+  @Override public long position() {
+    return position;
+  }
+
+  @Override public boolean hasRemaining() {
+    return position < length;
+  }
+
+  @Override public long remaining() {
+    return length - position;
+  }
+
+  @Override public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+
+  /**
+   * Returns the offset of the current position in the current block if the next byteCount bytes
+   * are in that block, -1 otherwise.
+   */
+  private int blockOffset(int byteCount) {
+    long offset = position - blockStart;
+    if (blockStart == -1 || offset < 0 || offset + byteCount > blockLength) {
+      return -1;
+    }
+    return (int) offset;
+  }
+
+  private void readFully(byte[] b, int offset, int byteCount) {
+    while (byteCount > 0) {
+      if (blockOffset(1) == -1) {
+        loadBlock();
+      }
+      int blockOffset = (int) (position - blockStart);
+      int count = Math.min(byteCount, blockLength - blockOffset);
+      System.arraycopy(block, blockOffset, b, offset, count);
+      position += count;
+      offset += count;
+      byteCount -= count;
+    }
+  }
+
+  /** Makes the block holding the current position the current block. */
+  private void loadBlock() {
+    if (position < 0 || position >= length) {
+      throw new IllegalStateException(
+          "Position " + position + " out of bounds, length is " + length);
+    }
+    int blockIndex = (int) (position / blockSize);
+    blockStart = (long) blockIndex * blockSize;
+    blockLength = (int) Math.min(blockSize, length - blockStart);
+    block = cachedBlocks.get(blockIndex);
+    if (block != null) {
+      return;
+    }
+    if (cachedBlocks.size() == maxCachedBlocks) {
+      // Recycles the least recently used block.
+      Iterator<byte[]> iterator = cachedBlocks.values().iterator();
+      block = iterator.next();
+      iterator.remove();
+    } else {
+      block = new byte[blockSize];
+    }
+    try {
+      inflate(blockIndex, block, blockLength);
+    } catch (IOException | DataFormatException e) {
+      blockStart = -1;
+      throw new IllegalStateException("Could not read block " + blockIndex, e);
+    }
+    cachedBlocks.put(blockIndex, block);
+  }
+
+  private void inflate(int blockIndex, byte[] target, int targetLength)
+      throws IOException, DataFormatException {
+    int compressedLength = (int) (blockOffsets[blockIndex + 1] - blockOffsets[blockIndex]);
+    if (compressedLength > compressedBlock.length) {
+      compressedBlock = new byte[compressedLength];
+    }
+    ByteBuffer compressed = ByteBuffer.wrap(compressedBlock, 0, compressedLength);
+    readFully(blockOffsets[blockIndex], compressed);
+    inflater.reset();
+    inflater.setInput(compressedBlock, 0, compressedLength);
+    int inflated = 0;
+    while (inflated < targetLength && !inflater.finished()) {
+      int count = inflater.inflate(target, inflated, targetLength - inflated);
+      if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        break;
+      }
+      inflated += count;
+    }
+    if (inflated != targetLength) {
+      throw new DataFormatException(
+          "Inflated " + inflated + " bytes instead of " + targetLength);
+    }
+  }
+
+  private ByteBuffer read(long offset, int byteCount) throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.allocate(byteCount);
+    readFully(offset, byteBuffer);
+    byteBuffer.flip();
+    return byteBuffer;
+  }
+
+  private void readFully(long offset, ByteBuffer byteBuffer) throws IOException {
+    while (byteBuffer.hasRemaining()) {
+      int read = channel.read(byteBuffer, offset);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import androidx.annotation.NonNull;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Stores heap dumps compressed, in a format that can still be read at any position without
+ * inflating the whole heap dump: the heap dump is split in fixed size blocks which are deflated
+ * independently, followed by a table of the block offsets. {@link CompressedHprofBuffer} reads
+ * it back.
+ *
+ * A compressed heap dump keeps its .hprof name and is recognized by its first bytes, so that it
+ * is listed, rotated and analyzed like any other heap dump.
+ */
+public final class CompressedHprofFile {
+
+  /** "LCHZ", which can't be the start of a heap dump ("JAVA PROFILE"). */
+  static final int MAGIC = 0x4c43485a;
+  static final int VERSION = 1;
+  /** Magic, version, block size and uncompressed length. */
+  static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+  /** Block count, block table offset and magic. */
+  static final int TRAILER_SIZE = 4 + 8 + 4;
+
+  static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+  /** Larger block sizes are taken for a corrupted header rather than allocated. */
+  static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Writes a compressed copy of heapDumpFile to compressedFile. */
+  public static void compress(@NonNull File heapDumpFile, @NonNull File compressedFile)
+      throws IOException {
+    compress(heapDumpFile, compressedFile, DEFAULT_BLOCK_SIZE);
+  }
+
+  /** Replaces heapDumpFile with a compressed copy. Does nothing if it's already compressed. */
+  public static void compress(@NonNull File heapDumpFile) throws IOException {
+    if (isCompressed(heapDumpFile)) {
+      return;
+    }
+    File compressedFile = new File(heapDumpFile.getPath() + ".tmp");
+    try {
+      compress(heapDumpFile, compressedFile);
+    } catch (IOException | RuntimeException e) {
+      HprofIndexFile.delete(compressedFile);
+      throw e;
+    }
+    // The sidecars are checked against the length of the heap dump file, which changes.
+    HprofIndexFile.delete(HprofIndexFile.indexFile(heapDumpFile));
+    HprofIndexFile.delete(DominatorTreeFile.dominatorsFile(heapDumpFile));
+    if (!compressedFile.renameTo(heapDumpFile)) {
+      HprofIndexFile.delete(compressedFile);
+      throw new IOException("Could not rename " + compressedFile + " to " + heapDumpFile);
+    }
+  }
+
+  /** Writes the heap dump stored in compressedFile to heapDumpFile, uncompressed. */
+  public static void decompress(@NonNull File compressedFile, @NonNull File heapDumpFile)
+      throws IOException {
+    CompressedHprofBuffer buffer = new CompressedHprofBuffer(compressedFile, 1);
+    try {
+      OutputStream out = new FileOutputStream(heapDumpFile);
+      try {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        while (buffer.remaining() >= bytes.length) {
+          buffer.read(bytes);
+          out.write(bytes);
+        }
+        byte[] tail = new byte[(int) buffer.remaining()];
+        buffer.read(tail);
+        out.write(tail);
+      } finally {
+        out.close();
+      }
+    } finally {
+      buffer.close();
+    }
+  }
+
+  public static boolean isCompressed(@NonNull File heapDumpFile) throws IOException {
+    InputStream in = new FileInputStream(heapDumpFile);
+    try {
+      int magic = 0;
+      for (int i = 0; i < 4; i++) {
+        int b = in.read();
+        if (b == -1) {
+          return false;
+        }
+        magic = magic << 8 | b;
+      }
+      return magic == MAGIC;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Opens a heap dump for reading, whether it's compressed or not. */
+  static HprofBuffer openBuffer(File heapDumpFile) throws IOException {
+    return openBuffer(heapDumpFile, CompressedHprofBuffer.DEFAULT_CACHED_BLOCKS);
+  }
+
+  /**
+   * @param maxCachedBlocks number of inflated blocks kept in memory when the heap dump is
+   * compressed, less than the default for a buffer that reads sequentially.
+   */
+  static HprofBuffer openBuffer(File heapDumpFile, int maxCachedBlocks) throws IOException {
+    if (isCompressed(heapDumpFile)) {
+      return new CompressedHprofBuffer(heapDumpFile, maxCachedBlocks);
+    }
+    return new MemoryMappedFileBuffer(heapDumpFile);
+  }
+
+  /** Releases a buffer returned by {@link #openBuffer(File)}. */
+  static void closeBuffer(HprofBuffer buffer) {
+    if (buffer instanceof MemoryMappedFileBuffer) {
+      try {
+        ((MemoryMappedFileBuffer) buffer).dispose();
+      } catch (LinkageError e) {
+        // dispose() relies on sun.misc.Cleaner, which JVMs after Java 8 don't expose. The mapping
+        // is then released when the buffer is garbage collected.
+        CanaryLog.d(e, "Could not unmap heap dump");
+      }
+    } else if (buffer instanceof CompressedHprofBuffer) {
+      try {
+        ((CompressedHprofBuffer) buffer).close();
+      } catch (IOException e) {
+        CanaryLog.d(e, "Could not close compressed heap dump");
+      }
+    }
+  }
+
+  static void compress(File heapDumpFile, File compressedFile, int blockSize)
+      throws IOException {
+    if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException(
+          "blockSize must be between 1 and " + MAX_BLOCK_SIZE + ", not " + blockSize);
+    }
+    long length = heapDumpFile.length();
+    int blockCount = (int) ((length + blockSize - 1) / blockSize);
+    long[] blockOffsets = new long[blockCount + 1];
+
+    InputStream in = new FileInputStream(heapDumpFile);
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(compressedFile), BUFFER_SIZE));
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(blockSize);
+      out.writeLong(length);
+
+      byte[] block = new byte[blockSize];
+      // Deflated data can be slightly bigger than the input.
+      byte[] deflated = new byte[blockSize + blockSize / 8 + 64];
+      long offset = HEADER_SIZE;
+      for (int i = 0; i < blockCount; i++) {
+        int blockLength = (int) Math.min(blockSize, length - (long) i * blockSize);
+        readFully(in, block, blockLength);
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int deflatedLength = 0;
+        while (!deflater.finished()) {
+          if (deflatedLength == deflated.length) {
+            deflated = Arrays.copyOf(deflated, deflated.length * 2);
+          }
+          deflatedLength +=
+              deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+        }
+        out.write(deflated, 0, deflatedLength);
+        blockOffsets[i] = offset;
+        offset += deflatedLength;
+      }
+      blockOffsets[blockCount] = offset;
+
+      long tableOffset = offset;
+      for (long blockOffset : blockOffsets) {
+        out.writeLong(blockOffset);
+      }
+      out.writeInt(blockCount);
+      out.writeLong(tableOffset);
+      out.writeInt(MAGIC);
+    } finally {
+      deflater.end();
+      try {
+        out.close();
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] bytes, int byteCount) throws IOException {
+    int offset = 0;
+    while (offset < byteCount) {
+      int read = in.read(bytes, offset, byteCount - offset);
+      if (read == -1) {
+        throw new IOException("Heap dump changed while compressing it");
+      }
+      offset += read;
+    }
+  }
+
+  private CompressedHprofFile() {
+    throw new AssertionError();
+  }
+}
@@ -49,6 +49,11 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
   private static final String HPROF_SUFFIX = ".hprof";
   private static final String PENDING_HEAPDUMP_SUFFIX = "_pending" + HPROF_SUFFIX;
 
+  /** Files saved next to a heap dump and named after it, to speed up later analyses. */
+  private static final String[] SIDECAR_SUFFIXES = {
+      HprofIndexFile.INDEX_SUFFIX, DominatorTreeFile.DOMINATORS_SUFFIX, NodeSpillFile.SPILL_SUFFIX,
+  };
+
   /** 10 minutes */
   private static final int ANALYSIS_MAX_DURATION_MS = 10 * 60 * 1000;
 
@@ -58,6 +63,27 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
   private volatile boolean writeExternalStorageGranted;
   private volatile boolean permissionNotificationDisplayed;
 
+  /**
+   * The files saved next to that heap dump by its analysis, such as its index, whether they exist
+   * or not. They should be renamed or deleted along with the heap dump.
+   */
+  public static @NonNull List<File> sidecarFiles(@NonNull File heapDumpFile) {
+    List<File> files = new ArrayList<>(SIDECAR_SUFFIXES.length);
+    for (String suffix : SIDECAR_SUFFIXES) {
+      files.add(new File(heapDumpFile.getParentFile(), heapDumpFile.getName() + suffix));
+    }
+    return files;
+  }
+
+  /** Deletes the files saved next to that heap dump by its analysis, if any. */
+  public static void deleteSidecarFiles(@NonNull File heapDumpFile) {
+    for (File file : sidecarFiles(heapDumpFile)) {
+      if (file.exists() && !file.delete()) {
+        CanaryLog.d("Could not delete file %s", file.getPath());
+      }
+    }
+  }
+
   public DefaultLeakDirectoryProvider(@NonNull Context context) {
     this(context, DEFAULT_MAX_STORED_HEAP_DUMPS);
   }
@@ -138,15 +164,34 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
   @Override public void clearLeakDirectory() {
     List<File> allFilesExceptPending = listFiles(new FilenameFilter() {
       @Override public boolean accept(File dir, String filename) {
-        return !filename.endsWith(PENDING_HEAPDUMP_SUFFIX);
+        if (filename.endsWith(PENDING_HEAPDUMP_SUFFIX)) {
+          return false;
+        }
+        for (String suffix : SIDECAR_SUFFIXES) {
+          if (filename.endsWith(PENDING_HEAPDUMP_SUFFIX + suffix)) {
+            return false;
+          }
+        }
+        return true;
       }
     });
     for (File file : allFilesExceptPending) {
-      boolean deleted = file.delete();
-      if (!deleted) {
-        CanaryLog.d("Could not delete file %s", file.getPath());
+      delete(file);
+    }
+  }
+
+  /** Also deletes the content of directories, eg heap dumps decompressed to be shared. */
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
       }
     }
+    boolean deleted = file.delete();
+    if (!deleted) {
+      CanaryLog.d("Could not delete file %s", file.getPath());
+    }
   }
 
   @TargetApi(M) private boolean hasStoragePermission() {
@@ -211,6 +256,7 @@ public final class DefaultLeakDirectoryProvider implements LeakDirectoryProvider
         if (!deleted) {
           CanaryLog.d("Could not delete old hprof file %s", hprofFiles.get(i).getPath());
         }
+        deleteSidecarFiles(hprofFiles.get(i));
       }
     }
   }
@@ -28,8 +28,10 @@ import com.squareup.leakcanary.internal.DisplayLeakActivity;
 import com.squareup.leakcanary.internal.LeakCanaryInternals;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -53,6 +55,12 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
 
     //对分析文件，重命名
     heapDump = renameHeapdump(heapDump);
+    if (heapDump.stripPrimitiveArrays) {
+      stripHeapDump(heapDump);
+    }
+    if (heapDump.compressHeapDump) {
+      compressHeapDump(heapDump);
+    }
     //重新保存到本地
     boolean resultSaved = saveResult(heapDump, result);
 
@@ -115,6 +123,28 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     return resultFile != null;
   }
 
+  /**
+   * 将堆文件中基本类型数组的内容清零，压缩后保存和分享的文件更小
+   */
+  private void stripHeapDump(HeapDump heapDump) {
+    try {
+      HprofStripper.strip(heapDump.heapDumpFile);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not strip heap dump file %s", heapDump.heapDumpFile.getPath());
+    }
+  }
+
+  /**
+   * 压缩堆文件，分析器可以直接读取压缩后的文件
+   */
+  private void compressHeapDump(HeapDump heapDump) {
+    try {
+      CompressedHprofFile.compress(heapDump.heapDumpFile);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not compress heap dump file %s", heapDump.heapDumpFile.getPath());
+    }
+  }
+
   /**
    * 对分析文件，重命名
    */
@@ -127,6 +157,17 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     if (!renamed) {
       CanaryLog.d("Could not rename heap dump file %s to %s", heapDump.heapDumpFile.getPath(),
           newFile.getPath());
+    } else {
+      // Keep the index next to its heap dump so that it can be reused by later analyses.
+      List<File> sidecarFiles = DefaultLeakDirectoryProvider.sidecarFiles(heapDump.heapDumpFile);
+      List<File> newSidecarFiles = DefaultLeakDirectoryProvider.sidecarFiles(newFile);
+      for (int i = 0; i < sidecarFiles.size(); i++) {
+        File sidecarFile = sidecarFiles.get(i);
+        if (sidecarFile.exists() && !sidecarFile.renameTo(newSidecarFiles.get(i))
+            && !sidecarFile.delete()) {
+          CanaryLog.d("Could not delete file %s", sidecarFile.getPath());
+        }
+      }
     }
     return heapDump.buildUpon().heapDumpFile(newFile).build();
   }
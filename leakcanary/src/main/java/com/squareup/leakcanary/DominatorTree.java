@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_NODATA;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The dominator tree of a heap dump and the retained size of each object, computed from a
+ * {@link HprofIndex} rather than from a parsed snapshot.
+ *
+ * The references of all the objects are read once into a graph of int object indexes, with a
+ * virtual root that references each gc root once. The referent of a java.lang.ref.Reference is
+ * not a strong reference and isn't followed. Immediate dominators are then computed with the
+ * semi-NCA variant of Lengauer-Tarjan, and retained sizes by adding the shallow size of each object
+ * to its immediate dominator, bottom up. Everything is stored in int and long arrays indexed by
+ * object index, there are no objects per node.
+ *
+ * Objects that are not reachable from the gc roots have no dominator and retain nothing. The arrays
+ * are either computed or memory mapped from a {@link DominatorTreeFile}.
+ */
+final class DominatorTree {
+
+  /** Returned for objects that are only dominated by the gc roots, or not reachable at all. */
+  static final int GC_ROOTS = -1;
+
+  /** Immediate dominator of each object, by object index. */
+  private final IntBuffer immediateDominators;
+  /** The object that references each object on the first path found from the gc roots. */
+  private final IntBuffer pathReferrers;
+  private final LongBuffer retainedSizes;
+
+  DominatorTree(IntBuffer immediateDominators, IntBuffer pathReferrers,
+      LongBuffer retainedSizes) {
+    this.immediateDominators = immediateDominators;
+    this.pathReferrers = pathReferrers;
+    this.retainedSizes = retainedSizes;
+  }
+
+  static DominatorTree compute(HprofIndex index) {
+    int objectCount = index.objectCount();
+    // The virtual root is the last node of the graph.
+    int root = objectCount;
+    int nodeCount = objectCount + 1;
+
+    int[] offsets = new int[nodeCount + 1];
+    int[] successors = readReferences(index, offsets);
+
+    // Depth first search from the virtual root, which numbers the reachable nodes in preorder.
+    int[] numbers = new int[nodeCount];
+    Arrays.fill(numbers, -1);
+    int[] vertices = new int[nodeCount];
+    int[] parents = new int[nodeCount];
+    int[] stackNodes = new int[nodeCount];
+    int[] stackEdges = new int[nodeCount];
+    numbers[root] = 0;
+    vertices[0] = root;
+    parents[0] = -1;
+    int count = 1;
+    stackNodes[0] = root;
+    stackEdges[0] = offsets[root];
+    int depth = 1;
+    while (depth > 0) {
+      int node = stackNodes[depth - 1];
+      int edge = stackEdges[depth - 1];
+      if (edge == offsets[node + 1]) {
+        depth--;
+        continue;
+      }
+      stackEdges[depth - 1] = edge + 1;
+      int child = successors[edge];
+      if (numbers[child] == -1) {
+        numbers[child] = count;
+        vertices[count] = child;
+        parents[count] = numbers[node];
+        count++;
+        stackNodes[depth] = child;
+        stackEdges[depth] = offsets[child];
+        depth++;
+      }
+    }
+
+    // Predecessors of each reachable node, by preorder number. Unreachable referrers are dropped.
+    int[] predecessorOffsets = new int[count + 1];
+    for (int i = 0; i < count; i++) {
+      int node = vertices[i];
+      for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+        predecessorOffsets[numbers[successors[edge]]]++;
+      }
+    }
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      int predecessorCount = predecessorOffsets[i];
+      predecessorOffsets[i] = offset;
+      offset += predecessorCount;
+    }
+    int[] predecessors = new int[offset];
+    for (int i = 0; i < count; i++) {
+      int node = vertices[i];
+      for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+        predecessors[predecessorOffsets[numbers[successors[edge]]]++] = i;
+      }
+    }
+    System.arraycopy(predecessorOffsets, 0, predecessorOffsets, 1, count);
+    predecessorOffsets[0] = 0;
+    // Lets the forward references be collected before the next arrays are allocated.
+    successors = null;
+    offsets = null;
+
+    int[] dominators = computeDominators(count, parents, predecessorOffsets, predecessors,
+        stackNodes);
+
+    long[] retainedSizes = new long[objectCount];
+    for (int i = 1; i < count; i++) {
+      retainedSizes[vertices[i]] = shallowSize(index, vertices[i]);
+    }
+    // Dominators come first in preorder, so each retained size is complete when it's added.
+    for (int i = count - 1; i > 0; i--) {
+      if (dominators[i] != 0) {
+        retainedSizes[vertices[dominators[i]]] += retainedSizes[vertices[i]];
+      }
+    }
+
+    // The node numbers and the search stack aren't needed anymore.
+    int[] immediateDominators = numbers;
+    int[] pathReferrers = stackEdges;
+    Arrays.fill(immediateDominators, GC_ROOTS);
+    Arrays.fill(pathReferrers, GC_ROOTS);
+    for (int i = 1; i < count; i++) {
+      int object = vertices[i];
+      immediateDominators[object] = dominators[i] == 0 ? GC_ROOTS : vertices[dominators[i]];
+      pathReferrers[object] = parents[i] == 0 ? GC_ROOTS : vertices[parents[i]];
+    }
+    return new DominatorTree(IntBuffer.wrap(immediateDominators), IntBuffer.wrap(pathReferrers),
+        LongBuffer.wrap(retainedSizes));
+  }
+
+  /** Writes the arrays of a computed tree, see {@link DominatorTreeFile}. */
+  void write(HprofIndexFile.Output output) throws IOException {
+    // The int arrays have an extra slot for the virtual root.
+    int objectCount = retainedSizes.capacity();
+    output.writeInts(immediateDominators.array(), objectCount);
+    output.writeInts(pathReferrers.array(), objectCount);
+    output.writeLongs(retainedSizes.array(), objectCount);
+  }
+
+  /**
+   * Semi-NCA, on nodes numbered in depth first preorder from 0 for the root. Semidominators are
+   * computed in reverse preorder with a path compressed forest, then each immediate dominator is
+   * the nearest common ancestor of the parent and the semidominator in the dominator tree built so
+   * far.
+   *
+   * @param stack reused to compress paths, at least count long.
+   * @return the immediate dominator of each node, by preorder number.
+   */
+  private static int[] computeDominators(int count, int[] parents, int[] predecessorOffsets,
+      int[] predecessors, int[] stack) {
+    int[] semis = new int[count];
+    int[] labels = new int[count];
+    int[] ancestors = new int[count];
+    int[] dominators = new int[count];
+    for (int i = 0; i < count; i++) {
+      semis[i] = i;
+      labels[i] = i;
+      ancestors[i] = -1;
+      dominators[i] = parents[i];
+    }
+    for (int w = count - 1; w > 0; w--) {
+      for (int i = predecessorOffsets[w]; i < predecessorOffsets[w + 1]; i++) {
+        int v = predecessors[i];
+        int u;
+        if (ancestors[v] == -1) {
+          u = v;
+        } else {
+          // Compresses the path from v to the root of its tree, closest to the root first.
+          int top = 0;
+          int x = v;
+          while (ancestors[ancestors[x]] != -1) {
+            stack[top++] = x;
+            x = ancestors[x];
+          }
+          while (top > 0) {
+            int y = stack[--top];
+            int a = ancestors[y];
+            if (semis[labels[a]] < semis[labels[y]]) {
+              labels[y] = labels[a];
+            }
+            ancestors[y] = ancestors[a];
+          }
+          u = labels[v];
+        }
+        if (semis[u] < semis[w]) {
+          semis[w] = semis[u];
+        }
+      }
+      ancestors[w] = parents[w];
+    }
+    for (int w = 1; w < count; w++) {
+      int dominator = dominators[w];
+      while (dominator > semis[w]) {
+        dominator = dominators[dominator];
+      }
+      dominators[w] = dominator;
+    }
+    return dominators;
+  }
+
+  /**
+   * Reads the strong references of each object, then the gc roots as the references of the
+   * virtual root. The references of node n are {@code successors[offsets[n]]} to
+   * {@code successors[offsets[n + 1] - 1]}.
+   */
+  private static int[] readReferences(HprofIndex index, int[] offsets) {
+    int objectCount = index.objectCount();
+
+    // Null references are only found while reading, so the array can be a bit larger than needed.
+    long maxReferenceCount = index.rootCount();
+    for (int i = 0; i < objectCount; i++) {
+      switch (index.tagAt(i)) {
+        case CLASS_DUMP:
+          for (byte type : index.classAt(i).staticFieldTypes) {
+            if (type == OBJECT) {
+              maxReferenceCount++;
+            }
+          }
+          break;
+        case INSTANCE_DUMP:
+          HprofIndex.ClassInfo classInfo = index.classAt(i);
+          if (classInfo != null) {
+            maxReferenceCount += classInfo.layout.referenceOffsets.length;
+          }
+          break;
+        case OBJECT_ARRAY_DUMP:
+          maxReferenceCount += index.arrayLengthAt(i);
+          break;
+        default:
+          break;
+      }
+    }
+    if (maxReferenceCount > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Too many references to index: " + maxReferenceCount);
+    }
+
+    GraphReader reader = new GraphReader(index, new int[(int) maxReferenceCount]);
+    for (int i = 0; i < objectCount; i++) {
+      offsets[i] = reader.count;
+      reader.read(i);
+    }
+
+    // Roots are often duplicated, eg the same object is held by several native roots.
+    offsets[objectCount] = reader.count;
+    BitSet rootObjects = new BitSet(objectCount);
+    for (int i = 0; i < index.rootCount(); i++) {
+      int objectIndex = index.objectIndex(index.rootId(i));
+      if (objectIndex != -1 && !rootObjects.get(objectIndex)) {
+        rootObjects.set(objectIndex);
+        reader.successors[reader.count++] = objectIndex;
+      }
+    }
+    offsets[objectCount + 1] = reader.count;
+    return reader.successors;
+  }
+
+  /** Size of the fields or array values of an object, without the object header. */
+  static long shallowSize(HprofIndex index, int objectIndex) {
+    switch (index.tagAt(objectIndex)) {
+      case CLASS_DUMP:
+        long staticSize = 0;
+        for (byte type : index.classAt(objectIndex).staticFieldTypes) {
+          staticSize += index.sizeOf(type);
+        }
+        return staticSize;
+      case INSTANCE_DUMP:
+        HprofIndex.ClassInfo classInfo = index.classAt(objectIndex);
+        return classInfo == null ? 0 : classInfo.instanceSize;
+      case OBJECT_ARRAY_DUMP:
+        return (long) index.arrayLengthAt(objectIndex) * index.idSize;
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        return (long) index.arrayLengthAt(objectIndex)
+            * index.sizeOf(index.primitiveArrayTypeAt(objectIndex));
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Reads the strong references of objects: static fields, instance fields except the referent of
+   * java.lang.ref.Reference instances, and object array entries. References to objects that are
+   * not in the heap dump and references of an object to itself are skipped.
+   */
+  abstract static class StrongReferenceReader {
+    final HprofIndex index;
+    private final HprofIndex.ClassInfo referenceClass;
+    /**
+     * Offset of the referent field by class index, -1 for classes that don't extend Reference and
+     * MIN_VALUE until the class is read.
+     */
+    private final int[] referentOffsets;
+
+    StrongReferenceReader(HprofIndex index) {
+      this.index = index;
+      referenceClass = index.findClass("java.lang.ref.Reference");
+      referentOffsets = new int[index.classCount()];
+      Arrays.fill(referentOffsets, Integer.MIN_VALUE);
+    }
+
+    /** Calls {@link #reference(int, int)} for each strong reference of that object. */
+    final void read(int objectIndex) {
+      switch (index.tagAt(objectIndex)) {
+        case CLASS_DUMP:
+          HprofIndex.ClassInfo classInfo = index.classAt(objectIndex);
+          for (int i = 0; i < classInfo.staticFieldNames.length; i++) {
+            if (classInfo.staticFieldTypes[i] == OBJECT
+                && !classInfo.staticFieldNames[i].equals("$staticOverhead")) {
+              readReference(objectIndex, index.readId(classInfo.staticValuePositions[i]));
+            }
+          }
+          break;
+        case INSTANCE_DUMP:
+          HprofIndex.ClassInfo instanceClass = index.classAt(objectIndex);
+          if (instanceClass == null) {
+            break;
+          }
+          int referentOffset = referentOffset(instanceClass);
+          long position = index.fieldsPositionAt(objectIndex);
+          for (int referenceOffset : instanceClass.layout.referenceOffsets) {
+            if (referenceOffset != referentOffset) {
+              readReference(objectIndex, index.readId(position + referenceOffset));
+            }
+          }
+          break;
+        case OBJECT_ARRAY_DUMP:
+          int length = index.arrayLengthAt(objectIndex);
+          long valuesPosition = index.arrayValuesPositionAt(objectIndex);
+          for (int i = 0; i < length; i++) {
+            readReference(objectIndex, index.readId(valuesPosition + (long) i * index.idSize));
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    abstract void reference(int objectIndex, int childIndex);
+
+    private void readReference(int objectIndex, long child) {
+      int childIndex = index.objectIndex(child);
+      if (childIndex != -1 && childIndex != objectIndex) {
+        reference(objectIndex, childIndex);
+      }
+    }
+
+    private int referentOffset(HprofIndex.ClassInfo classInfo) {
+      int referentOffset = referentOffsets[classInfo.index];
+      if (referentOffset == Integer.MIN_VALUE) {
+        referentOffset = -1;
+        for (HprofIndex.ClassInfo c = classInfo; c != null; c = c.superClass) {
+          if (c == referenceClass) {
+            referentOffset = index.fieldOffset(classInfo, "referent");
+            break;
+          }
+        }
+        referentOffsets[classInfo.index] = referentOffset;
+      }
+      return referentOffset;
+    }
+  }
+
+  /** Appends the references of the objects read, which are read in object index order. */
+  private static final class GraphReader extends StrongReferenceReader {
+    final int[] successors;
+    int count;
+
+    GraphReader(HprofIndex index, int[] successors) {
+      super(index);
+      this.successors = successors;
+    }
+
+    @Override void reference(int objectIndex, int childIndex) {
+      successors[count++] = childIndex;
+    }
+  }
+
+  /**
+   * Returns the object index of the immediate dominator of that object, or {@link #GC_ROOTS} if
+   * the object is only dominated by the gc roots or isn't reachable.
+   */
+  int immediateDominator(int objectIndex) {
+    return immediateDominators.get(objectIndex);
+  }
+
+  /**
+   * Returns the object index of an object that references that object on a path from the gc
+   * roots, or {@link #GC_ROOTS} if the object is a gc root or isn't reachable. Following the
+   * referrers always leads to a gc root.
+   */
+  int pathReferrer(int objectIndex) {
+    return pathReferrers.get(objectIndex);
+  }
+
+  /** Shallow size of the object plus the retained sizes of all the objects it dominates. */
+  long retainedSize(int objectIndex) {
+    return retainedSizes.get(objectIndex);
+  }
+}
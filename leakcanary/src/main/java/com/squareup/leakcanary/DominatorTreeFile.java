@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persists the {@link DominatorTree} of a heap dump in a sidecar file next to it, like
+ * {@link HprofIndexFile}, so that the dominators of a heap dump are only computed once. The
+ * arrays of the tree are stored as is and memory mapped when read: a saved tree is available right
+ * away, takes no heap, and only the pages of the objects looked up are loaded.
+ *
+ * The sidecar is a header, the immediate dominators, the path referrers and the retained sizes,
+ * each array preceded by its length, then an end marker.
+ */
+final class DominatorTreeFile {
+
+  static final String DOMINATORS_SUFFIX = ".dom";
+
+  /** "LCDT" */
+  private static final int MAGIC = 0x4c434454;
+  /** Bump when the layout of the tree or the references it follows change. */
+  private static final int VERSION = 2;
+
+  /**
+   * Magic, version, {@link HprofIndexFile#VERSION}, heap dump length and last modified time. The
+   * arrays are indexed by object index, so a tree is stale once objects are indexed differently.
+   */
+  private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+
+  static File dominatorsFile(File heapDumpFile) {
+    return new File(heapDumpFile.getParentFile(), heapDumpFile.getName() + DOMINATORS_SUFFIX);
+  }
+
+  /**
+   * Returns the saved dominator tree of that heap dump, or null if there's none or it doesn't
+   * match the heap dump anymore, in which case the sidecar is deleted.
+   */
+  @Nullable static DominatorTree read(File heapDumpFile, int objectCount) {
+    File file = dominatorsFile(heapDumpFile);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      DominatorTree dominatorTree = map(file, heapDumpFile, objectCount);
+      if (dominatorTree != null) {
+        return dominatorTree;
+      }
+      CanaryLog.d("Dominator tree %s is stale, deleting it.", file.getPath());
+    } catch (IOException | RuntimeException e) {
+      CanaryLog.d(e, "Could not read dominator tree %s, deleting it.", file.getPath());
+    }
+    HprofIndexFile.delete(file);
+    return null;
+  }
+
+  /** Saves a computed dominator tree for the next analyses of that heap dump. */
+  static void write(DominatorTree dominatorTree, File heapDumpFile) {
+    File file = dominatorsFile(heapDumpFile);
+    // Written to a temporary file first so that a crash never leaves a truncated tree behind.
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      HprofIndexFile.Output output = new HprofIndexFile.Output(tmpFile);
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(HprofIndexFile.VERSION);
+        output.writeLong(heapDumpFile.length());
+        output.writeLong(heapDumpFile.lastModified());
+        dominatorTree.write(output);
+        output.writeInt(MAGIC);
+      } finally {
+        output.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        throw new IOException("Could not rename " + tmpFile + " to " + file);
+      }
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not save dominator tree to %s", file.getPath());
+      HprofIndexFile.delete(tmpFile);
+    }
+  }
+
+  /** Returns null if the file does not match the heap dump. */
+  private static DominatorTree map(File file, File heapDumpFile, int objectCount)
+      throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long intsSize = 4 + 4L * objectCount;
+      long longsSize = 4 + 8L * objectCount;
+      if (channel.size() != HEADER_SIZE + 2 * intsSize + longsSize + 4) {
+        return null;
+      }
+      ByteBuffer header = read(channel, 0, HEADER_SIZE + 4);
+      if (header.getInt() != MAGIC
+          || header.getInt() != VERSION
+          || header.getInt() != HprofIndexFile.VERSION
+          || header.getLong() != heapDumpFile.length()
+          || header.getLong() != heapDumpFile.lastModified()
+          || header.getInt() != objectCount) {
+        return null;
+      }
+      long position = HEADER_SIZE;
+      IntBuffer immediateDominators = mapInts(channel, position, objectCount);
+      position += intsSize;
+      IntBuffer pathReferrers = mapInts(channel, position, objectCount);
+      position += intsSize;
+      LongBuffer retainedSizes = channel.map(FileChannel.MapMode.READ_ONLY, position + 4,
+          8L * objectCount).asLongBuffer();
+      position += longsSize;
+      if (read(channel, position, 4).getInt() != MAGIC) {
+        throw new IOException("Missing end marker");
+      }
+      // The mappings stay valid once the file is closed.
+      return new DominatorTree(immediateDominators, pathReferrers, retainedSizes);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /** @param position of the length that precedes the values. */
+  private static IntBuffer mapInts(FileChannel channel, long position, int count)
+      throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position + 4, 4L * count).asIntBuffer();
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int byteCount)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(byteCount);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of " + byteCount + " bytes at " + position);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -31,13 +31,23 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+/**
+ * @deprecated the analysis reads heap dumps through its own index rather than through a parsed
+ * haha snapshot, nothing in LeakCanary uses these helpers anymore. They will be removed.
+ */
+@Deprecated
 public final class HahaHelper {
 
-  private static final Set<String> WRAPPER_TYPES = new HashSet<>(
+  static final Set<String> WRAPPER_TYPES = new HashSet<>(
       asList(Boolean.class.getName(), Character.class.getName(), Float.class.getName(),
           Double.class.getName(), Byte.class.getName(), Short.class.getName(),
           Integer.class.getName(), Long.class.getName()));
 
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Looked up once, see {@link #asRawByteArray()}. */
+  private static volatile Method asRawByteArray;
+
   static String threadName(Instance holder) {
     List<ClassInstance.FieldValue> values = classInstanceValues(holder);
     Object nameField = fieldValue(values, "name");
@@ -118,13 +128,9 @@ public final class HahaHelper {
       // In API 26, Strings are now internally represented as byte arrays.
       array = (ArrayInstance) value;
 
-      // HACK - remove when HAHA's perflib is updated to https://goo.gl/Oe7ZwO.
       try {
-        Method asRawByteArray =
-            ArrayInstance.class.getDeclaredMethod("asRawByteArray", int.class, int.class);
-        asRawByteArray.setAccessible(true);
-        byte[] rawByteArray = (byte[]) asRawByteArray.invoke(array, 0, count);
-        return new String(rawByteArray, Charset.forName("UTF-8"));
+        byte[] rawByteArray = (byte[]) asRawByteArray().invoke(array, 0, count);
+        return new String(rawByteArray, UTF_8);
       } catch (NoSuchMethodException e) {
         throw new RuntimeException(e);
       } catch (IllegalAccessException e) {
@@ -137,6 +143,17 @@ public final class HahaHelper {
     }
   }
 
+  // HACK - remove when HAHA's perflib is updated to https://goo.gl/Oe7ZwO.
+  private static Method asRawByteArray() throws NoSuchMethodException {
+    Method method = asRawByteArray;
+    if (method == null) {
+      method = ArrayInstance.class.getDeclaredMethod("asRawByteArray", int.class, int.class);
+      method.setAccessible(true);
+      asRawByteArray = method;
+    }
+    return method;
+  }
+
   public static boolean isPrimitiveWrapper(Object value) {
     if (!(value instanceof ClassInstance)) {
       return false;
@@ -19,22 +19,21 @@ import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.N_MR1;
 import static com.squareup.leakcanary.AnalysisResult.failure;
 import static com.squareup.leakcanary.AnalysisResult.leakDetected;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.BITMAP_RETAINED_SIZE;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.DOMINATORS;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.FIELD_DESCRIPTIONS;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.SHORTEST_PATH;
 import static com.squareup.leakcanary.AnalysisResult.noLeak;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.BUILDING_LEAK_TRACE;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_BITMAP_SIZE;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_DOMINATORS;
-import static com.squareup.leakcanary.AnalyzerProgressListener.Step.DEDUPLICATING_GC_ROOTS;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.FINDING_LEAKING_REF;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.FINDING_SHORTEST_PATH;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.PARSING_HEAP_DUMP;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.READING_HEAP_DUMP_FILE;
-import static com.squareup.leakcanary.HahaHelper.asString;
-import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
-import static com.squareup.leakcanary.HahaHelper.extendsThread;
-import static com.squareup.leakcanary.HahaHelper.fieldValue;
-import static com.squareup.leakcanary.HahaHelper.hasField;
-import static com.squareup.leakcanary.HahaHelper.threadName;
-import static com.squareup.leakcanary.HahaHelper.valueAsString;
+import static com.squareup.leakcanary.HprofIndexer.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT_ARRAY_DUMP;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
@@ -42,6 +41,7 @@ import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
 import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
 import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
 import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
 import static com.squareup.leakcanary.Reachability.REACHABLE;
 import static com.squareup.leakcanary.Reachability.UNKNOWN;
 import static com.squareup.leakcanary.Reachability.UNREACHABLE;
@@ -49,31 +49,20 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import com.squareup.haha.perflib.ArrayInstance;
-import com.squareup.haha.perflib.ClassInstance;
-import com.squareup.haha.perflib.ClassObj;
-import com.squareup.haha.perflib.Field;
-import com.squareup.haha.perflib.HprofParser;
-import com.squareup.haha.perflib.Instance;
-import com.squareup.haha.perflib.RootObj;
-import com.squareup.haha.perflib.RootType;
-import com.squareup.haha.perflib.Snapshot;
-import com.squareup.haha.perflib.Type;
 import com.squareup.haha.perflib.io.HprofBuffer;
-import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import gnu.trove.THashMap;
-import gnu.trove.TObjectProcedure;
-
 /**
  * Analyzes heap dumps generated by a {@link RefWatcher} to verify if suspected leaks are real.
  */
@@ -81,9 +70,30 @@ public final class HeapAnalyzer {
 
   private static final String ANONYMOUS_CLASS_NAME_PATTERN = "^.+\\$\\d+$";
 
+  /** Reported as the class name when the weak reference was cleared before the heap dump. */
+  private static final String CLEARED_REFERENCE_CLASS_NAME = "(cleared reference)";
+
+  /** Only the max heap size of the VM limits the memory used by the analysis. */
+  public static final long NO_MEMORY_BUDGET = Long.MAX_VALUE;
+
+  // Rough heap usage per object in the heap dump, used to plan the analysis within its budget.
+  private static final int SHORTEST_PATH_BYTES_PER_OBJECT = 32;
+  private static final int DOMINATORS_BYTES_PER_OBJECT = 80;
+  private static final int REVERSE_REFERENCES_BYTES_PER_OBJECT = 16;
+  private static final int PATH_COSTS_BYTES_PER_OBJECT = 8;
+  private static final int RETAINED_SET_BYTES_PER_OBJECT = 4;
+  /** Fields of the objects of a leak trace with their values, wide arrays included. */
+  private static final int FIELD_DESCRIPTIONS_BYTES_PER_TRACE = 256 * 1024;
+
+  /** Up to that many leaks, the retained sizes are computed without a dominator tree. */
+  private static final int RETAINED_SET_MAX_LEAKS = 1;
+
   private final ExcludedRefs excludedRefs;
   private final AnalyzerProgressListener listener;
   private final List<Reachability.Inspector> reachabilityInspectors;
+  private final long memoryBudgetBytes;
+  private final PathFinderConfig pathFinderConfig;
+  private final int indexingThreadCount;
 
   /**
    * @deprecated Use {@link #HeapAnalyzer(ExcludedRefs, AnalyzerProgressListener, List)}.
@@ -97,8 +107,55 @@ public final class HeapAnalyzer {
   public HeapAnalyzer(@NonNull ExcludedRefs excludedRefs,
       @NonNull AnalyzerProgressListener listener,
       @NonNull List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses) {
+    this(excludedRefs, listener, reachabilityInspectorClasses, NO_MEMORY_BUDGET);
+  }
+
+  /**
+   * @param memoryBudgetBytes heap size the analysis should stay within. When a heap dump is
+   * estimated to need more, the analysis skips the dominators and with them the bitmap retained
+   * size, then the retained size, then the field descriptions, until it fits. Skipped steps are
+   * reported in {@link AnalysisResult#skippedSteps}.
+   */
+  public HeapAnalyzer(@NonNull ExcludedRefs excludedRefs,
+      @NonNull AnalyzerProgressListener listener,
+      @NonNull List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses,
+      long memoryBudgetBytes) {
+    this(excludedRefs, listener, reachabilityInspectorClasses, memoryBudgetBytes,
+        PathFinderConfig.DEFAULT);
+  }
+
+  /**
+   * @param pathFinderConfig how to search for the shortest path from the gc roots to each
+   * leaking instance. When a search stops at one of its limits, leaks are reported with the best
+   * path found so far and {@link AnalysisResult.SkippedStep#SHORTEST_PATH}, or as a failure if no
+   * path was found.
+   */
+  public HeapAnalyzer(@NonNull ExcludedRefs excludedRefs,
+      @NonNull AnalyzerProgressListener listener,
+      @NonNull List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses,
+      long memoryBudgetBytes, @NonNull PathFinderConfig pathFinderConfig) {
+    this(excludedRefs, listener, reachabilityInspectorClasses, memoryBudgetBytes,
+        pathFinderConfig, 1);
+  }
+
+  /**
+   * @param indexingThreadCount number of threads parsing a heap dump that doesn't have a saved
+   * index yet. Each thread opens the heap dump again.
+   */
+  public HeapAnalyzer(@NonNull ExcludedRefs excludedRefs,
+      @NonNull AnalyzerProgressListener listener,
+      @NonNull List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses,
+      long memoryBudgetBytes, @NonNull PathFinderConfig pathFinderConfig,
+      int indexingThreadCount) {
+    if (indexingThreadCount < 1) {
+      throw new IllegalArgumentException(
+          "indexingThreadCount must be at least 1, not " + indexingThreadCount);
+    }
     this.excludedRefs = excludedRefs;
     this.listener = listener;
+    this.memoryBudgetBytes = memoryBudgetBytes;
+    this.pathFinderConfig = checkNotNull(pathFinderConfig, "pathFinderConfig");
+    this.indexingThreadCount = indexingThreadCount;
 
     this.reachabilityInspectors = new ArrayList<>();
     for (Class<? extends Reachability.Inspector> reachabilityInspectorClass
@@ -117,29 +174,29 @@ public final class HeapAnalyzer {
     if (!heapDumpFile.exists()) {
       throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
     }
+    HprofBuffer buffer = null;
     try {
-      HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
-      Snapshot snapshot = parser.parse();
-      deduplicateGcRoots(snapshot);
+      buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+      HprofIndex index = HprofIndexFile.open(heapDumpFile, buffer, indexingThreadCount);
 
-      ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
+      KeyedWeakReferenceTable weakRefs = KeyedWeakReferenceTable.read(index);
       List<TrackedReference> references = new ArrayList<>();
-      for (Instance weakRef : refClass.getInstancesList()) {
-        List<ClassInstance.FieldValue> values = classInstanceValues(weakRef);
-        String key = asString(fieldValue(values, "key"));
-        String name =
-            hasField(values, "name") ? asString(fieldValue(values, "name")) : "(No name field)";
-        Instance instance = fieldValue(values, "referent");
-        if (instance != null) {
-          String className = getClassName(instance);
-          List<LeakReference> fields = describeFields(instance);
-          references.add(new TrackedReference(key, name, className, fields));
+      for (int i = 0; i < weakRefs.size(); i++) {
+        long instance = weakRefs.referentId(i);
+        if (index.contains(instance)) {
+          String className = index.className(instance);
+          List<LeakReference> fields = describeFields(index, instance);
+          references.add(new TrackedReference(weakRefs.key(i), weakRefs.name(i), className,
+              fields, weakRefs.watchStartNanoTime(i)));
         }
       }
       return references;
     } catch (Throwable e) {
       throw new RuntimeException(e);
+    } finally {
+      if (buffer != null) {
+        CompressedHprofFile.closeBuffer(buffer);
+      }
     }
   }
 
@@ -163,126 +220,327 @@ public final class HeapAnalyzer {
   public @NonNull AnalysisResult checkForLeak(@NonNull File heapDumpFile,
       @NonNull String referenceKey,
       boolean computeRetainedSize) {
+    return checkForLeaks(heapDumpFile, Collections.singletonList(referenceKey),
+        computeRetainedSize).get(referenceKey);
+  }
+
+  /**
+   * Same as {@link #checkForLeak(File, String, boolean)} for several keys at once. The heap dump
+   * is parsed once and the dominators are computed once, whatever the number of keys.
+   *
+   * @return an {@link AnalysisResult} for each key, in the iteration order of referenceKeys.
+   */
+  public @NonNull Map<String, AnalysisResult> checkForLeaks(@NonNull File heapDumpFile,
+      @NonNull Collection<String> referenceKeys,
+      boolean computeRetainedSize) {
+    checkNotNull(referenceKeys, "referenceKeys");
+    return analyze(heapDumpFile, referenceKeys, computeRetainedSize);
+  }
+
+  /**
+   * Same as {@link #checkForLeaks(File, Collection, boolean)} for all the
+   * {@link KeyedWeakReference} instances which referent is still in the heap dump.
+   */
+  public @NonNull Map<String, AnalysisResult> checkForAllLeaks(@NonNull File heapDumpFile,
+      boolean computeRetainedSize) {
+    return analyze(heapDumpFile, null, computeRetainedSize);
+  }
+
+  /**
+   * @param referenceKeys null to analyze all the retained references.
+   */
+  private Map<String, AnalysisResult> analyze(File heapDumpFile,
+      Collection<String> referenceKeys, boolean computeRetainedSize) {
     long analysisStartNanoTime = System.nanoTime();
+    Map<String, AnalysisResult> results = new LinkedHashMap<>();
 
     if (!heapDumpFile.exists()) {
       Exception exception = new IllegalArgumentException("File does not exist: " + heapDumpFile);
-      return failure(exception, since(analysisStartNanoTime));
+      if (referenceKeys == null) {
+        throw (IllegalArgumentException) exception;
+      }
+      for (String referenceKey : referenceKeys) {
+        results.put(referenceKey, failure(exception, since(analysisStartNanoTime)));
+      }
+      return results;
     }
 
+    HprofBuffer buffer = null;
     try {
       listener.onProgressUpdate(READING_HEAP_DUMP_FILE);
-      HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
+      buffer = CompressedHprofFile.openBuffer(heapDumpFile);
       listener.onProgressUpdate(PARSING_HEAP_DUMP);
-      Snapshot snapshot = parser.parse();
-      listener.onProgressUpdate(DEDUPLICATING_GC_ROOTS);
-      deduplicateGcRoots(snapshot);
+      HprofIndex index = HprofIndexFile.open(heapDumpFile, buffer, indexingThreadCount);
       listener.onProgressUpdate(FINDING_LEAKING_REF);
-      Instance leakingRef = findLeakingReference(referenceKey, snapshot);
+      KeyedWeakReferenceTable weakRefs = KeyedWeakReferenceTable.read(index);
+      if (referenceKeys == null) {
+        referenceKeys = new ArrayList<>();
+        for (int i = 0; i < weakRefs.size(); i++) {
+          if (index.contains(weakRefs.referentId(i))) {
+            referenceKeys.add(weakRefs.key(i));
+          }
+        }
+      }
+
+      List<String> leakingKeys = new ArrayList<>();
+      List<Long> leakingRefs = new ArrayList<>();
+      for (String referenceKey : referenceKeys) {
+        int weakRefIndex = weakRefs.indexOf(referenceKey);
+        AnalysisResult result = null;
+        if (weakRefIndex == -1) {
+          // Only decodes all the keys when a key is missing.
+          result = failure(new IllegalStateException(
+              "Could not find weak reference with key " + referenceKey + " in "
+                  + weakRefs.keys()), since(analysisStartNanoTime));
+        } else if (!index.contains(weakRefs.referentId(weakRefIndex))) {
+          // False alarm, weak reference was cleared in between key check and heap dump.
+          result = noLeak(CLEARED_REFERENCE_CLASS_NAME, since(analysisStartNanoTime));
+        } else {
+          leakingKeys.add(referenceKey);
+          leakingRefs.add(weakRefs.referentId(weakRefIndex));
+        }
+        // Null until the paths are found, which keeps the order of referenceKeys.
+        results.put(referenceKey, result);
+      }
+
+      // A saved tree is mapped rather than loaded, so it fits whatever the memory budget.
+      DominatorTree savedDominatorTree =
+          computeRetainedSize ? DominatorTreeFile.read(heapDumpFile, index.objectCount()) : null;
+      EnumSet<AnalysisResult.SkippedStep> skippedSteps = planSkippedSteps(index,
+          leakingKeys.size(), computeRetainedSize, savedDominatorTree != null);
+
+      List<Leak> leaks = new ArrayList<>();
+      if (!leakingKeys.isEmpty()) {
+        listener.onProgressUpdate(FINDING_SHORTEST_PATH);
+        long[] leakingRefIds = new long[leakingRefs.size()];
+        for (int i = 0; i < leakingRefIds.length; i++) {
+          leakingRefIds[i] = leakingRefs.get(i);
+        }
+        // One search for all the keys.
+        ShortestPathFinder pathFinder =
+            new ShortestPathFinder(excludedRefs, pathFinderConfig, heapDumpFile);
+        ShortestPathFinder.Result[] paths = pathFinder.findPaths(index, leakingRefIds);
+        for (int i = 0; i < paths.length; i++) {
+          String referenceKey = leakingKeys.get(i);
+          AnalysisResult result;
+          try {
+            ShortestPathFinder.Result path = paths[i];
+            Leak leak = buildLeak(referenceKey, index, leakingRefIds[i], path, skippedSteps);
+            if (leak.leakTrace == null && path.limitReached != null) {
+              // Not a false alarm, the search stopped before it could find a path.
+              result = failure(new IllegalStateException(
+                  "Path search stopped at the " + path.limitReached + " limit before finding "
+                      + leak.className + ": " + path.searchStats), since(analysisStartNanoTime));
+            } else if (leak.leakTrace == null) {
+              // False alarm, no strong reference path to GC Roots.
+              result = noLeak(leak.className, since(analysisStartNanoTime));
+            } else {
+              leaks.add(leak);
+              result = leak.toResult(AnalysisResult.RETAINED_HEAP_SKIPPED,
+                  since(analysisStartNanoTime));
+            }
+          } catch (Throwable e) {
+            result = failure(e, since(analysisStartNanoTime));
+          }
+          results.put(referenceKey, result);
+        }
+      }
 
-      // False alarm, weak reference was cleared in between key check and heap dump.
-      if (leakingRef == null) {
-        String className = leakingRef.getClassObj().getClassName();
-        return noLeak(className, since(analysisStartNanoTime));
+      if (computeRetainedSize && !skippedSteps.contains(DOMINATORS) && !leaks.isEmpty()) {
+        computeRetainedSizes(heapDumpFile, index, savedDominatorTree, leaks, skippedSteps);
+        // Replacing a value keeps the key order of the map.
+        for (Leak leak : leaks) {
+          results.put(leak.referenceKey,
+              leak.toResult(leak.retainedSize, since(analysisStartNanoTime)));
+        }
       }
-      return findLeakTrace(analysisStartNanoTime, snapshot, leakingRef, computeRetainedSize);
+      return results;
     } catch (Throwable e) {
-      return failure(e, since(analysisStartNanoTime));
+      if (referenceKeys == null) {
+        throw new RuntimeException(e);
+      }
+      for (String referenceKey : referenceKeys) {
+        AnalysisResult result = results.get(referenceKey);
+        if (result == null || result.leakFound) {
+          results.put(referenceKey, failure(e, since(analysisStartNanoTime)));
+        }
+      }
+      return results;
+    } finally {
+      if (buffer != null) {
+        CompressedHprofFile.closeBuffer(buffer);
+      }
     }
   }
 
   /**
-   * Pruning duplicates reduces memory pressure from hprof bloat added in Marshmallow.
+   * Picks the steps to skip so that the analysis fits in the memory budget. Each step is estimated
+   * from the number of objects in the heap dump or of leak traces, and steps are dropped one after
+   * the other until the rest fits: the dominators, which the bitmap retained size also needs, then
+   * the retained size of each leak on its own, then field descriptions. The path search is never
+   * skipped. Saved dominators take no heap, the retained sizes are then kept.
    */
-  void deduplicateGcRoots(Snapshot snapshot) {
-    // THashMap has a smaller memory footprint than HashMap.
-    final THashMap<String, RootObj> uniqueRootMap = new THashMap<>();
-
-    final Collection<RootObj> gcRoots = snapshot.getGCRoots();
-    for (RootObj root : gcRoots) {
-      String key = generateRootKey(root);
-      if (!uniqueRootMap.containsKey(key)) {
-        uniqueRootMap.put(key, root);
-      }
+  private EnumSet<AnalysisResult.SkippedStep> planSkippedSteps(HprofIndex index, int leakCount,
+      boolean computeRetainedSize, boolean dominatorsSaved) {
+    Runtime runtime = Runtime.getRuntime();
+    long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+    long availableMemory = Math.min(memoryBudgetBytes, runtime.maxMemory()) - usedMemory;
+    long objectCount = index.objectCount();
+
+    int shortestPathBytesPerObject = SHORTEST_PATH_BYTES_PER_OBJECT;
+    if (pathFinderConfig.direction == PathFinderConfig.Direction.FROM_LEAKING_INSTANCE) {
+      shortestPathBytesPerObject += REVERSE_REFERENCES_BYTES_PER_OBJECT;
+    } else if (pathFinderConfig.isWeighted()) {
+      shortestPathBytesPerObject += PATH_COSTS_BYTES_PER_OBJECT;
+    }
+    long pathSearchMemory = objectCount * shortestPathBytesPerObject;
+    long descriptionsMemory =
+        (long) leakCount * pathFinderConfig.pathCount * FIELD_DESCRIPTIONS_BYTES_PER_TRACE;
+    boolean dominatorsNeeded = computeRetainedSize && !dominatorsSaved
+        && (bitmapSizes(index) || leakCount > RETAINED_SET_MAX_LEAKS);
+    long retainedSizeMemory = 0;
+    if (dominatorsNeeded) {
+      retainedSizeMemory = objectCount * DOMINATORS_BYTES_PER_OBJECT;
+    } else if (computeRetainedSize && !dominatorsSaved) {
+      retainedSizeMemory = objectCount * RETAINED_SET_BYTES_PER_OBJECT;
     }
 
-    // Repopulate snapshot with unique GC roots.
-    gcRoots.clear();
-    uniqueRootMap.forEach(new TObjectProcedure<String>() {
-      @Override public boolean execute(String key) {
-        return gcRoots.add(uniqueRootMap.get(key));
-      }
-    });
+    EnumSet<AnalysisResult.SkippedStep> skippedSteps =
+        EnumSet.noneOf(AnalysisResult.SkippedStep.class);
+    if (dominatorsNeeded
+        && pathSearchMemory + retainedSizeMemory + descriptionsMemory > availableMemory) {
+      skippedSteps.add(BITMAP_RETAINED_SIZE);
+      retainedSizeMemory = objectCount * RETAINED_SET_BYTES_PER_OBJECT;
+    }
+    if (retainedSizeMemory > 0
+        && pathSearchMemory + retainedSizeMemory + descriptionsMemory > availableMemory) {
+      skippedSteps.add(DOMINATORS);
+      retainedSizeMemory = 0;
+    }
+    if (pathSearchMemory + retainedSizeMemory + descriptionsMemory > availableMemory) {
+      skippedSteps.add(FIELD_DESCRIPTIONS);
+    }
+    if (!skippedSteps.isEmpty()) {
+      CanaryLog.d("Skipping %s, %d objects to analyze with %d bytes available", skippedSteps,
+          objectCount, availableMemory);
+    }
+    return skippedSteps;
   }
 
-  private String generateRootKey(RootObj root) {
-    return String.format("%s@0x%08x", root.getRootType().getName(), root.getId());
+  /** Whether the retained sizes include the bitmaps held by native gc roots. */
+  private static boolean bitmapSizes(HprofIndex index) {
+    // TODO: check O sources and see what happened to android.graphics.Bitmap.mBuffer
+    return SDK_INT <= N_MR1 && index.bitmapClass != null;
   }
 
-  private Instance findLeakingReference(String key, Snapshot snapshot) {
-    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
-    if (refClass == null) {
-      throw new IllegalStateException(
-          "Could not find the " + KeyedWeakReference.class.getName() + " class in the heap dump.");
-    }
-    List<String> keysFound = new ArrayList<>();
-    for (Instance instance : refClass.getInstancesList()) {
-      List<ClassInstance.FieldValue> values = classInstanceValues(instance);
-      Object keyFieldValue = fieldValue(values, "key");
-      if (keyFieldValue == null) {
-        keysFound.add(null);
-        continue;
-      }
-      String keyCandidate = asString(keyFieldValue);
-      if (keyCandidate.equals(key)) {
-        return fieldValue(values, "referent");
+  /**
+   * @param skippedSteps the planned steps, which the steps skipped because of an out of memory
+   * error are added to, so that the next leaks skip them too.
+   */
+  private Leak buildLeak(String referenceKey, HprofIndex index, long leakingRef,
+      ShortestPathFinder.Result result, EnumSet<AnalysisResult.SkippedStep> skippedSteps) {
+    String className = index.className(leakingRef);
+    EnumSet<AnalysisResult.SkippedStep> leakSkippedSteps = EnumSet.copyOf(skippedSteps);
+
+    LeakTrace leakTrace = null;
+    if (result.leakingNode != null) {
+      listener.onProgressUpdate(BUILDING_LEAK_TRACE);
+      boolean describeFields = !skippedSteps.contains(FIELD_DESCRIPTIONS);
+      try {
+        leakTrace = buildLeakTrace(index, result.leakingNode, describeFields);
+      } catch (OutOfMemoryError e) {
+        if (!describeFields) {
+          throw e;
+        }
+        CanaryLog.d(e, "Out of memory while describing fields, skipping them");
+        skippedSteps.add(FIELD_DESCRIPTIONS);
+        leakSkippedSteps.add(FIELD_DESCRIPTIONS);
+        leakTrace = buildLeakTrace(index, result.leakingNode, false);
       }
-      keysFound.add(keyCandidate);
     }
-    throw new IllegalStateException(
-        "Could not find weak reference with key " + key + " in " + keysFound);
+    List<LeakTrace> alternativeLeakTraces = new ArrayList<>();
+    for (LeakNode alternativeNode : result.alternativeLeakingNodes) {
+      alternativeLeakTraces.add(buildLeakTrace(index, alternativeNode,
+          !leakSkippedSteps.contains(FIELD_DESCRIPTIONS)));
+    }
+    return new Leak(referenceKey, leakingRef, className, leakTrace, result.excludingKnownLeaks,
+        result.limitReached != null, alternativeLeakTraces, leakSkippedSteps);
   }
 
-  private AnalysisResult findLeakTrace(long analysisStartNanoTime, Snapshot snapshot,
-      Instance leakingRef, boolean computeRetainedSize) {
-
-    listener.onProgressUpdate(FINDING_SHORTEST_PATH);
-    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs);
-    ShortestPathFinder.Result result = pathFinder.findPath(snapshot, leakingRef);
-
-    String className = leakingRef.getClassObj().getClassName();
-
-    // False alarm, no strong reference path to GC Roots.
-    if (result.leakingNode == null) {
-      return noLeak(className, since(analysisStartNanoTime));
+  /**
+   * Computes the dominators once for all the leaks, from the index rather than from a parsed
+   * snapshot. A single leak only needs the objects it retains, found with two traversals of the
+   * heap, unless the bitmaps it retains through native gc roots are needed. Each leak also gets
+   * its own traversals when the dominators don't fit in memory.
+   *
+   * Computed dominators are saved next to the heap dump and reused by later analyses.
+   *
+   * @param dominatorTree the saved dominators of that heap dump, null if there are none.
+   */
+  private void computeRetainedSizes(File heapDumpFile, HprofIndex index,
+      @Nullable DominatorTree dominatorTree, List<Leak> leaks,
+      EnumSet<AnalysisResult.SkippedStep> skippedSteps) {
+    listener.onProgressUpdate(COMPUTING_DOMINATORS);
+    // The bitmap retained size is only skipped beforehand when the dominators don't fit.
+    boolean dominatorsFit = !skippedSteps.contains(BITMAP_RETAINED_SIZE);
+    boolean bitmapSizes = dominatorsFit && bitmapSizes(index);
+    if (dominatorTree == null && dominatorsFit
+        && (bitmapSizes || leaks.size() > RETAINED_SET_MAX_LEAKS)) {
+      try {
+        dominatorTree = DominatorTree.compute(index);
+      } catch (OutOfMemoryError e) {
+        // The graph can be collected once we return, the leak traces are kept.
+        CanaryLog.d(e, "Out of memory while computing dominators, computing each leak on its own");
+        skippedSteps.add(BITMAP_RETAINED_SIZE);
+        for (Leak leak : leaks) {
+          leak.skippedSteps.add(BITMAP_RETAINED_SIZE);
+        }
+      }
+      if (dominatorTree != null) {
+        DominatorTreeFile.write(dominatorTree, heapDumpFile);
+      }
+    }
+    if (dominatorTree != null) {
+      computeRetainedSizes(dominatorTree, index, leaks, skippedSteps, bitmapSizes);
+      return;
     }
 
-    listener.onProgressUpdate(BUILDING_LEAK_TRACE);
-    LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
-
-    long retainedSize;
-    if (computeRetainedSize) {
-
-      listener.onProgressUpdate(COMPUTING_DOMINATORS);
-      // Side effect: computes retained size.
-      snapshot.computeDominators();
+    for (int i = 0; i < leaks.size(); i++) {
+      Leak leak = leaks.get(i);
+      try {
+        leak.retainedSize =
+            RetainedSet.compute(index, index.objectIndex(leak.instance), false).retainedSize;
+      } catch (OutOfMemoryError e) {
+        CanaryLog.d(e, "Out of memory while computing retained sizes, skipping them");
+        // The leaks before keep their retained size.
+        for (int j = i; j < leaks.size(); j++) {
+          leaks.get(j).skippedSteps.add(DOMINATORS);
+        }
+        return;
+      }
+    }
+  }
 
-      Instance leakingInstance = result.leakingNode.instance;
+  private void computeRetainedSizes(DominatorTree dominatorTree, HprofIndex index,
+      List<Leak> leaks, EnumSet<AnalysisResult.SkippedStep> skippedSteps, boolean bitmapSizes) {
+    for (Leak leak : leaks) {
+      int leakingIndex = index.objectIndex(leak.instance);
 
-      retainedSize = leakingInstance.getTotalRetainedSize();
+      long retainedSize = dominatorTree.retainedSize(leakingIndex);
 
-      // TODO: check O sources and see what happened to android.graphics.Bitmap.mBuffer
-      if (SDK_INT <= N_MR1) {
+      if (bitmapSizes && !skippedSteps.contains(BITMAP_RETAINED_SIZE)) {
         listener.onProgressUpdate(COMPUTING_BITMAP_SIZE);
-        retainedSize += computeIgnoredBitmapRetainedSize(snapshot, leakingInstance);
+        try {
+          retainedSize += computeIgnoredBitmapRetainedSize(dominatorTree, index, leakingIndex);
+        } catch (OutOfMemoryError e) {
+          CanaryLog.d(e, "Out of memory while computing bitmap sizes, skipping them");
+          // Skipped for this leak and the next ones.
+          skippedSteps.add(BITMAP_RETAINED_SIZE);
+          leak.skippedSteps.add(BITMAP_RETAINED_SIZE);
+        }
       }
-    } else {
-      retainedSize = AnalysisResult.RETAINED_HEAP_SKIPPED;
+      leak.retainedSize = retainedSize;
     }
-
-    return leakDetected(result.excludingKnownLeaks, className, leakTrace, retainedSize,
-        since(analysisStartNanoTime));
   }
 
   /**
@@ -294,19 +552,26 @@ public final class HeapAnalyzer {
    * From experience, we've found that bitmap created in code (Bitmap.createBitmap()) are correctly
    * accounted for, however bitmaps set in layouts are not.
    */
-  private long computeIgnoredBitmapRetainedSize(Snapshot snapshot, Instance leakingInstance) {
+  private long computeIgnoredBitmapRetainedSize(DominatorTree dominatorTree, HprofIndex index,
+      int leakingIndex) {
     long bitmapRetainedSize = 0;
-    ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
+    // Read through the index rather than decoding all the fields of each bitmap.
+    int mBufferOffset = index.fieldOffset(index.bitmapClass, "mBuffer");
+    if (mBufferOffset == -1) {
+      throw new IllegalArgumentException("Field mBuffer does not exists");
+    }
 
-    for (Instance bitmapInstance : bitmapClass.getInstancesList()) {
-      if (isIgnoredDominator(leakingInstance, bitmapInstance)) {
-        ArrayInstance mBufferInstance = fieldValue(classInstanceValues(bitmapInstance), "mBuffer");
+    for (long bitmapId : index.instancesOf(index.bitmapClass)) {
+      int bitmapIndex = index.objectIndex(bitmapId);
+      if (isIgnoredDominator(dominatorTree, leakingIndex, bitmapIndex)) {
+        long mBufferId = index.readId(index.fieldsPositionAt(bitmapIndex) + mBufferOffset);
+        int mBufferIndex = index.objectIndex(mBufferId);
         // Native bitmaps have mBuffer set to null. We sadly can't account for them.
-        if (mBufferInstance == null) {
+        if (mBufferIndex == -1) {
           continue;
         }
-        long bufferSize = mBufferInstance.getTotalRetainedSize();
-        long bitmapSize = bitmapInstance.getTotalRetainedSize();
+        long bufferSize = dominatorTree.retainedSize(mBufferIndex);
+        long bitmapSize = dominatorTree.retainedSize(bitmapIndex);
         // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
         // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
         if (bitmapSize < bufferSize) {
@@ -318,33 +583,38 @@ public final class HeapAnalyzer {
     return bitmapRetainedSize;
   }
 
-  private boolean isIgnoredDominator(Instance dominator, Instance instance) {
+  /**
+   * Whether the dominator would dominate the object if the gc roots holding the object or its
+   * dominators were ignored. Skips each object only dominated by the gc roots by following a
+   * reference to it from the gc roots instead.
+   */
+  private boolean isIgnoredDominator(DominatorTree dominatorTree, int dominator, int objectIndex) {
     boolean foundNativeRoot = false;
     while (true) {
-      Instance immediateDominator = instance.getImmediateDominator();
-      if (immediateDominator instanceof RootObj
-          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
+      int immediateDominator = dominatorTree.immediateDominator(objectIndex);
+      if (immediateDominator == DominatorTree.GC_ROOTS) {
         // Ignore native roots
-        instance = instance.getNextInstanceToGcRoot();
+        objectIndex = dominatorTree.pathReferrer(objectIndex);
         foundNativeRoot = true;
       } else {
-        instance = immediateDominator;
+        objectIndex = immediateDominator;
       }
-      if (instance == null) {
+      if (objectIndex == DominatorTree.GC_ROOTS) {
         return false;
       }
-      if (instance == dominator) {
+      if (objectIndex == dominator) {
         return foundNativeRoot;
       }
     }
   }
 
-  private LeakTrace buildLeakTrace(LeakNode leakingNode) {
+  private LeakTrace buildLeakTrace(HprofIndex index, LeakNode leakingNode,
+      boolean describeFields) {
     List<LeakTraceElement> elements = new ArrayList<>();
     // We iterate from the leak to the GC root
-    LeakNode node = new LeakNode(null, null, leakingNode, null);
+    LeakNode node = new LeakNode(null, 0, leakingNode, null);
     while (node != null) {
-      LeakTraceElement element = buildLeakElement(node);
+      LeakTraceElement element = buildLeakElement(index, node, describeFields);
       if (element != null) {
         elements.add(0, element);
       }
@@ -395,52 +665,52 @@ public final class HeapAnalyzer {
     return expectedReachability;
   }
 
-  private LeakTraceElement buildLeakElement(LeakNode node) {
+  private LeakTraceElement buildLeakElement(HprofIndex index, LeakNode node,
+      boolean describeFields) {
     if (node.parent == null) {
       // Ignore any root node.
       return null;
     }
-    Instance holder = node.parent.instance;
+    long holder = node.parent.instance;
 
-    if (holder instanceof RootObj) {
-      return null;
-    }
     LeakTraceElement.Holder holderType;
     String className;
     String extra = null;
-    List<LeakReference> leakReferences = describeFields(holder);
+    List<LeakReference> leakReferences = describeFields
+        ? describeFields(index, holder) : Collections.<LeakReference>emptyList();
 
-    className = getClassName(holder);
+    className = index.className(holder);
+    int holderTag = index.tag(holder);
 
     List<String> classHierarchy = new ArrayList<>();
     classHierarchy.add(className);
     String rootClassName = Object.class.getName();
-    if (holder instanceof ClassInstance) {
-      ClassObj classObj = holder.getClassObj();
-      while (!(classObj = classObj.getSuperClassObj()).getClassName().equals(rootClassName)) {
-        classHierarchy.add(classObj.getClassName());
+    if (holderTag == INSTANCE_DUMP) {
+      HprofIndex.ClassInfo classInfo = index.instanceClass(holder);
+      while (!(classInfo = classInfo.superClass).name.equals(rootClassName)) {
+        classHierarchy.add(classInfo.name);
       }
     }
 
-    if (holder instanceof ClassObj) {
+    if (holderTag == CLASS_DUMP) {
       holderType = CLASS;
-    } else if (holder instanceof ArrayInstance) {
+    } else if (holderTag != INSTANCE_DUMP) {
       holderType = ARRAY;
     } else {
-      ClassObj classObj = holder.getClassObj();
-      if (extendsThread(classObj)) {
+      HprofIndex.ClassInfo classInfo = index.instanceClass(holder);
+      if (index.extendsThread(classInfo)) {
         holderType = THREAD;
-        String threadName = threadName(holder);
+        String threadName = index.threadName(holder);
         extra = "(named '" + threadName + "')";
       } else if (className.matches(ANONYMOUS_CLASS_NAME_PATTERN)) {
-        String parentClassName = classObj.getSuperClassObj().getClassName();
+        String parentClassName = classInfo.superClass.name;
         if (rootClassName.equals(parentClassName)) {
           holderType = OBJECT;
           try {
             // This is an anonymous class implementing an interface. The API does not give access
             // to the interfaces implemented by the class. We check if it's in the class path and
             // use that instead.
-            Class<?> actualClass = Class.forName(classObj.getClassName());
+            Class<?> actualClass = Class.forName(classInfo.name);
             Class<?>[] interfaces = actualClass.getInterfaces();
             if (interfaces.length > 0) {
               Class<?> implementedInterface = interfaces[0];
@@ -463,55 +733,79 @@ public final class HeapAnalyzer {
         node.exclusion, leakReferences);
   }
 
-  private List<LeakReference> describeFields(Instance instance) {
+  private List<LeakReference> describeFields(HprofIndex index, long instance) {
     List<LeakReference> leakReferences = new ArrayList<>();
-    if (instance instanceof ClassObj) {
-      ClassObj classObj = (ClassObj) instance;
-      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-        String name = entry.getKey().getName();
-        String stringValue = valueAsString(entry.getValue());
-        leakReferences.add(new LeakReference(STATIC_FIELD, name, stringValue));
+    int tag = index.tag(instance);
+    if (tag == CLASS_DUMP) {
+      describeStaticFields(index, index.classInfo(instance), leakReferences);
+    } else if (tag == OBJECT_ARRAY_DUMP) {
+      int length = index.arrayLength(instance);
+      long position = index.arrayValuesPosition(instance);
+      for (int i = 0; i < length; i++) {
+        String name = Integer.toString(i);
+        String stringValue =
+            index.valueAsString(position + (long) i * index.idSize, HprofIndexer.OBJECT);
+        leakReferences.add(new LeakReference(ARRAY_ENTRY, name, stringValue));
       }
-    } else if (instance instanceof ArrayInstance) {
-      ArrayInstance arrayInstance = (ArrayInstance) instance;
-      if (arrayInstance.getArrayType() == Type.OBJECT) {
-        Object[] values = arrayInstance.getValues();
-        for (int i = 0; i < values.length; i++) {
-          String name = Integer.toString(i);
-          String stringValue = valueAsString(values[i]);
-          leakReferences.add(new LeakReference(ARRAY_ENTRY, name, stringValue));
-        }
-      }
-    } else {
-      ClassObj classObj = instance.getClassObj();
-      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-        String name = entry.getKey().getName();
-        String stringValue = valueAsString(entry.getValue());
-        leakReferences.add(new LeakReference(STATIC_FIELD, name, stringValue));
-      }
-      ClassInstance classInstance = (ClassInstance) instance;
-      for (ClassInstance.FieldValue field : classInstance.getValues()) {
-        String name = field.getField().getName();
-        String stringValue = valueAsString(field.getValue());
-        leakReferences.add(new LeakReference(INSTANCE_FIELD, name, stringValue));
+    } else if (tag == INSTANCE_DUMP) {
+      HprofIndex.ClassInfo classInfo = index.instanceClass(instance);
+      describeStaticFields(index, classInfo, leakReferences);
+      long position = index.fieldsPosition(instance);
+      HprofIndex.FieldLayout layout = classInfo.layout;
+      for (int i = 0; i < layout.names.length; i++) {
+        String stringValue = index.valueAsString(position + layout.offsets[i], layout.types[i]);
+        leakReferences.add(new LeakReference(INSTANCE_FIELD, layout.names[i], stringValue));
       }
     }
     return leakReferences;
   }
 
-  private String getClassName(Instance instance) {
-    String className;
-    if (instance instanceof ClassObj) {
-      ClassObj classObj = (ClassObj) instance;
-      className = classObj.getClassName();
-    } else if (instance instanceof ArrayInstance) {
-      ArrayInstance arrayInstance = (ArrayInstance) instance;
-      className = arrayInstance.getClassObj().getClassName();
-    } else {
-      ClassObj classObj = instance.getClassObj();
-      className = classObj.getClassName();
+  private void describeStaticFields(HprofIndex index, HprofIndex.ClassInfo classInfo,
+      List<LeakReference> leakReferences) {
+    for (int i = 0; i < classInfo.staticFieldNames.length; i++) {
+      String name = classInfo.staticFieldNames[i];
+      String stringValue =
+          index.valueAsString(classInfo.staticValuePositions[i], classInfo.staticFieldTypes[i]);
+      leakReferences.add(new LeakReference(STATIC_FIELD, name, stringValue));
+    }
+  }
+
+  /** A leak trace found while analyzing several keys, waiting for its retained size. */
+  private static final class Leak {
+    final String referenceKey;
+    final long instance;
+    final String className;
+    final LeakTrace leakTrace;
+    final boolean excludingKnownLeaks;
+    /** Whether leakTrace is the best path found before the search stopped at a limit. */
+    final boolean partialPath;
+    final List<LeakTrace> alternativeLeakTraces;
+    /** The planned steps and the steps skipped for this leak because memory ran out. */
+    final EnumSet<AnalysisResult.SkippedStep> skippedSteps;
+    long retainedSize = AnalysisResult.RETAINED_HEAP_SKIPPED;
+
+    Leak(String referenceKey, long instance, String className, LeakTrace leakTrace,
+        boolean excludingKnownLeaks, boolean partialPath, List<LeakTrace> alternativeLeakTraces,
+        EnumSet<AnalysisResult.SkippedStep> skippedSteps) {
+      this.referenceKey = referenceKey;
+      this.instance = instance;
+      this.className = className;
+      this.leakTrace = leakTrace;
+      this.excludingKnownLeaks = excludingKnownLeaks;
+      this.partialPath = partialPath;
+      this.alternativeLeakTraces = alternativeLeakTraces;
+      this.skippedSteps = skippedSteps;
+    }
+
+    AnalysisResult toResult(long retainedSize, long analysisDurationMs) {
+      List<AnalysisResult.SkippedStep> steps = new ArrayList<>(skippedSteps);
+      if (partialPath) {
+        steps.add(SHORTEST_PATH);
+      }
+      return leakDetected(excludingKnownLeaks, className, leakTrace, retainedSize,
+          analysisDurationMs, Collections.unmodifiableList(steps),
+          Collections.unmodifiableList(alternativeLeakTraces));
     }
-    return className;
   }
 
   private long since(long analysisStartNanoTime) {
@@ -70,6 +70,15 @@ public final class HeapDump implements Serializable {
   public final long gcDurationMs;
   public final long heapDumpDurationMs;
   public final boolean computeRetainedHeapSize;
+  /** Whether the content of primitive arrays is zeroed once the heap dump is analyzed. */
+  public final boolean stripPrimitiveArrays;
+  /** Whether the heap dump is replaced with a {@link CompressedHprofFile} once analyzed. */
+  public final boolean compressHeapDump;
+  /**
+   * Number of threads parsing the heap dump the first time it's analyzed. 1 by default, each
+   * other thread opens the heap dump again.
+   */
+  public final int indexingThreadCount;
   public final List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses;
 
   /**
@@ -96,6 +105,9 @@ public final class HeapDump implements Serializable {
     this.referenceName = builder.referenceName;
     this.excludedRefs = builder.excludedRefs;
     this.computeRetainedHeapSize = builder.computeRetainedHeapSize;
+    this.stripPrimitiveArrays = builder.stripPrimitiveArrays;
+    this.compressHeapDump = builder.compressHeapDump;
+    this.indexingThreadCount = builder.indexingThreadCount;
     this.watchDurationMs = builder.watchDurationMs;
     this.gcDurationMs = builder.gcDurationMs;
     this.heapDumpDurationMs = builder.heapDumpDurationMs;
@@ -115,6 +127,9 @@ public final class HeapDump implements Serializable {
     long gcDurationMs;
     long heapDumpDurationMs;
     boolean computeRetainedHeapSize;
+    boolean stripPrimitiveArrays;
+    boolean compressHeapDump;
+    int indexingThreadCount;
     List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses;
 
     Builder() {
@@ -126,6 +141,9 @@ public final class HeapDump implements Serializable {
       gcDurationMs = 0;
       heapDumpDurationMs = 0;
       computeRetainedHeapSize = false;
+      stripPrimitiveArrays = false;
+      compressHeapDump = false;
+      indexingThreadCount = 1;
       reachabilityInspectorClasses = null;
     }
 
@@ -135,6 +153,9 @@ public final class HeapDump implements Serializable {
       this.referenceName = heapDump.referenceName;
       this.excludedRefs = heapDump.excludedRefs;
       this.computeRetainedHeapSize = heapDump.computeRetainedHeapSize;
+      this.stripPrimitiveArrays = heapDump.stripPrimitiveArrays;
+      this.compressHeapDump = heapDump.compressHeapDump;
+      this.indexingThreadCount = heapDump.indexingThreadCount;
       this.watchDurationMs = heapDump.watchDurationMs;
       this.gcDurationMs = heapDump.gcDurationMs;
       this.heapDumpDurationMs = heapDump.heapDumpDurationMs;
@@ -181,6 +202,25 @@ public final class HeapDump implements Serializable {
       return this;
     }
 
+    public Builder stripPrimitiveArrays(boolean stripPrimitiveArrays) {
+      this.stripPrimitiveArrays = stripPrimitiveArrays;
+      return this;
+    }
+
+    public Builder compressHeapDump(boolean compressHeapDump) {
+      this.compressHeapDump = compressHeapDump;
+      return this;
+    }
+
+    public Builder indexingThreadCount(int indexingThreadCount) {
+      if (indexingThreadCount < 1) {
+        throw new IllegalArgumentException(
+            "indexingThreadCount must be at least 1, not " + indexingThreadCount);
+      }
+      this.indexingThreadCount = indexingThreadCount;
+      return this;
+    }
+
     public Builder reachabilityInspectorClasses(
         List<Class<? extends Reachability.Inspector>> reachabilityInspectorClasses) {
       checkNotNull(reachabilityInspectorClasses, "reachabilityInspectorClasses");
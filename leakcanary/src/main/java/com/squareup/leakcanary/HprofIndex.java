@@ -0,0 +1,915 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.BOOLEAN;
+import static com.squareup.leakcanary.HprofIndexer.BYTE;
+import static com.squareup.leakcanary.HprofIndexer.CHAR;
+import static com.squareup.leakcanary.HprofIndexer.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.DOUBLE;
+import static com.squareup.leakcanary.HprofIndexer.FLOAT;
+import static com.squareup.leakcanary.HprofIndexer.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.INT;
+import static com.squareup.leakcanary.HprofIndexer.LONG;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_NODATA;
+import static com.squareup.leakcanary.HprofIndexer.SHORT;
+import static java.util.Arrays.asList;
+
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Not thread safe.
+ *
+ * A compact index of a heap dump built by {@link HprofIndexer}. Objects are only identified by
+ * their id and read on demand from the underlying {@link HprofBuffer}.
+ */
+final class HprofIndex {
+
+  private static final RootType[] ROOT_TYPES = RootType.values();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final Set<String> WRAPPER_TYPES = new HashSet<>(
+      asList(Boolean.class.getName(), Character.class.getName(), Float.class.getName(),
+          Double.class.getName(), Byte.class.getName(), Short.class.getName(),
+          Integer.class.getName(), Long.class.getName()));
+
+  private static final byte WRAPPER_CLASS = 1;
+  private static final byte THREAD_CLASS = 1 << 1;
+
+  /** Value of java.lang.String.coder for UTF-16 strings on Java 9+. */
+  private static final int UTF16_CODER = 1;
+
+  final HprofBuffer buffer;
+  final int idSize;
+
+  private final IdTable objects;
+  /** Heap dump sub record tag, by object index. */
+  private final ByteBuffer objectTags;
+  /**
+   * Class index of instances and object arrays, by object index. For class dumps, this is the
+   * index of the dumped class. -1 for primitive arrays.
+   */
+  private final IntBuffer objectClassIndexes;
+  private final IdTable strings;
+  private final IdTable classNames;
+  private final IdTable threads;
+  private final IdTable classIndexes;
+  /** By class index. Null for classes that are referenced but not dumped. */
+  private final ClassInfo[] classes;
+  /** Class names are unique in a heap dump. */
+  private final Map<String, ClassInfo> classesByName;
+  /** {@link #WRAPPER_CLASS} and {@link #THREAD_CLASS} flags, by class index. */
+  private final byte[] classFlags;
+  /** Well known classes, resolved once. Null when they are not in the heap dump. */
+  final ClassInfo stringClass;
+  final ClassInfo threadClass;
+  final ClassInfo bitmapClass;
+  final ClassInfo keyedWeakReferenceClass;
+
+  /** Offsets of the java.lang.String fields, -1 for the fields this runtime doesn't have. */
+  private final int stringValueOffset;
+  private final int stringCountOffset;
+  private final int stringOffsetOffset;
+  private final int stringCoderOffset;
+  private final int stringHashOffset;
+  /** Dense indexes of the strings decoded so far, in {@link #decodedStrings}. */
+  private final IdTable decodedStringIds = new IdTable(64);
+  private String[] decodedStrings = new String[64];
+  /** Reused to decode strings. */
+  private char[] chars = new char[64];
+
+  private final int rootCount;
+  private final byte[] rootTypes;
+  private final long[] rootIds;
+  private final int[] rootThreadSerials;
+
+  HprofIndex(HprofBuffer buffer, int idSize, IdTable objects, ByteBuffer objectTags,
+      IntBuffer objectClassIndexes, IdTable strings, IdTable classNames, IdTable threads,
+      IdTable classIndexes, ClassInfo[] classes, int rootCount, byte[] rootTypes, long[] rootIds,
+      int[] rootThreadSerials) {
+    this.buffer = buffer;
+    this.idSize = idSize;
+    this.objects = objects;
+    this.objectTags = objectTags;
+    this.objectClassIndexes = objectClassIndexes;
+    this.strings = strings;
+    this.classNames = classNames;
+    this.threads = threads;
+    this.classIndexes = classIndexes;
+    this.classes = classes;
+    this.rootCount = rootCount;
+    this.rootTypes = rootTypes;
+    this.rootIds = rootIds;
+    this.rootThreadSerials = rootThreadSerials;
+
+    // Field names are shared by many classes, eg mContext. By string index.
+    String[] names = new String[strings.size()];
+    for (ClassInfo classInfo : classes) {
+      if (classInfo == null) {
+        continue;
+      }
+      int nameIndex = classNames.indexOf(classInfo.id);
+      // Android heap dumps already use dots, the JVM uses slashes.
+      classInfo.name = nameIndex == -1 ? String.format("unknown class 0x%x", classInfo.id)
+          : string(classNames.value(nameIndex)).replace('/', '.');
+      classInfo.superClass = classInfo(classInfo.superClassId);
+      classInfo.staticFieldNames = resolveNames(classInfo.staticFieldNameIds, names);
+      classInfo.fieldNames = resolveNames(classInfo.fieldNameIds, names);
+    }
+
+    classesByName = new HashMap<>();
+    for (ClassInfo classInfo : classes) {
+      if (classInfo != null) {
+        classesByName.put(classInfo.name, classInfo);
+        layout(classInfo);
+      }
+    }
+    stringClass = findClass(String.class.getName());
+    threadClass = findClass(Thread.class.getName());
+    bitmapClass = findClass("android.graphics.Bitmap");
+    keyedWeakReferenceClass = findClass(KeyedWeakReference.class.getName());
+
+    stringValueOffset = fieldOffset(stringClass, "value");
+    stringCountOffset = fieldOffset(stringClass, "count");
+    stringOffsetOffset = fieldOffset(stringClass, "offset");
+    stringCoderOffset = fieldOffset(stringClass, "coder");
+    stringHashOffset = fieldOffset(stringClass, "hash");
+
+    classFlags = new byte[classes.length];
+    for (ClassInfo classInfo : classes) {
+      if (classInfo == null) {
+        continue;
+      }
+      byte flags = 0;
+      if (WRAPPER_TYPES.contains(classInfo.name)) {
+        flags |= WRAPPER_CLASS;
+      }
+      // java.lang.Object is not checked.
+      for (ClassInfo parentClass = classInfo; parentClass.superClass != null;
+          parentClass = parentClass.superClass) {
+        if (parentClass == threadClass) {
+          flags |= THREAD_CLASS;
+          break;
+        }
+      }
+      classFlags[classInfo.index] = flags;
+    }
+  }
+
+  /** Shares the tables of index, which are never modified once built. */
+  private HprofIndex(HprofIndex index, HprofBuffer buffer) {
+    this.buffer = buffer;
+    idSize = index.idSize;
+    objects = index.objects;
+    objectTags = index.objectTags;
+    objectClassIndexes = index.objectClassIndexes;
+    strings = index.strings;
+    classNames = index.classNames;
+    threads = index.threads;
+    classIndexes = index.classIndexes;
+    classes = index.classes;
+    classesByName = index.classesByName;
+    classFlags = index.classFlags;
+    stringClass = index.stringClass;
+    threadClass = index.threadClass;
+    bitmapClass = index.bitmapClass;
+    keyedWeakReferenceClass = index.keyedWeakReferenceClass;
+    stringValueOffset = index.stringValueOffset;
+    stringCountOffset = index.stringCountOffset;
+    stringOffsetOffset = index.stringOffsetOffset;
+    stringCoderOffset = index.stringCoderOffset;
+    stringHashOffset = index.stringHashOffset;
+    rootCount = index.rootCount;
+    rootTypes = index.rootTypes;
+    rootIds = index.rootIds;
+    rootThreadSerials = index.rootThreadSerials;
+  }
+
+  /**
+   * Returns an index of the same heap dump that reads from another buffer, so that each thread
+   * can read the heap dump with its own index. Nothing is copied.
+   */
+  HprofIndex withBuffer(HprofBuffer buffer) {
+    return new HprofIndex(this, buffer);
+  }
+
+  static HprofIndex read(HprofIndexFile.Input input, HprofBuffer buffer) throws IOException {
+    int idSize = input.readInt();
+    IdTable objects = IdTable.read(input);
+    ByteBuffer objectTags = input.mapBytes();
+    IntBuffer objectClassIndexes = input.mapInts();
+    IdTable strings = IdTable.read(input);
+    IdTable classNames = IdTable.read(input);
+    IdTable threads = IdTable.read(input);
+    IdTable classIndexes = IdTable.read(input);
+    ClassInfo[] classes = new ClassInfo[input.readInt()];
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = ClassInfo.read(input);
+    }
+    byte[] rootTypes = input.readBytes();
+    long[] rootIds = input.readLongs();
+    int[] rootThreadSerials = input.readInts();
+    if (objectTags.capacity() != objects.size()
+        || objectClassIndexes.capacity() != objects.size()
+        || classes.length != classIndexes.size()
+        || rootIds.length != rootTypes.length
+        || rootThreadSerials.length != rootTypes.length) {
+      throw new IOException("Corrupted heap dump index");
+    }
+    return new HprofIndex(buffer, idSize, objects, objectTags, objectClassIndexes, strings,
+        classNames, threads, classIndexes, classes, rootTypes.length, rootTypes, rootIds,
+        rootThreadSerials);
+  }
+
+  void write(HprofIndexFile.Output output) throws IOException {
+    output.writeInt(idSize);
+    objects.write(output);
+    output.writeBytes(objectTags.array(), objectTags.capacity());
+    output.writeInts(objectClassIndexes.array(), objectClassIndexes.capacity());
+    strings.write(output);
+    classNames.write(output);
+    threads.write(output);
+    classIndexes.write(output);
+    output.writeInt(classes.length);
+    for (ClassInfo classInfo : classes) {
+      ClassInfo.write(classInfo, output);
+    }
+    output.writeBytes(rootTypes, rootCount);
+    output.writeLongs(rootIds, rootCount);
+    output.writeInts(rootThreadSerials, rootCount);
+  }
+
+  /** A class and the layout of its declared fields. */
+  static final class ClassInfo {
+    /** Dense index of this class. */
+    final int index;
+    final long id;
+    final long superClassId;
+    final int instanceSize;
+    final long[] staticFieldNameIds;
+    final byte[] staticFieldTypes;
+    /** Position of each static field value in the heap dump. */
+    final long[] staticValuePositions;
+    final long[] fieldNameIds;
+    final byte[] fieldTypes;
+
+    String name;
+    /** Null for java.lang.Object. */
+    ClassInfo superClass;
+    String[] staticFieldNames;
+    String[] fieldNames;
+
+    /** Set once all the classes are resolved. */
+    FieldLayout layout;
+
+    ClassInfo(int index, long id, long superClassId, int instanceSize,
+        long[] staticFieldNameIds, byte[] staticFieldTypes, long[] staticValuePositions,
+        long[] fieldNameIds, byte[] fieldTypes) {
+      this.index = index;
+      this.id = id;
+      this.superClassId = superClassId;
+      this.instanceSize = instanceSize;
+      this.staticFieldNameIds = staticFieldNameIds;
+      this.staticFieldTypes = staticFieldTypes;
+      this.staticValuePositions = staticValuePositions;
+      this.fieldNameIds = fieldNameIds;
+      this.fieldTypes = fieldTypes;
+    }
+
+    static ClassInfo read(HprofIndexFile.Input input) throws IOException {
+      if (input.readByte() == 0) {
+        return null;
+      }
+      return new ClassInfo(input.readInt(), input.readLong(), input.readLong(), input.readInt(),
+          input.readLongs(), input.readBytes(), input.readLongs(), input.readLongs(),
+          input.readBytes());
+    }
+
+    /** Null classes are written too, to preserve class indexes. */
+    static void write(ClassInfo classInfo, HprofIndexFile.Output output) throws IOException {
+      if (classInfo == null) {
+        output.writeByte((byte) 0);
+        return;
+      }
+      output.writeByte((byte) 1);
+      output.writeInt(classInfo.index);
+      output.writeLong(classInfo.id);
+      output.writeLong(classInfo.superClassId);
+      output.writeInt(classInfo.instanceSize);
+      output.writeLongs(classInfo.staticFieldNameIds, classInfo.staticFieldNameIds.length);
+      output.writeBytes(classInfo.staticFieldTypes, classInfo.staticFieldTypes.length);
+      output.writeLongs(classInfo.staticValuePositions, classInfo.staticValuePositions.length);
+      output.writeLongs(classInfo.fieldNameIds, classInfo.fieldNameIds.length);
+      output.writeBytes(classInfo.fieldTypes, classInfo.fieldTypes.length);
+    }
+  }
+
+  /**
+   * The instance fields of a class, including inherited fields, in the order they are dumped:
+   * the class declared fields first, then the superclass fields.
+   */
+  static final class FieldLayout {
+    final String[] names;
+    final byte[] types;
+    /** Offset of each field value from the first instance field value. */
+    final int[] offsets;
+    /** Subset of {@link #offsets} for reference fields. */
+    final int[] referenceOffsets;
+    final String[] referenceNames;
+
+    FieldLayout(String[] names, byte[] types, int[] offsets, int[] referenceOffsets,
+        String[] referenceNames) {
+      this.names = names;
+      this.types = types;
+      this.offsets = offsets;
+      this.referenceOffsets = referenceOffsets;
+      this.referenceNames = referenceNames;
+    }
+
+    /** Returns the offset of that field, or -1 if there's no such field. */
+    int offsetOf(String fieldName) {
+      for (int i = 0; i < names.length; i++) {
+        // Field names are shared, so this is usually an identity check.
+        if (fieldName.equals(names[i])) {
+          return offsets[i];
+        }
+      }
+      return -1;
+    }
+  }
+
+  static int sizeOf(int type, int idSize) {
+    switch (type) {
+      case OBJECT:
+        return idSize;
+      case BOOLEAN:
+      case BYTE:
+        return 1;
+      case CHAR:
+      case SHORT:
+        return 2;
+      case FLOAT:
+      case INT:
+        return 4;
+      case DOUBLE:
+      case LONG:
+        return 8;
+      default:
+        throw new IllegalArgumentException("Unknown basic type " + type);
+    }
+  }
+
+  int sizeOf(int type) {
+    return sizeOf(type, idSize);
+  }
+
+  int objectCount() {
+    return objects.size();
+  }
+
+  /** Class indexes go from 0 to the class count. */
+  int classCount() {
+    return classes.length;
+  }
+
+  boolean contains(long id) {
+    return objectIndex(id) != -1;
+  }
+
+  /**
+   * Returns the dense index of that object, or -1 if it isn't in the heap dump. Object indexes
+   * follow the order of the heap dump.
+   */
+  int objectIndex(long id) {
+    return id == 0 ? -1 : objects.indexOf(id);
+  }
+
+  long objectId(int objectIndex) {
+    return objects.id(objectIndex);
+  }
+
+  /** Position of the sub record of that object in the heap dump. */
+  long objectPosition(int objectIndex) {
+    return objects.value(objectIndex);
+  }
+
+  /** Returns the heap dump sub record tag of that object, or -1 if it isn't in the heap dump. */
+  int tag(long id) {
+    int objectIndex = objectIndex(id);
+    return objectIndex == -1 ? -1 : tagAt(objectIndex);
+  }
+
+  int tagAt(int objectIndex) {
+    return objectTags.get(objectIndex) & 0xff;
+  }
+
+  /** @see #objectClassIndexes */
+  ClassInfo classAt(int objectIndex) {
+    int classIndex = objectClassIndexes.get(objectIndex);
+    return classIndex == -1 ? null : classes[classIndex];
+  }
+
+  ClassInfo classInfo(long classId) {
+    int classIndex = classIndexes.indexOf(classId);
+    return classIndex == -1 ? null : classes[classIndex];
+  }
+
+  ClassInfo findClass(String className) {
+    return classesByName.get(className);
+  }
+
+  /** Returns the class of an instance, which must be a class instance. */
+  ClassInfo instanceClass(long instanceId) {
+    return classAt(objectIndex(instanceId));
+  }
+
+  /** Returns the ids of all the instances of exactly that class. */
+  long[] instancesOf(ClassInfo classInfo) {
+    long[] instances = new long[16];
+    int count = 0;
+    for (int i = 0; i < objectTags.capacity(); i++) {
+      if (objectClassIndexes.get(i) == classInfo.index && tagAt(i) == INSTANCE_DUMP) {
+        if (count == instances.length) {
+          instances = Arrays.copyOf(instances, count * 2);
+        }
+        instances[count++] = objects.id(i);
+      }
+    }
+    return Arrays.copyOf(instances, count);
+  }
+
+  /** Position of the first instance field value of a class instance. */
+  long fieldsPosition(long instanceId) {
+    return position(instanceId) + 1 + idSize + 4 + idSize + 4;
+  }
+
+  /** Same as {@link #fieldsPosition(long)} without looking up the object id. */
+  long fieldsPositionAt(int objectIndex) {
+    return objects.value(objectIndex) + 1 + idSize + 4 + idSize + 4;
+  }
+
+  boolean hasField(long instanceId, String fieldName) {
+    return fieldPosition(instanceId, fieldName) != -1;
+  }
+
+  /** Returns the id held by a reference field, 0 for null. */
+  long referenceField(long instanceId, String fieldName) {
+    return readId(checkFieldPosition(instanceId, fieldName));
+  }
+
+  private long checkFieldPosition(long instanceId, String fieldName) {
+    long position = fieldPosition(instanceId, fieldName);
+    if (position == -1) {
+      throw new IllegalArgumentException("Field " + fieldName + " does not exists");
+    }
+    return position;
+  }
+
+  private long fieldPosition(long instanceId, String fieldName) {
+    int offset = fieldOffset(instanceClass(instanceId), fieldName);
+    return offset == -1 ? -1 : fieldsPosition(instanceId) + offset;
+  }
+
+  /**
+   * Returns the offset of a field value from the first instance field value of instances of that
+   * class, or -1 if there's no such field.
+   */
+  int fieldOffset(ClassInfo classInfo, String fieldName) {
+    return classInfo == null ? -1 : classInfo.layout.offsetOf(fieldName);
+  }
+
+  int arrayLength(long arrayId) {
+    buffer.setPosition(position(arrayId) + 1 + idSize + 4);
+    return buffer.readInt();
+  }
+
+  int arrayLengthAt(int objectIndex) {
+    buffer.setPosition(objects.value(objectIndex) + 1 + idSize + 4);
+    return buffer.readInt();
+  }
+
+  int primitiveArrayType(long arrayId) {
+    return primitiveArrayTypeAt(objectIndex(arrayId));
+  }
+
+  int primitiveArrayTypeAt(int objectIndex) {
+    buffer.setPosition(objects.value(objectIndex) + 1 + idSize + 4 + 4);
+    return buffer.readByte() & 0xff;
+  }
+
+  /** Position of the first element of an object or primitive array. */
+  long arrayValuesPosition(long arrayId) {
+    return arrayValuesPositionAt(objectIndex(arrayId));
+  }
+
+  long arrayValuesPositionAt(int objectIndex) {
+    long headerSize = 1 + idSize + 4 + 4;
+    return objects.value(objectIndex) + headerSize
+        + (tagAt(objectIndex) == OBJECT_ARRAY_DUMP ? idSize : 1);
+  }
+
+  long readId(long position) {
+    buffer.setPosition(position);
+    return readId();
+  }
+
+  private long readId() {
+    return idSize == 4 ? buffer.readInt() & 0xffffffffL : buffer.readLong();
+  }
+
+  /** Reads a primitive value, boxed. */
+  Object readPrimitive(long position, int type) {
+    buffer.setPosition(position);
+    switch (type) {
+      case BOOLEAN:
+        return buffer.readByte() != 0;
+      case CHAR:
+        return buffer.readChar();
+      case FLOAT:
+        return buffer.readFloat();
+      case DOUBLE:
+        return buffer.readDouble();
+      case BYTE:
+        return buffer.readByte();
+      case SHORT:
+        return buffer.readShort();
+      case INT:
+        return buffer.readInt();
+      case LONG:
+        return buffer.readLong();
+      default:
+        throw new IllegalArgumentException("Not a primitive type " + type);
+    }
+  }
+
+  int rootCount() {
+    return rootCount;
+  }
+
+  RootType rootType(int rootIndex) {
+    return ROOT_TYPES[rootTypes[rootIndex]];
+  }
+
+  long rootId(int rootIndex) {
+    return rootIds[rootIndex];
+  }
+
+  /** Returns the id of the thread that holds that root, or 0 if unknown. */
+  long rootThreadId(int rootIndex) {
+    int index = threads.indexOf(rootThreadSerials[rootIndex]);
+    return index == -1 ? 0 : threads.value(index);
+  }
+
+  String className(long id) {
+    int objectIndex = objectIndex(id);
+    switch (objectIndex == -1 ? -1 : tagAt(objectIndex)) {
+      case CLASS_DUMP:
+      case INSTANCE_DUMP:
+        return classAt(objectIndex).name;
+      case OBJECT_ARRAY_DUMP:
+        ClassInfo arrayClass = classAt(objectIndex);
+        return arrayClass == null ? "java.lang.Object[]" : arrayClass.name;
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        return primitiveTypeName(primitiveArrayType(id)) + "[]";
+      default:
+        throw new IllegalArgumentException("No object with id " + id);
+    }
+  }
+
+  boolean isString(long id) {
+    int objectIndex = objectIndex(id);
+    return objectIndex != -1 && isStringAt(objectIndex);
+  }
+
+  boolean isStringAt(int objectIndex) {
+    return tagAt(objectIndex) == INSTANCE_DUMP && stringClass != null
+        && objectClassIndexes.get(objectIndex) == stringClass.index;
+  }
+
+  boolean isPrimitiveWrapper(long id) {
+    int objectIndex = objectIndex(id);
+    return objectIndex != -1 && isPrimitiveWrapperAt(objectIndex);
+  }
+
+  boolean isPrimitiveWrapperAt(int objectIndex) {
+    return tagAt(objectIndex) == INSTANCE_DUMP && hasClassFlag(objectIndex, WRAPPER_CLASS);
+  }
+
+  boolean isPrimitiveOrWrapperArray(long id) {
+    int objectIndex = objectIndex(id);
+    return objectIndex != -1 && isPrimitiveOrWrapperArrayAt(objectIndex);
+  }
+
+  boolean isPrimitiveOrWrapperArrayAt(int objectIndex) {
+    int tag = tagAt(objectIndex);
+    if (tag == PRIMITIVE_ARRAY_DUMP || tag == PRIMITIVE_ARRAY_NODATA) {
+      return true;
+    }
+    return tag == OBJECT_ARRAY_DUMP && hasClassFlag(objectIndex, WRAPPER_CLASS);
+  }
+
+  boolean extendsThread(ClassInfo classInfo) {
+    return (classFlags[classInfo.index] & THREAD_CLASS) != 0;
+  }
+
+  private boolean hasClassFlag(int objectIndex, byte flag) {
+    int classIndex = objectClassIndexes.get(objectIndex);
+    return classIndex != -1 && (classFlags[classIndex] & flag) != 0;
+  }
+
+  String threadName(long threadId) {
+    long nameId = referenceField(threadId, "name");
+    if (!contains(nameId)) {
+      // Sometimes we can't find the String at the expected memory address in the heap dump.
+      // See https://github.com/square/leakcanary/issues/417 .
+      return "Thread name not available";
+    }
+    return asString(nameId);
+  }
+
+  /**
+   * Given a string instance from the heap dump, this returns its actual string value. Strings are
+   * decoded once, then returned from memory.
+   */
+  String asString(long stringId) {
+    if (!contains(stringId)) {
+      throw new NullPointerException("stringObject must not be null");
+    }
+    String string = decodedString(stringId);
+    if (string == null) {
+      string = decodeString(stringId);
+      int index = decodedStringIds.add(stringId, 0);
+      if (index == decodedStrings.length) {
+        decodedStrings = Arrays.copyOf(decodedStrings, index * 2);
+      }
+      decodedStrings[index] = string;
+    }
+    return string;
+  }
+
+  private String decodedString(long stringId) {
+    int index = decodedStringIds.indexOf(stringId);
+    return index == -1 ? null : decodedStrings[index];
+  }
+
+  /**
+   * Returns the {@link String#hashCode()} of a string instance from the heap dump, without
+   * decoding it when the string cached its hash.
+   */
+  int stringHash(long stringId) {
+    String string = decodedString(stringId);
+    if (string != null) {
+      return string.hashCode();
+    }
+    if (isString(stringId) && stringHashOffset != -1) {
+      buffer.setPosition(fieldsPosition(stringId) + stringHashOffset);
+      int hash = buffer.readInt();
+      if (hash != 0) {
+        return hash;
+      }
+    }
+    int count = readChars(stringId);
+    int hash = 0;
+    for (int i = 0; i < count; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    return hash;
+  }
+
+  /** Reads the characters straight from the heap dump, the only allocation is the string. */
+  private String decodeString(long stringId) {
+    int count = readChars(stringId);
+    return count == 0 ? "" : new String(chars, 0, count);
+  }
+
+  /** Reads the characters of a string instance into {@link #chars}, returns their count. */
+  private int readChars(long stringId) {
+    if (!isString(stringId) || stringValueOffset == -1) {
+      throw new UnsupportedOperationException("Could not find char array in " + describe(stringId));
+    }
+    long fieldsPosition = fieldsPosition(stringId);
+    long valueId = readId(fieldsPosition + stringValueOffset);
+    int valueIndex = objectIndex(valueId);
+    int count;
+    if (stringCountOffset != -1) {
+      buffer.setPosition(fieldsPosition + stringCountOffset);
+      count = buffer.readInt();
+    } else {
+      // JVM strings don't have a count field, the whole array is used.
+      count = valueIndex == -1 ? 0 : arrayLength(valueId);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    if (valueIndex == -1) {
+      throw new NullPointerException("value must not be null");
+    }
+    if (tagAt(valueIndex) == PRIMITIVE_ARRAY_DUMP) {
+      int type = primitiveArrayType(valueId);
+      long valuesPosition = arrayValuesPosition(valueId);
+      if (type == CHAR) {
+        int offset = 0;
+        // < API 23
+        // As of Marshmallow, substrings no longer share their parent strings' char arrays
+        // eliminating the need for String.offset
+        // https://android-review.googlesource.com/#/c/83611/
+        if (stringOffsetOffset != -1) {
+          buffer.setPosition(fieldsPosition + stringOffsetOffset);
+          offset = buffer.readInt();
+        }
+        buffer.setPosition(valuesPosition + offset * 2L);
+        char[] chars = chars(count);
+        for (int i = 0; i < count; i++) {
+          chars[i] = buffer.readChar();
+        }
+        return count;
+      } else if (type == BYTE) {
+        // In API 26, Strings are now internally represented as byte arrays. Android only does
+        // that for ASCII strings, Java 9+ does it for Latin-1 strings and for UTF-16 strings as
+        // told by the coder field.
+        boolean utf16 = false;
+        if (stringCoderOffset != -1) {
+          buffer.setPosition(fieldsPosition + stringCoderOffset);
+          utf16 = buffer.readByte() == UTF16_CODER;
+        }
+        buffer.setPosition(valuesPosition);
+        if (utf16) {
+          count /= 2;
+          char[] chars = chars(count);
+          for (int i = 0; i < count; i++) {
+            // The JVM dumps UTF-16 strings in native order, little endian on supported platforms.
+            int low = buffer.readByte() & 0xff;
+            chars[i] = (char) ((buffer.readByte() & 0xff) << 8 | low);
+          }
+          return count;
+        }
+        char[] chars = chars(count);
+        for (int i = 0; i < count; i++) {
+          chars[i] = (char) (buffer.readByte() & 0xff);
+        }
+        return count;
+      }
+    }
+    throw new UnsupportedOperationException("Could not find char array in " + describe(stringId));
+  }
+
+  private char[] chars(int count) {
+    if (chars.length < count) {
+      chars = new char[Math.max(count, chars.length * 2)];
+    }
+    return chars;
+  }
+
+  /** Same format as {@link com.squareup.haha.perflib.Instance#toString()}. */
+  String describe(long id) {
+    int tag = tag(id);
+    if (id == 0 || tag == -1) {
+      return "null";
+    }
+    if (tag == CLASS_DUMP) {
+      return classInfo(id).name;
+    }
+    return String.format("%s@%d (0x%x)", className(id), id, id);
+  }
+
+  /** This returns a string representation of the value of that type at that position. */
+  String valueAsString(long position, int type) {
+    if (type != OBJECT) {
+      return readPrimitive(position, type).toString();
+    }
+    long id = readId(position);
+    if (isString(id)) {
+      return '"' + asString(id) + '"';
+    }
+    return describe(id);
+  }
+
+  String string(long stringId) {
+    int index = strings.indexOf(stringId);
+    return index == -1 ? null : stringAt(index);
+  }
+
+  private String stringAt(int index) {
+    // Skip the tag and the timestamp.
+    buffer.setPosition(strings.value(index) + 5);
+    long length = buffer.readInt() & 0xffffffffL;
+    readId();
+    byte[] bytes = new byte[(int) (length - idSize)];
+    buffer.read(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private long position(long id) {
+    int index = objects.indexOf(id);
+    return index == -1 ? -1 : objects.value(index);
+  }
+
+  private FieldLayout layout(ClassInfo classInfo) {
+    if (classInfo.layout != null) {
+      return classInfo.layout;
+    }
+    FieldLayout superLayout = classInfo.superClass == null ? null : layout(classInfo.superClass);
+    int declaredCount = classInfo.fieldNames.length;
+    int count = declaredCount + (superLayout == null ? 0 : superLayout.names.length);
+    String[] names = new String[count];
+    byte[] types = new byte[count];
+    int[] offsets = new int[count];
+    int referenceCount = 0;
+    int offset = 0;
+    for (int i = 0; i < declaredCount; i++) {
+      names[i] = classInfo.fieldNames[i];
+      types[i] = classInfo.fieldTypes[i];
+      offsets[i] = offset;
+      offset += sizeOf(types[i]);
+      if (types[i] == OBJECT) {
+        referenceCount++;
+      }
+    }
+    if (superLayout != null) {
+      for (int i = declaredCount; i < count; i++) {
+        int superIndex = i - declaredCount;
+        names[i] = superLayout.names[superIndex];
+        types[i] = superLayout.types[superIndex];
+        offsets[i] = offset + superLayout.offsets[superIndex];
+      }
+      referenceCount += superLayout.referenceOffsets.length;
+    }
+    int[] referenceOffsets = new int[referenceCount];
+    String[] referenceNames = new String[referenceCount];
+    for (int i = 0, j = 0; i < count; i++) {
+      if (types[i] == OBJECT) {
+        referenceOffsets[j] = offsets[i];
+        referenceNames[j++] = names[i];
+      }
+    }
+    classInfo.layout = new FieldLayout(names, types, offsets, referenceOffsets, referenceNames);
+    return classInfo.layout;
+  }
+
+  /** @param names already resolved, by string index. */
+  private String[] resolveNames(long[] nameIds, String[] names) {
+    String[] resolved = new String[nameIds.length];
+    for (int i = 0; i < nameIds.length; i++) {
+      int index = strings.indexOf(nameIds[i]);
+      if (index == -1) {
+        continue;
+      }
+      if (names[index] == null) {
+        names[index] = stringAt(index);
+      }
+      resolved[i] = names[index];
+    }
+    return resolved;
+  }
+
+  private static String primitiveTypeName(int type) {
+    switch (type) {
+      case BOOLEAN:
+        return "boolean";
+      case CHAR:
+        return "char";
+      case FLOAT:
+        return "float";
+      case DOUBLE:
+        return "double";
+      case BYTE:
+        return "byte";
+      case SHORT:
+        return "short";
+      case INT:
+        return "int";
+      case LONG:
+        return "long";
+      default:
+        throw new IllegalArgumentException("Not a primitive type " + type);
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Persists a {@link HprofIndex} in a sidecar file next to its heap dump, so that a heap dump is
+ * only parsed once. The sidecar is a flat sequence of fixed width primitive arrays, it is rebuilt
+ * when it doesn't match the heap dump anymore or can't be read.
+ *
+ * Like {@link DominatorTreeFile}, the id tables and the per object arrays, which are most of the
+ * index, are memory mapped when read: opening a saved index doesn't copy them to the heap and
+ * only the pages of the objects looked up are loaded. The class layouts and the roots are small
+ * and loaded.
+ */
+final class HprofIndexFile {
+
+  static final String INDEX_SUFFIX = ".idx";
+
+  /** "LCIX" */
+  private static final int MAGIC = 0x4c434958;
+  /**
+   * Bump when the layout of the index or the order of its objects changes. Saved
+   * {@link DominatorTreeFile}s, which are indexed by object index, record it too.
+   */
+  static final int VERSION = 2;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  static File indexFile(File heapDumpFile) {
+    return new File(heapDumpFile.getParentFile(), heapDumpFile.getName() + INDEX_SUFFIX);
+  }
+
+  /** Same as {@link #open(File, HprofBuffer, int)} with a single thread. */
+  static HprofIndex open(File heapDumpFile, HprofBuffer buffer) {
+    return open(heapDumpFile, buffer, 1);
+  }
+
+  /**
+   * Returns the index of that heap dump, read from its sidecar file if there's a valid one.
+   * Otherwise the heap dump is parsed and the sidecar file is written for the next time.
+   *
+   * @param threadCount number of threads parsing the heap dump segments, see {@link
+   * HprofIndexer#HprofIndexer(File, HprofBuffer, int)}.
+   */
+  static HprofIndex open(File heapDumpFile, HprofBuffer buffer, int threadCount) {
+    File indexFile = indexFile(heapDumpFile);
+    if (indexFile.exists()) {
+      try {
+        HprofIndex index = read(indexFile, heapDumpFile, buffer);
+        if (index != null) {
+          return index;
+        }
+        CanaryLog.d("Heap dump index %s is stale, rebuilding it.", indexFile.getPath());
+      } catch (IOException | RuntimeException e) {
+        CanaryLog.d(e, "Could not read heap dump index %s, rebuilding it.", indexFile.getPath());
+      }
+      delete(indexFile);
+    }
+    HprofIndex index = new HprofIndexer(heapDumpFile, buffer, threadCount).index();
+    try {
+      write(index, heapDumpFile, indexFile);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not save heap dump index to %s", indexFile.getPath());
+    }
+    return index;
+  }
+
+  static void delete(File indexFile) {
+    if (indexFile.exists() && !indexFile.delete()) {
+      CanaryLog.d("Could not delete heap dump index %s", indexFile.getPath());
+    }
+  }
+
+  /** Returns null if the index file does not match the heap dump. */
+  private static HprofIndex read(File indexFile, File heapDumpFile, HprofBuffer buffer)
+      throws IOException {
+    Input input = new Input(indexFile);
+    try {
+      if (input.readInt() != MAGIC
+          || input.readInt() != VERSION
+          || input.readLong() != heapDumpFile.length()
+          || input.readLong() != heapDumpFile.lastModified()) {
+        return null;
+      }
+      HprofIndex index = HprofIndex.read(input, buffer);
+      if (input.readInt() != MAGIC) {
+        throw new IOException("Missing end marker");
+      }
+      return index;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void write(HprofIndex index, File heapDumpFile, File indexFile)
+      throws IOException {
+    // Written to a temporary file first so that a crash never leaves a truncated index behind.
+    File tmpFile = new File(indexFile.getPath() + ".tmp");
+    Output output = new Output(tmpFile);
+    try {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(heapDumpFile.length());
+      output.writeLong(heapDumpFile.lastModified());
+      index.write(output);
+      output.writeInt(MAGIC);
+    } finally {
+      output.close();
+    }
+    if (!tmpFile.renameTo(indexFile)) {
+      delete(tmpFile);
+      throw new IOException("Could not rename " + tmpFile + " to " + indexFile);
+    }
+  }
+
+  /** Buffered big endian writes of primitives and primitive arrays to a file. */
+  static final class Output implements Closeable {
+    private final FileOutputStream outputStream;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    Output(File file) throws IOException {
+      outputStream = new FileOutputStream(file);
+      channel = outputStream.getChannel();
+      buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    void writeByte(byte value) throws IOException {
+      ensureRemaining(1);
+      buffer.put(value);
+    }
+
+    void writeInt(int value) throws IOException {
+      ensureRemaining(4);
+      buffer.putInt(value);
+    }
+
+    void writeLong(long value) throws IOException {
+      ensureRemaining(8);
+      buffer.putLong(value);
+    }
+
+    void writeBytes(byte[] values, int count) throws IOException {
+      writeInt(count);
+      int offset = 0;
+      while (offset < count) {
+        ensureRemaining(1);
+        int length = Math.min(buffer.remaining(), count - offset);
+        buffer.put(values, offset, length);
+        offset += length;
+      }
+    }
+
+    void writeInts(int[] values, int count) throws IOException {
+      writeInt(count);
+      int offset = 0;
+      while (offset < count) {
+        ensureRemaining(4);
+        int length = Math.min(buffer.remaining() / 4, count - offset);
+        buffer.asIntBuffer().put(values, offset, length);
+        buffer.position(buffer.position() + length * 4);
+        offset += length;
+      }
+    }
+
+    void writeLongs(long[] values, int count) throws IOException {
+      writeInt(count);
+      int offset = 0;
+      while (offset < count) {
+        ensureRemaining(8);
+        int length = Math.min(buffer.remaining() / 8, count - offset);
+        buffer.asLongBuffer().put(values, offset, length);
+        buffer.position(buffer.position() + length * 8);
+        offset += length;
+      }
+    }
+
+    private void ensureRemaining(int byteCount) throws IOException {
+      if (buffer.remaining() < byteCount) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        outputStream.close();
+      }
+    }
+  }
+
+  /** Reads back what {@link Output} wrote, loading arrays or mapping them. */
+  static final class Input implements Closeable {
+    private final FileInputStream inputStream;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    Input(File file) throws IOException {
+      inputStream = new FileInputStream(file);
+      channel = inputStream.getChannel();
+      buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      buffer.flip();
+    }
+
+    byte readByte() throws IOException {
+      require(1);
+      return buffer.get();
+    }
+
+    int readInt() throws IOException {
+      require(4);
+      return buffer.getInt();
+    }
+
+    long readLong() throws IOException {
+      require(8);
+      return buffer.getLong();
+    }
+
+    byte[] readBytes() throws IOException {
+      byte[] values = new byte[readCount()];
+      int offset = 0;
+      while (offset < values.length) {
+        require(1);
+        int length = Math.min(buffer.remaining(), values.length - offset);
+        buffer.get(values, offset, length);
+        offset += length;
+      }
+      return values;
+    }
+
+    int[] readInts() throws IOException {
+      int[] values = new int[readCount()];
+      int offset = 0;
+      while (offset < values.length) {
+        require(4);
+        int length = Math.min(buffer.remaining() / 4, values.length - offset);
+        buffer.asIntBuffer().get(values, offset, length);
+        buffer.position(buffer.position() + length * 4);
+        offset += length;
+      }
+      return values;
+    }
+
+    long[] readLongs() throws IOException {
+      long[] values = new long[readCount()];
+      int offset = 0;
+      while (offset < values.length) {
+        require(8);
+        int length = Math.min(buffer.remaining() / 8, values.length - offset);
+        buffer.asLongBuffer().get(values, offset, length);
+        buffer.position(buffer.position() + length * 8);
+        offset += length;
+      }
+      return values;
+    }
+
+    /** Maps an array written by {@link Output#writeBytes(byte[], int)} instead of reading it. */
+    ByteBuffer mapBytes() throws IOException {
+      return map(1);
+    }
+
+    IntBuffer mapInts() throws IOException {
+      return map(4).asIntBuffer();
+    }
+
+    LongBuffer mapLongs() throws IOException {
+      return map(8).asLongBuffer();
+    }
+
+    /** The mapping stays valid once this input is closed. */
+    private ByteBuffer map(int elementSize) throws IOException {
+      long byteCount = (long) readCount() * elementSize;
+      // The channel is ahead of what was read by what's left in the read buffer.
+      long position = channel.position() - buffer.remaining();
+      if (position + byteCount > channel.size()) {
+        throw new EOFException();
+      }
+      ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, byteCount);
+      channel.position(position + byteCount);
+      buffer.clear();
+      buffer.flip();
+      return mapped;
+    }
+
+    private int readCount() throws IOException {
+      int count = readInt();
+      if (count < 0) {
+        throw new IOException("Invalid array length " + count);
+      }
+      return count;
+    }
+
+    private void require(int byteCount) throws IOException {
+      if (buffer.remaining() >= byteCount) {
+        return;
+      }
+      buffer.compact();
+      while (buffer.position() < byteCount) {
+        if (channel.read(buffer) == -1) {
+          throw new EOFException();
+        }
+      }
+      buffer.flip();
+    }
+
+    @Override public void close() throws IOException {
+      inputStream.close();
+    }
+  }
+
+  private HprofIndexFile() {
+    throw new AssertionError();
+  }
+}
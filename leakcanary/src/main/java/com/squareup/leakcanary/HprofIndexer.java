@@ -0,0 +1,690 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Not thread safe.
+ *
+ * Streams a heap dump once and builds a {@link HprofIndex}: object ids to record positions, GC
+ * roots, threads and class layouts. Unlike {@link com.squareup.haha.perflib.HprofParser}, no
+ * object is created per instance, which keeps the analyzer memory well below the size of the
+ * heap dump.
+ *
+ * Heap dump segments can also be decoded on several threads, after a first pass that only reads
+ * the top level records.
+ */
+final class HprofIndexer {
+
+  // Top level record tags.
+  static final int STRING_IN_UTF8 = 0x01;
+  static final int LOAD_CLASS = 0x02;
+  static final int HEAP_DUMP = 0x0c;
+  static final int HEAP_DUMP_SEGMENT = 0x1c;
+
+  // Heap dump sub record tags.
+  static final int ROOT_UNKNOWN = 0xff;
+  static final int ROOT_JNI_GLOBAL = 0x01;
+  static final int ROOT_JNI_LOCAL = 0x02;
+  static final int ROOT_JAVA_FRAME = 0x03;
+  static final int ROOT_NATIVE_STACK = 0x04;
+  static final int ROOT_STICKY_CLASS = 0x05;
+  static final int ROOT_THREAD_BLOCK = 0x06;
+  static final int ROOT_MONITOR_USED = 0x07;
+  static final int ROOT_THREAD_OBJECT = 0x08;
+  static final int CLASS_DUMP = 0x20;
+  static final int INSTANCE_DUMP = 0x21;
+  static final int OBJECT_ARRAY_DUMP = 0x22;
+  static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+
+  // Android specific heap dump sub record tags.
+  static final int HEAP_DUMP_INFO = 0xfe;
+  static final int ROOT_INTERNED_STRING = 0x89;
+  static final int ROOT_FINALIZING = 0x8a;
+  static final int ROOT_DEBUGGER = 0x8b;
+  static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+  static final int ROOT_VM_INTERNAL = 0x8d;
+  static final int ROOT_JNI_MONITOR = 0x8e;
+  static final int ROOT_UNREACHABLE = 0x90;
+  static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+
+  // Basic types.
+  static final int OBJECT = 2;
+  static final int BOOLEAN = 4;
+  static final int CHAR = 5;
+  static final int FLOAT = 6;
+  static final int DOUBLE = 7;
+  static final int BYTE = 8;
+  static final int SHORT = 9;
+  static final int INT = 10;
+  static final int LONG = 11;
+
+  /**
+   * Heap dump bytes per object used to presize the tables, on the high side of the average since
+   * a smaller estimate reserves more. The tables grow past it as needed.
+   */
+  private static final int BYTES_PER_OBJECT_ESTIMATE = 128;
+
+  /** Presized tables are capped to that many objects, so that they don't reserve too much. */
+  private static final int MAX_PRESIZED_OBJECT_COUNT = 1 << 20;
+
+  /** Segments are grouped into this many tasks per thread, so that threads finish together. */
+  private static final int TASKS_PER_THREAD = 4;
+
+  /** Segments are read sequentially, so workers only need the compressed block they're in. */
+  private static final int WORKER_CACHED_BLOCKS = 2;
+
+  private final HprofBuffer buffer;
+  private final File heapDumpFile;
+  private final int threadCount;
+  private int idSize;
+
+  private IdTable objects;
+  private byte[] objectTags;
+  private int[] objectClassIndexes;
+  private IdTable strings;
+  private IdTable classNames;
+  private IdTable threads;
+  private IdTable classIndexes;
+  private HprofIndex.ClassInfo[] classes;
+
+  private int rootCount;
+  private byte[] rootTypes;
+  private long[] rootIds;
+  private int[] rootThreadSerials;
+  /**
+   * Root types already added for each root id, as bits of the root type ordinals. Android heap
+   * dumps repeat the same roots many times.
+   */
+  private IdTable rootTypesById;
+
+  private int segmentCount;
+  private long[] segmentStarts;
+  private long[] segmentEnds;
+
+  HprofIndexer(HprofBuffer buffer) {
+    this(null, buffer, 1);
+  }
+
+  /**
+   * @param threadCount number of threads decoding the heap dump segments. Each thread opens
+   * heapDumpFile once more, since a {@link HprofBuffer} has a single position.
+   */
+  HprofIndexer(File heapDumpFile, HprofBuffer buffer, int threadCount) {
+    if (threadCount > 1 && heapDumpFile == null) {
+      throw new IllegalArgumentException("Parallel indexing needs the heap dump file");
+    }
+    this.buffer = buffer;
+    this.heapDumpFile = heapDumpFile;
+    this.threadCount = threadCount;
+  }
+
+  /** Decodes segments for {@link #readHeapDump(long, long, Shard)} only. */
+  private HprofIndexer(HprofBuffer buffer, int idSize) {
+    this(null, buffer, 1);
+    this.idSize = idSize;
+  }
+
+  HprofIndex index() {
+    buffer.setPosition(0);
+    readHeader();
+
+    long estimatedObjectCount = buffer.remaining() / BYTES_PER_OBJECT_ESTIMATE;
+    int expectedObjectCount = (int) Math.min(estimatedObjectCount, MAX_PRESIZED_OBJECT_COUNT);
+    objects = new IdTable(expectedObjectCount);
+    objectTags = new byte[Math.max(expectedObjectCount, 16)];
+    objectClassIndexes = new int[objectTags.length];
+    strings = new IdTable(1024);
+    classNames = new IdTable(1024);
+    threads = new IdTable(64);
+    classIndexes = new IdTable(1024);
+    classes = new HprofIndex.ClassInfo[1024];
+    rootTypes = new byte[1024];
+    rootIds = new long[1024];
+    rootThreadSerials = new int[1024];
+    rootTypesById = new IdTable(1024);
+    segmentStarts = new long[64];
+    segmentEnds = new long[64];
+
+    // Reused for every segment when indexing on the current thread.
+    Shard shard = threadCount > 1 ? null : new Shard();
+    while (buffer.hasRemaining()) {
+      int tag = readUnsignedByte();
+      // Skip the timestamp.
+      buffer.readInt();
+      long length = readUnsignedInt();
+      long recordPosition = buffer.position();
+      switch (tag) {
+        case STRING_IN_UTF8:
+          // The string table points to the record header so that the length can be read back.
+          strings.add(readId(), recordPosition - 9);
+          break;
+        case LOAD_CLASS:
+          // Class serial number.
+          buffer.readInt();
+          long classId = readId();
+          // Stack trace serial number.
+          buffer.readInt();
+          classNames.add(classId, readId());
+          break;
+        case HEAP_DUMP:
+        case HEAP_DUMP_SEGMENT:
+          if (shard != null) {
+            readHeapDump(recordPosition, recordPosition + length, shard);
+            merge(shard);
+            shard.clear();
+          } else {
+            addSegment(recordPosition, recordPosition + length);
+          }
+          break;
+        default:
+          break;
+      }
+      buffer.setPosition(recordPosition + length);
+    }
+    if (shard == null) {
+      readSegmentsInParallel();
+    }
+
+    objects.seal();
+    strings.seal();
+    classNames.seal();
+    threads.seal();
+    classIndexes.seal();
+    rootTypesById = null;
+    int objectCount = objects.size();
+    return new HprofIndex(buffer, idSize, objects,
+        ByteBuffer.wrap(Arrays.copyOf(objectTags, objectCount)),
+        IntBuffer.wrap(Arrays.copyOf(objectClassIndexes, objectCount)), strings, classNames, threads,
+        classIndexes, Arrays.copyOf(classes, classIndexes.size()), rootCount,
+        Arrays.copyOf(rootTypes, rootCount), Arrays.copyOf(rootIds, rootCount),
+        Arrays.copyOf(rootThreadSerials, rootCount));
+  }
+
+  private void readHeader() {
+    // Null terminated format name, eg "JAVA PROFILE 1.0.3".
+    while (buffer.readByte() != 0) {
+    }
+    idSize = buffer.readInt();
+    if (idSize != 4 && idSize != 8) {
+      throw new IllegalStateException("Unsupported id size " + idSize);
+    }
+    // Timestamp.
+    buffer.readLong();
+  }
+
+  private void addSegment(long start, long end) {
+    if (segmentCount == segmentStarts.length) {
+      segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+      segmentEnds = Arrays.copyOf(segmentEnds, segmentCount * 2);
+    }
+    segmentStarts[segmentCount] = start;
+    segmentEnds[segmentCount] = end;
+    segmentCount++;
+  }
+
+  /**
+   * Decodes groups of consecutive segments on worker threads, and merges the resulting shards in
+   * heap dump order on the current thread. Dense indexes are only assigned while merging, so the
+   * index is identical to the one built on a single thread.
+   */
+  private void readSegmentsInParallel() {
+    if (segmentCount == 0) {
+      return;
+    }
+    long totalLength = 0;
+    for (int i = 0; i < segmentCount; i++) {
+      totalLength += segmentEnds[i] - segmentStarts[i];
+    }
+    long taskLength = Math.max(1, totalLength / (threadCount * TASKS_PER_THREAD));
+    List<int[]> tasks = new ArrayList<>();
+    int firstSegment = 0;
+    long length = 0;
+    for (int i = 0; i < segmentCount; i++) {
+      length += segmentEnds[i] - segmentStarts[i];
+      if (length >= taskLength || i == segmentCount - 1) {
+        tasks.add(new int[] { firstSegment, i + 1 });
+        firstSegment = i + 1;
+        length = 0;
+      }
+    }
+
+    int workerCount = Math.min(threadCount, tasks.size());
+    // One buffer per worker rather than per task, workers take one when they start a task.
+    BlockingQueue<HprofBuffer> workerBuffers = new ArrayBlockingQueue<>(workerCount);
+    ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        workerBuffers.add(CompressedHprofFile.openBuffer(heapDumpFile, WORKER_CACHED_BLOCKS));
+      }
+      // Decoded shards hold a fraction of the heap dump objects until they're merged, so there's
+      // at most one task per worker plus the shard being merged.
+      Deque<Future<Shard>> pendingShards = new ArrayDeque<>();
+      int nextTask = 0;
+      while (nextTask < tasks.size() && pendingShards.size() < workerCount) {
+        int[] task = tasks.get(nextTask++);
+        pendingShards.add(executor.submit(readSegmentsTask(task[0], task[1], workerBuffers)));
+      }
+      while (!pendingShards.isEmpty()) {
+        Shard shard = pendingShards.poll().get();
+        // The worker that decoded that shard starts its next task while the shard is merged.
+        if (nextTask < tasks.size()) {
+          int[] task = tasks.get(nextTask++);
+          pendingShards.add(executor.submit(readSegmentsTask(task[0], task[1], workerBuffers)));
+        }
+        merge(shard);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+      try {
+        // Tasks give their buffer back even when they fail.
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (HprofBuffer workerBuffer : workerBuffers) {
+        CompressedHprofFile.closeBuffer(workerBuffer);
+      }
+    }
+  }
+
+  private Callable<Shard> readSegmentsTask(final int fromSegment, final int toSegment,
+      final BlockingQueue<HprofBuffer> workerBuffers) {
+    return new Callable<Shard>() {
+      @Override public Shard call() throws InterruptedException {
+        // There are as many buffers as worker threads, so one is always available.
+        HprofBuffer workerBuffer = workerBuffers.take();
+        try {
+          HprofIndexer segmentReader = new HprofIndexer(workerBuffer, idSize);
+          Shard shard = new Shard();
+          for (int i = fromSegment; i < toSegment; i++) {
+            segmentReader.readHeapDump(segmentStarts[i], segmentEnds[i], shard);
+          }
+          return shard;
+        } finally {
+          workerBuffers.add(workerBuffer);
+        }
+      }
+    };
+  }
+
+  /**
+   * Decodes the sub records of a heap dump segment into a shard. Only reads from the buffer, so
+   * that segments can be decoded on any thread.
+   */
+  private void readHeapDump(long startPosition, long endPosition, Shard shard) {
+    buffer.setPosition(startPosition);
+    while (buffer.position() < endPosition) {
+      long position = buffer.position();
+      int tag = readUnsignedByte();
+      switch (tag) {
+        case ROOT_UNKNOWN:
+          shard.addRoot(RootType.UNKNOWN, readId(), 0);
+          break;
+        case ROOT_JNI_GLOBAL:
+          shard.addRoot(RootType.NATIVE_STATIC, readId(), 0);
+          // JNI global ref id.
+          readId();
+          break;
+        case ROOT_JNI_LOCAL:
+          shard.addRoot(RootType.NATIVE_LOCAL, readId(), buffer.readInt());
+          // Frame number.
+          buffer.readInt();
+          break;
+        case ROOT_JAVA_FRAME:
+          shard.addRoot(RootType.JAVA_LOCAL, readId(), buffer.readInt());
+          // Frame number.
+          buffer.readInt();
+          break;
+        case ROOT_NATIVE_STACK:
+          shard.addRoot(RootType.NATIVE_STACK, readId(), buffer.readInt());
+          break;
+        case ROOT_STICKY_CLASS:
+          shard.addRoot(RootType.SYSTEM_CLASS, readId(), 0);
+          break;
+        case ROOT_THREAD_BLOCK:
+          shard.addRoot(RootType.THREAD_BLOCK, readId(), buffer.readInt());
+          break;
+        case ROOT_MONITOR_USED:
+          shard.addRoot(RootType.BUSY_MONITOR, readId(), 0);
+          break;
+        case ROOT_THREAD_OBJECT:
+          long threadId = readId();
+          int threadSerial = buffer.readInt();
+          // Stack trace serial number.
+          buffer.readInt();
+          shard.addThread(threadSerial, threadId);
+          break;
+        case ROOT_INTERNED_STRING:
+          shard.addRoot(RootType.INTERNED_STRING, readId(), 0);
+          break;
+        case ROOT_FINALIZING:
+          shard.addRoot(RootType.FINALIZING, readId(), 0);
+          break;
+        case ROOT_DEBUGGER:
+          shard.addRoot(RootType.DEBUGGER, readId(), 0);
+          break;
+        case ROOT_REFERENCE_CLEANUP:
+          shard.addRoot(RootType.REFERENCE_CLEANUP, readId(), 0);
+          break;
+        case ROOT_VM_INTERNAL:
+          shard.addRoot(RootType.VM_INTERNAL, readId(), 0);
+          break;
+        case ROOT_JNI_MONITOR:
+          shard.addRoot(RootType.NATIVE_MONITOR, readId(), buffer.readInt());
+          // Stack depth.
+          buffer.readInt();
+          break;
+        case ROOT_UNREACHABLE:
+          shard.addRoot(RootType.UNREACHABLE, readId(), 0);
+          break;
+        case CLASS_DUMP:
+          // The class layout is read when merging, once the class has its dense index.
+          shard.addObject(readId(), position, tag, 0);
+          skipClassDump();
+          break;
+        case INSTANCE_DUMP:
+          long instanceId = readId();
+          // Stack trace serial number.
+          buffer.readInt();
+          shard.addObject(instanceId, position, tag, readId());
+          skip(readUnsignedInt());
+          break;
+        case OBJECT_ARRAY_DUMP:
+          long arrayId = readId();
+          // Stack trace serial number.
+          buffer.readInt();
+          long arrayLength = readUnsignedInt();
+          shard.addObject(arrayId, position, tag, readId());
+          skip(arrayLength * idSize);
+          break;
+        case PRIMITIVE_ARRAY_DUMP:
+          shard.addObject(readId(), position, tag, 0);
+          // Stack trace serial number.
+          buffer.readInt();
+          long primitiveArrayLength = readUnsignedInt();
+          int type = readUnsignedByte();
+          skip(primitiveArrayLength * sizeOf(type));
+          break;
+        case PRIMITIVE_ARRAY_NODATA:
+          shard.addObject(readId(), position, tag, 0);
+          // Stack trace serial number, length and type.
+          skip(4 + 4 + 1);
+          break;
+        case HEAP_DUMP_INFO:
+          // Heap id and heap name string id. All heaps share the same id space.
+          buffer.readInt();
+          readId();
+          break;
+        default:
+          throw new IllegalStateException(
+              "Unknown heap dump sub record tag " + tag + " at position " + position);
+      }
+    }
+  }
+
+  /** Adds the content of a shard to the tables, in the order it was decoded. */
+  private void merge(Shard shard) {
+    for (int i = 0; i < shard.objectCount; i++) {
+      int tag = shard.objectTags[i] & 0xff;
+      switch (tag) {
+        case CLASS_DUMP:
+          readClassDump(shard.objectPositions[i]);
+          break;
+        case INSTANCE_DUMP:
+        case OBJECT_ARRAY_DUMP:
+          addObject(shard.objectIds[i], shard.objectPositions[i], tag,
+              classIndex(shard.objectClassIds[i]));
+          break;
+        default:
+          addObject(shard.objectIds[i], shard.objectPositions[i], tag, -1);
+          break;
+      }
+    }
+    if (rootCount + shard.rootCount > rootIds.length) {
+      int newCapacity = Math.max(rootCount * 2, rootCount + shard.rootCount);
+      rootTypes = Arrays.copyOf(rootTypes, newCapacity);
+      rootIds = Arrays.copyOf(rootIds, newCapacity);
+      rootThreadSerials = Arrays.copyOf(rootThreadSerials, newCapacity);
+    }
+    for (int i = 0; i < shard.rootCount; i++) {
+      long rootId = shard.rootIds[i];
+      long typeBit = 1L << shard.rootTypes[i];
+      int index = rootTypesById.indexOf(rootId);
+      long addedTypes = index == -1 ? 0 : rootTypesById.value(index);
+      if ((addedTypes & typeBit) != 0) {
+        continue;
+      }
+      rootTypesById.add(rootId, addedTypes | typeBit);
+      rootTypes[rootCount] = shard.rootTypes[i];
+      rootIds[rootCount] = rootId;
+      rootThreadSerials[rootCount] = shard.rootThreadSerials[i];
+      rootCount++;
+    }
+    for (int i = 0; i < shard.threadCount; i++) {
+      threads.add(shard.threadSerials[i], shard.threadIds[i]);
+    }
+  }
+
+  private void readClassDump(long position) {
+    // Skip the sub record tag.
+    buffer.setPosition(position + 1);
+    long classId = readId();
+    int classIndex = classIndex(classId);
+    addObject(classId, position, CLASS_DUMP, classIndex);
+    // Stack trace serial number.
+    buffer.readInt();
+    long superClassId = readId();
+    // Class loader, signers, protection domain and two reserved ids.
+    skip(5L * idSize);
+    int instanceSize = buffer.readInt();
+
+    skipConstantPool();
+
+    int staticFieldCount = readUnsignedShort();
+    long[] staticFieldNameIds = new long[staticFieldCount];
+    byte[] staticFieldTypes = new byte[staticFieldCount];
+    long[] staticValuePositions = new long[staticFieldCount];
+    for (int i = 0; i < staticFieldCount; i++) {
+      staticFieldNameIds[i] = readId();
+      int type = readUnsignedByte();
+      staticFieldTypes[i] = (byte) type;
+      staticValuePositions[i] = buffer.position();
+      skip(sizeOf(type));
+    }
+
+    int fieldCount = readUnsignedShort();
+    long[] fieldNameIds = new long[fieldCount];
+    byte[] fieldTypes = new byte[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      fieldNameIds[i] = readId();
+      fieldTypes[i] = (byte) readUnsignedByte();
+    }
+    classes[classIndex] =
+        new HprofIndex.ClassInfo(classIndex, classId, superClassId, instanceSize,
+            staticFieldNameIds, staticFieldTypes, staticValuePositions, fieldNameIds, fieldTypes);
+  }
+
+  /** Skips a class dump, starting right after the class id. */
+  private void skipClassDump() {
+    // Stack trace serial number, super class, class loader, signers, protection domain, two
+    // reserved ids and instance size.
+    skip(4 + 6L * idSize + 4);
+    skipConstantPool();
+    int staticFieldCount = readUnsignedShort();
+    for (int i = 0; i < staticFieldCount; i++) {
+      readId();
+      skip(sizeOf(readUnsignedByte()));
+    }
+    int fieldCount = readUnsignedShort();
+    skip(fieldCount * (idSize + 1L));
+  }
+
+  private void skipConstantPool() {
+    int constantPoolCount = readUnsignedShort();
+    for (int i = 0; i < constantPoolCount; i++) {
+      // Constant pool index.
+      buffer.readShort();
+      skip(sizeOf(readUnsignedByte()));
+    }
+  }
+
+  /**
+   * Classes get a dense index the first time they're seen, which may be before their class dump.
+   */
+  private int classIndex(long classId) {
+    int classIndex = classIndexes.indexOf(classId);
+    if (classIndex != -1) {
+      return classIndex;
+    }
+    classIndex = classIndexes.add(classId, 0);
+    if (classIndex == classes.length) {
+      classes = Arrays.copyOf(classes, classIndex * 2);
+    }
+    return classIndex;
+  }
+
+  private void addObject(long id, long position, int tag, int classIndex) {
+    int index = objects.add(id, position);
+    if (index == objectTags.length) {
+      int newCapacity = index + (index >> 1);
+      objectTags = Arrays.copyOf(objectTags, newCapacity);
+      objectClassIndexes = Arrays.copyOf(objectClassIndexes, newCapacity);
+    }
+    objectTags[index] = (byte) tag;
+    objectClassIndexes[index] = classIndex;
+  }
+
+  private int sizeOf(int type) {
+    return HprofIndex.sizeOf(type, idSize);
+  }
+
+  private long readId() {
+    return idSize == 4 ? buffer.readInt() & 0xffffffffL : buffer.readLong();
+  }
+
+  private int readUnsignedByte() {
+    return buffer.readByte() & 0xff;
+  }
+
+  private int readUnsignedShort() {
+    return buffer.readShort() & 0xffff;
+  }
+
+  private long readUnsignedInt() {
+    return buffer.readInt() & 0xffffffffL;
+  }
+
+  private void skip(long byteCount) {
+    buffer.setPosition(buffer.position() + byteCount);
+  }
+
+  /**
+   * Sub records decoded from consecutive heap dump segments, in heap dump order. Classes are
+   * referenced by id since dense class indexes depend on the order of all previous segments.
+   */
+  private static final class Shard {
+    int objectCount;
+    long[] objectIds = new long[1024];
+    long[] objectPositions = new long[1024];
+    byte[] objectTags = new byte[1024];
+    long[] objectClassIds = new long[1024];
+
+    int rootCount;
+    byte[] rootTypes = new byte[256];
+    long[] rootIds = new long[256];
+    int[] rootThreadSerials = new int[256];
+
+    int threadCount;
+    int[] threadSerials = new int[16];
+    long[] threadIds = new long[16];
+
+    void addObject(long id, long position, int tag, long classId) {
+      if (objectCount == objectIds.length) {
+        int newCapacity = objectCount * 2;
+        objectIds = Arrays.copyOf(objectIds, newCapacity);
+        objectPositions = Arrays.copyOf(objectPositions, newCapacity);
+        objectTags = Arrays.copyOf(objectTags, newCapacity);
+        objectClassIds = Arrays.copyOf(objectClassIds, newCapacity);
+      }
+      objectIds[objectCount] = id;
+      objectPositions[objectCount] = position;
+      objectTags[objectCount] = (byte) tag;
+      objectClassIds[objectCount] = classId;
+      objectCount++;
+    }
+
+    void addRoot(RootType rootType, long id, int threadSerial) {
+      if (rootCount == rootIds.length) {
+        int newCapacity = rootCount * 2;
+        rootTypes = Arrays.copyOf(rootTypes, newCapacity);
+        rootIds = Arrays.copyOf(rootIds, newCapacity);
+        rootThreadSerials = Arrays.copyOf(rootThreadSerials, newCapacity);
+      }
+      rootTypes[rootCount] = (byte) rootType.ordinal();
+      rootIds[rootCount] = id;
+      rootThreadSerials[rootCount] = threadSerial;
+      rootCount++;
+    }
+
+    void addThread(int threadSerial, long threadId) {
+      if (threadCount == threadIds.length) {
+        threadSerials = Arrays.copyOf(threadSerials, threadCount * 2);
+        threadIds = Arrays.copyOf(threadIds, threadCount * 2);
+      }
+      threadSerials[threadCount] = threadSerial;
+      threadIds[threadCount] = threadId;
+      threadCount++;
+    }
+
+    void clear() {
+      objectCount = 0;
+      rootCount = 0;
+      threadCount = 0;
+    }
+  }
+}
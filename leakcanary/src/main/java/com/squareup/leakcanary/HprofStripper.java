@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP_SEGMENT;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_DUMP;
+
+import androidx.annotation.NonNull;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Rewrites a heap dump with the content of its primitive arrays (bitmap pixels, byte buffers...)
+ * zeroed. That content is most of the size of a heap dump and is not needed to find leak traces.
+ *
+ * Stripped arrays keep their records, type and length, so a stripped heap dump has the same size
+ * and layout and can still be opened by Android Studio and other perflib based tools. The zeroed
+ * content deflates to almost nothing, which is what makes a stripped heap dump small once
+ * compressed with {@link CompressedHprofFile}. The arrays backing strings are kept since leak
+ * traces display them.
+ */
+public final class HprofStripper {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Writes a stripped copy of heapDumpFile to strippedFile. Heap dumps should be stripped before
+   * being compressed with {@link CompressedHprofFile}.
+   */
+  public static void strip(@NonNull File heapDumpFile, @NonNull File strippedFile)
+      throws IOException {
+    if (CompressedHprofFile.isCompressed(heapDumpFile)) {
+      throw new IllegalArgumentException("Can't strip a compressed heap dump: " + heapDumpFile);
+    }
+    MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+    try {
+      HprofIndex index = HprofIndexFile.open(heapDumpFile, buffer);
+      new HprofStripper(heapDumpFile, buffer, index).write(strippedFile);
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+
+  /** Replaces heapDumpFile with a stripped copy. */
+  public static void strip(@NonNull File heapDumpFile) throws IOException {
+    File strippedFile = new File(heapDumpFile.getPath() + ".tmp");
+    try {
+      strip(heapDumpFile, strippedFile);
+    } catch (IOException | RuntimeException e) {
+      HprofIndexFile.delete(strippedFile);
+      throw e;
+    }
+    // The index and the dominator tree describe the original heap dump.
+    HprofIndexFile.delete(HprofIndexFile.indexFile(heapDumpFile));
+    HprofIndexFile.delete(DominatorTreeFile.dominatorsFile(heapDumpFile));
+    if (!strippedFile.renameTo(heapDumpFile)) {
+      HprofIndexFile.delete(strippedFile);
+      throw new IOException("Could not rename " + strippedFile + " to " + heapDumpFile);
+    }
+  }
+
+  private final File heapDumpFile;
+  private final HprofBuffer buffer;
+  private final HprofIndex index;
+  /** Bitset of the object indexes of the primitive arrays that are not stripped. */
+  private final long[] keptArrays;
+  private final byte[] copyBuffer;
+  private final byte[] zeros;
+
+  private HprofStripper(File heapDumpFile, HprofBuffer buffer, HprofIndex index) {
+    this.heapDumpFile = heapDumpFile;
+    this.buffer = buffer;
+    this.index = index;
+    keptArrays = new long[(index.objectCount() + 63) >>> 6];
+    copyBuffer = new byte[BUFFER_SIZE];
+    zeros = new byte[BUFFER_SIZE];
+    keepStringArrays();
+  }
+
+  private void keepStringArrays() {
+    HprofIndex.ClassInfo stringClass = index.stringClass;
+    if (stringClass == null) {
+      return;
+    }
+    for (long string : index.instancesOf(stringClass)) {
+      if (!index.hasField(string, "value")) {
+        continue;
+      }
+      int arrayIndex = index.objectIndex(index.referenceField(string, "value"));
+      if (arrayIndex != -1) {
+        keptArrays[arrayIndex >>> 6] |= 1L << arrayIndex;
+      }
+    }
+  }
+
+  private void write(File strippedFile) throws IOException {
+    RandomAccessFile source = new RandomAccessFile(heapDumpFile, "r");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(strippedFile), BUFFER_SIZE);
+    try {
+      FileChannel channel = source.getChannel();
+      long fileLength = channel.size();
+
+      // Null terminated format name, id size and timestamp.
+      buffer.setPosition(0);
+      while (buffer.readByte() != 0) {
+      }
+      long position = buffer.position() + 4 + 8;
+      copy(channel, 0, position, out);
+
+      int objectIndex = 0;
+      while (position < fileLength) {
+        buffer.setPosition(position);
+        int tag = buffer.readByte() & 0xff;
+        // Skip the timestamp.
+        buffer.readInt();
+        long length = buffer.readInt() & 0xffffffffL;
+        long bodyPosition = position + 9;
+        long endPosition = bodyPosition + length;
+        if (tag == HEAP_DUMP || tag == HEAP_DUMP_SEGMENT) {
+          // Objects are indexed in heap dump order.
+          int firstObjectIndex = objectIndex;
+          while (objectIndex < index.objectCount()
+              && index.objectPosition(objectIndex) < endPosition) {
+            objectIndex++;
+          }
+          copy(channel, position, bodyPosition, out);
+          stripArrays(channel, firstObjectIndex, objectIndex, bodyPosition, endPosition, out);
+        } else {
+          copy(channel, position, endPosition, out);
+        }
+        position = endPosition;
+      }
+    } finally {
+      try {
+        out.close();
+      } finally {
+        source.close();
+      }
+    }
+  }
+
+  /** Copies a heap dump segment, zeroing the content of the primitive arrays it contains. */
+  private void stripArrays(FileChannel channel, int fromObjectIndex, int toObjectIndex,
+      long startPosition, long endPosition, OutputStream out) throws IOException {
+    long cursor = startPosition;
+    int headerSize = 1 + index.idSize + 4 + 4 + 1;
+    for (int i = fromObjectIndex; i < toObjectIndex; i++) {
+      if (index.tagAt(i) != PRIMITIVE_ARRAY_DUMP || (keptArrays[i >>> 6] & (1L << i)) != 0) {
+        continue;
+      }
+      long position = index.objectPosition(i);
+      // Positions only go backward for duplicated ids, in which case the record is copied as is.
+      if (position < cursor) {
+        continue;
+      }
+      buffer.setPosition(position + 1 + index.idSize + 4);
+      long length = buffer.readInt() & 0xffffffffL;
+      int type = buffer.readByte() & 0xff;
+      long contentLength = length * index.sizeOf(type);
+      copy(channel, cursor, position + headerSize, out);
+      writeZeros(out, contentLength);
+      cursor = position + headerSize + contentLength;
+    }
+    copy(channel, cursor, endPosition, out);
+  }
+
+  private void copy(FileChannel channel, long startPosition, long endPosition, OutputStream out)
+      throws IOException {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(copyBuffer);
+    long position = startPosition;
+    while (position < endPosition) {
+      byteBuffer.clear();
+      byteBuffer.limit((int) Math.min(copyBuffer.length, endPosition - position));
+      int read = channel.read(byteBuffer, position);
+      if (read == -1) {
+        throw new IOException("Unexpected end of heap dump at " + position);
+      }
+      out.write(copyBuffer, 0, read);
+      position += read;
+    }
+  }
+
+  private void writeZeros(OutputStream out, long byteCount) throws IOException {
+    while (byteCount > 0) {
+      int length = (int) Math.min(zeros.length, byteCount);
+      out.write(zeros, 0, length);
+      byteCount -= length;
+    }
+  }
+}
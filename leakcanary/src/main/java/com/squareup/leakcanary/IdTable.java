@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Not thread safe.
+ *
+ * Maps heap dump ids to a long value (usually a position in the heap dump) without boxing.
+ * Entries are stored in parallel primitive arrays in insertion order, which gives each id a
+ * dense index, and an open addressing table with linear probing maps ids to that index.
+ *
+ * The arrays are held as buffers so that a table read back from a {@link HprofIndexFile} can stay
+ * memory mapped. Only tables built in memory can be added to or written.
+ */
+final class IdTable {
+
+  private static final int MIN_CAPACITY = 16;
+  /** Largest power of two that can be an int array length. */
+  static final int MAX_SLOT_COUNT = 1 << 30;
+
+  private LongBuffer ids;
+  private LongBuffer values;
+  /** Dense index + 1 for each slot, 0 for an empty slot. Size is a power of two. */
+  private IntBuffer slots;
+  private int shift;
+  private int size;
+
+  IdTable(int expectedSize) {
+    int capacity = Math.max(expectedSize, MIN_CAPACITY);
+    ids = LongBuffer.wrap(new long[capacity]);
+    values = LongBuffer.wrap(new long[capacity]);
+    allocateSlots(capacity);
+  }
+
+  /**
+   * Adds an id, or replaces its value if it's already in the table.
+   *
+   * @return the dense index of that id.
+   */
+  int add(long id, long value) {
+    int slot = slotOf(id);
+    int index = slots.get(slot) - 1;
+    if (index != -1) {
+      values.put(index, value);
+      return index;
+    }
+    // At least one slot stays empty, otherwise probing for a missing id would never end.
+    if (size == MAX_SLOT_COUNT - 1) {
+      throw new IllegalStateException("Too many ids: " + size);
+    }
+    if (size == ids.capacity()) {
+      int newCapacity = size + (size >> 1);
+      ids = LongBuffer.wrap(Arrays.copyOf(ids.array(), newCapacity));
+      values = LongBuffer.wrap(Arrays.copyOf(values.array(), newCapacity));
+    }
+    index = size++;
+    ids.put(index, id);
+    values.put(index, value);
+    if (size > maxSize() && slots.capacity() < MAX_SLOT_COUNT) {
+      allocateSlots(size * 2);
+      for (int i = 0; i < size; i++) {
+        slots.put(slotOf(ids.get(i)), i + 1);
+      }
+    } else {
+      slots.put(slot, index + 1);
+    }
+    return index;
+  }
+
+  private IdTable(LongBuffer ids, LongBuffer values, IntBuffer slots) {
+    this.ids = ids;
+    this.values = values;
+    this.slots = slots;
+    shift = 64 - Integer.numberOfTrailingZeros(slots.capacity());
+    size = ids.capacity();
+  }
+
+  /** Maps the arrays of the table instead of loading them, no rehashing needed. */
+  static IdTable read(HprofIndexFile.Input input) throws IOException {
+    LongBuffer ids = input.mapLongs();
+    LongBuffer values = input.mapLongs();
+    IntBuffer slots = input.mapInts();
+    if (values.capacity() != ids.capacity() || Integer.bitCount(slots.capacity()) != 1
+        || slots.capacity() <= ids.capacity()) {
+      throw new IOException("Corrupted id table");
+    }
+    return new IdTable(ids, values, slots);
+  }
+
+  /** Writes the entries and the hash slots, so that reading it back doesn't need rehashing. */
+  void write(HprofIndexFile.Output output) throws IOException {
+    output.writeLongs(ids.array(), size);
+    output.writeLongs(values.array(), size);
+    output.writeInts(slots.array(), slots.capacity());
+  }
+
+  /** Releases the unused capacity once all the entries have been added. */
+  void seal() {
+    ids = LongBuffer.wrap(Arrays.copyOf(ids.array(), size));
+    values = LongBuffer.wrap(Arrays.copyOf(values.array(), size));
+  }
+
+  /** Returns the dense index of that id, or -1 if the id is not in the table. */
+  int indexOf(long id) {
+    return slots.get(slotOf(id)) - 1;
+  }
+
+  long id(int index) {
+    return ids.get(index);
+  }
+
+  long value(int index) {
+    return values.get(index);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns the slot holding that id, or the empty slot where it should be inserted. */
+  private int slotOf(long id) {
+    int mask = slots.capacity() - 1;
+    // Ids are addresses which are aligned, so the low bits carry little entropy. Fibonacci
+    // hashing spreads them using the high bits of the product.
+    int slot = (int) ((id * 0x9E3779B97F4A7C15L) >>> shift);
+    while (true) {
+      int index = slots.get(slot) - 1;
+      if (index == -1 || ids.get(index) == id) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private int maxSize() {
+    // 0.75 load factor.
+    return slots.capacity() - (slots.capacity() >> 2);
+  }
+
+  private void allocateSlots(int expectedSize) {
+    int capacity = slotCount(expectedSize);
+    slots = IntBuffer.wrap(new int[capacity]);
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+  }
+
+  /**
+   * Number of hash slots for that many ids, a power of two above the 0.75 load factor and at most
+   * {@link #MAX_SLOT_COUNT}. Past that, the load factor goes up until the table is full.
+   */
+  static int slotCount(int expectedSize) {
+    long minCapacity = Math.max(expectedSize, MIN_CAPACITY) * 4L / 3;
+    return Integer.highestOneBit((int) Math.min(minCapacity, MAX_SLOT_COUNT >> 1)) << 1;
+  }
+}
@@ -24,11 +24,14 @@ import java.lang.ref.WeakReference;
 final class KeyedWeakReference extends WeakReference<Object> {
   public final String key;
   public final String name;
+  /** {@link System#nanoTime()} when the referent started being watched. */
+  public final long watchStartNanoTime;
 
-  KeyedWeakReference(Object referent, String key, String name,
+  KeyedWeakReference(Object referent, String key, String name, long watchStartNanoTime,
       ReferenceQueue<Object> referenceQueue) {
     super(checkNotNull(referent, "referent"), checkNotNull(referenceQueue, "referenceQueue"));
     this.key = checkNotNull(key, "key");
     this.name = checkNotNull(name, "name");
+    this.watchStartNanoTime = watchStartNanoTime;
   }
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Not thread safe.
+ *
+ * The {@link KeyedWeakReference} instances of a heap dump, read in a single pass over the weak
+ * references. Keys are matched on their hash first, so only the keys with the same hash are
+ * decoded.
+ */
+final class KeyedWeakReferenceTable {
+
+  /** Watch start time of references dumped before the field existed. */
+  static final long UNKNOWN_WATCH_START = -1;
+
+  private final HprofIndex index;
+  private final int size;
+  private final long[] referentIds;
+  private final long[] keyIds;
+  /** 0 for references dumped before the name field existed. */
+  private final long[] nameIds;
+  private final long[] watchStartNanoTimes;
+  private final int[] keyHashes;
+
+  private KeyedWeakReferenceTable(HprofIndex index, long[] references) {
+    HprofIndex.ClassInfo refClass = index.keyedWeakReferenceClass;
+    int keyOffset = checkFieldOffset(index, refClass, "key");
+    int referentOffset = checkFieldOffset(index, refClass, "referent");
+    int nameOffset = index.fieldOffset(refClass, "name");
+    int watchStartOffset = index.fieldOffset(refClass, "watchStartNanoTime");
+
+    this.index = index;
+    referentIds = new long[references.length];
+    keyIds = new long[references.length];
+    nameIds = new long[references.length];
+    watchStartNanoTimes = new long[references.length];
+    keyHashes = new int[references.length];
+    int size = 0;
+    for (long reference : references) {
+      long position = index.fieldsPosition(reference);
+      long keyId = index.readId(position + keyOffset);
+      if (!index.contains(keyId)) {
+        continue;
+      }
+      keyIds[size] = keyId;
+      keyHashes[size] = index.stringHash(keyId);
+      referentIds[size] = index.readId(position + referentOffset);
+      nameIds[size] = nameOffset == -1 ? 0 : index.readId(position + nameOffset);
+      if (watchStartOffset == -1) {
+        watchStartNanoTimes[size] = UNKNOWN_WATCH_START;
+      } else {
+        index.buffer.setPosition(position + watchStartOffset);
+        watchStartNanoTimes[size] = index.buffer.readLong();
+      }
+      size++;
+    }
+    this.size = size;
+  }
+
+  static KeyedWeakReferenceTable read(HprofIndex index) {
+    HprofIndex.ClassInfo refClass = index.keyedWeakReferenceClass;
+    if (refClass == null) {
+      throw new IllegalStateException(
+          "Could not find the " + KeyedWeakReference.class.getName() + " class in the heap dump.");
+    }
+    return new KeyedWeakReferenceTable(index, index.instancesOf(refClass));
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns the index of the reference with that key, or -1 if there's none. */
+  int indexOf(String key) {
+    int hash = key.hashCode();
+    for (int i = 0; i < size; i++) {
+      if (keyHashes[i] == hash && key.equals(index.asString(keyIds[i]))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  String key(int i) {
+    return index.asString(keyIds[i]);
+  }
+
+  /** All the keys, in heap dump order. Decodes every key. */
+  List<String> keys() {
+    List<String> keys = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      keys.add(key(i));
+    }
+    return keys;
+  }
+
+  String name(int i) {
+    return index.contains(nameIds[i]) ? index.asString(nameIds[i]) : "(No name field)";
+  }
+
+  /** Not in the heap dump if the reference was cleared. */
+  long referentId(int i) {
+    return referentIds[i];
+  }
+
+  /** {@link #UNKNOWN_WATCH_START} for references dumped before the field existed. */
+  long watchStartNanoTime(int i) {
+    return watchStartNanoTimes[i];
+  }
+
+  private static int checkFieldOffset(HprofIndex index, HprofIndex.ClassInfo classInfo,
+      String fieldName) {
+    int offset = index.fieldOffset(classInfo, fieldName);
+    if (offset == -1) {
+      throw new IllegalArgumentException("Field " + fieldName + " does not exists");
+    }
+    return offset;
+  }
+}
@@ -130,6 +130,13 @@ public final class LeakCanary {
       if (result.retainedHeapSize != AnalysisResult.RETAINED_HEAP_SKIPPED) {
         info += "* Retaining: " + formatShortFileSize(context, result.retainedHeapSize) + ".\n";
       }
+      for (int i = 0; i < result.alternativeLeakTraces.size(); i++) {
+        info += "* Alternative path " + (i + 2) + ":\n" + result.alternativeLeakTraces.get(i)
+            + "\n";
+      }
+      if (!result.skippedSteps.isEmpty()) {
+        info += "* Skipped to save memory or time: " + result.skippedSteps + ".\n";
+      }
       if (detailed) {
         detailedString = "\n* Details:\n" + result.leakTrace.toDetailedString();
       }
@@ -15,16 +15,15 @@
  */
 package com.squareup.leakcanary;
 
-import com.squareup.haha.perflib.Instance;
-
 class LeakNode {
   /** May be null. */
   final Exclusion exclusion;
-  final Instance instance;
+  /** Id of the instance in the heap dump. */
+  final long instance;
   final LeakNode parent;
   final LeakReference leakReference;
 
-  LeakNode(Exclusion exclusion, Instance instance, LeakNode parent, LeakReference leakReference) {
+  LeakNode(Exclusion exclusion, long instance, LeakNode parent, LeakReference leakReference) {
     this.exclusion = exclusion;
     this.instance = instance;
     this.parent = parent;
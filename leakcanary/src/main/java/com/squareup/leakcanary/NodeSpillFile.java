@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Not thread safe. Records can be read from several threads as long as none is added meanwhile,
+ * which {@link ShortestPathFinder} ensures by only adding nodes once the workers reading a level
+ * are done.
+ *
+ * The nodes of a {@link ShortestPathFinder} search tree that don't fit in memory, stored as fixed
+ * width records in a scratch file next to the heap dump. The file is mapped in pages as it grows,
+ * so only the pages in use take memory, and the OS can drop them.
+ *
+ * Each record is the object index, the parent node, the edge slot, the depth, the exclusion id and
+ * the edge type of a node.
+ */
+final class NodeSpillFile implements Closeable {
+
+  static final String SPILL_SUFFIX = ".nodes";
+
+  private static final int RECORD_SIZE = 20;
+  private static final int PAGE_SHIFT = 20;
+  /** 1M records, 20 MB. */
+  private static final int RECORDS_PER_PAGE = 1 << PAGE_SHIFT;
+  private static final int PAGE_MASK = RECORDS_PER_PAGE - 1;
+  private static final long PAGE_SIZE = (long) RECORDS_PER_PAGE * RECORD_SIZE;
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final List<MappedByteBuffer> pages = new ArrayList<>();
+  private int size;
+
+  static File spillFile(File heapDumpFile) {
+    return new File(heapDumpFile.getParentFile(), heapDumpFile.getName() + SPILL_SUFFIX);
+  }
+
+  NodeSpillFile(File heapDumpFile) throws IOException {
+    file = spillFile(heapDumpFile);
+    // Left by an analysis that crashed, "rw" would reuse it as is.
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not delete " + file);
+    }
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    channel = randomAccessFile.getChannel();
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** @return the index of the record. */
+  int add(int objectIndex, int parent, byte edgeType, int edgeSlot, int exclusionId, int depth)
+      throws IOException {
+    int record = size;
+    int page = record >>> PAGE_SHIFT;
+    if (page == pages.size()) {
+      pages.add(channel.map(FileChannel.MapMode.READ_WRITE, page * PAGE_SIZE, PAGE_SIZE));
+    }
+    MappedByteBuffer buffer = pages.get(page);
+    int position = (record & PAGE_MASK) * RECORD_SIZE;
+    buffer.putInt(position, objectIndex);
+    buffer.putInt(position + 4, parent);
+    buffer.putInt(position + 8, edgeSlot);
+    buffer.putInt(position + 12, depth);
+    buffer.putShort(position + 16, (short) exclusionId);
+    buffer.put(position + 18, edgeType);
+    size++;
+    return record;
+  }
+
+  int objectIndex(int record) {
+    return page(record).getInt(position(record));
+  }
+
+  int parent(int record) {
+    return page(record).getInt(position(record) + 4);
+  }
+
+  int edgeSlot(int record) {
+    return page(record).getInt(position(record) + 8);
+  }
+
+  int depth(int record) {
+    return page(record).getInt(position(record) + 12);
+  }
+
+  /** Between -1 for no exclusion and {@link Short#MAX_VALUE}. */
+  int exclusionId(int record) {
+    return page(record).getShort(position(record) + 16);
+  }
+
+  byte edgeType(int record) {
+    return page(record).get(position(record) + 18);
+  }
+
+  /** Drops all the records and keeps the pages mapped for the next search. */
+  void clear() {
+    size = 0;
+  }
+
+  /** Closes and deletes the file. The pages are unmapped once garbage collected. */
+  @Override public void close() {
+    pages.clear();
+    try {
+      randomAccessFile.close();
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not close %s", file.getPath());
+    }
+    if (file.exists() && !file.delete()) {
+      CanaryLog.d("Could not delete %s", file.getPath());
+    }
+  }
+
+  private MappedByteBuffer page(int record) {
+    return pages.get(record >>> PAGE_SHIFT);
+  }
+
+  private static int position(int record) {
+    return (record & PAGE_MASK) * RECORD_SIZE;
+  }
+}
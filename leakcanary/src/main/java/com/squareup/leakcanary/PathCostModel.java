@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Costs of the gc roots and references of a weighted path search, see
+ * {@link PathFinderConfig.Builder#costModel(PathCostModel)}. The search finds the paths with the
+ * lowest total cost rather than the fewest references, eg to avoid system class roots or to prefer
+ * paths through the classes of the app.
+ *
+ * Reference costs are asked once per class and reference name, so they can't depend on the
+ * instance.
+ */
+public interface PathCostModel {
+
+  int MAX_COST = 0xffff;
+
+  /** Every root and reference costs 1, which finds paths with the fewest references. */
+  PathCostModel UNIT = new PathCostModel() {
+    @Override public int rootCost(@NonNull String rootType, @NonNull String className) {
+      return 1;
+    }
+
+    @Override public int referenceCost(@NonNull LeakTraceElement.Type type,
+        @NonNull String holderClassName, @Nullable String referenceName) {
+      return 1;
+    }
+  };
+
+  /**
+   * @param rootType name of the type of the gc root in the heap dump, eg SYSTEM_CLASS, JAVA_LOCAL
+   * or NATIVE_STATIC.
+   * @param className class name of the object held by the root, which is the class itself for
+   * SYSTEM_CLASS roots.
+   * @return between 0 and {@link #MAX_COST}.
+   */
+  int rootCost(@NonNull String rootType, @NonNull String className);
+
+  /**
+   * @param holderClassName class name of the object holding the reference: the class itself for a
+   * static field, the array class for an array entry, the thread class for a local variable.
+   * @param referenceName the field name, null for array entries and local variables.
+   * @return between 0 and {@link #MAX_COST}.
+   */
+  int referenceCost(@NonNull LeakTraceElement.Type type, @NonNull String holderClassName,
+      @Nullable String referenceName);
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Options of the search for the shortest strong reference path from the gc roots to a leaking
+ * instance. Whatever the options, excluded references are only followed if there's no path
+ * without them.
+ */
+public final class PathFinderConfig {
+
+  public static final PathFinderConfig DEFAULT = builder().build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public enum Direction {
+    /** Follows references from all the gc roots until the leaking instance is found. */
+    FROM_GC_ROOTS,
+    /**
+     * Follows references backward from the leaking instance until a gc root is found. The
+     * referrers of all the objects are indexed first, once per heap dump, which uses an int per
+     * object and an int per reference. Leaks close to a gc root are then found without going
+     * through the rest of the heap.
+     */
+    FROM_LEAKING_INSTANCE,
+  }
+
+  public final Direction direction;
+  /**
+   * Number of threads reading the objects of a search from the gc roots. Each level of the
+   * search is read in parallel and merged in order, so the paths are the same as on a single
+   * thread. Each thread opens the heap dump again.
+   */
+  public final int threadCount;
+  /**
+   * Time after which a search stops and returns the best paths found so far, {@link Long#MAX_VALUE}
+   * for no limit. The clock is read every few objects, so a search can run a bit longer.
+   */
+  public final long maxDurationMs;
+  /**
+   * Number of nodes in the search tree after which a search stops and returns the best paths
+   * found so far, {@link Integer#MAX_VALUE} for no limit. Each node uses about 20 bytes.
+   */
+  public final int maxNodes;
+  /**
+   * Number of references after which a path is not followed further, {@link Integer#MAX_VALUE}
+   * for no limit. Leaking references further than that from a gc root are not found.
+   */
+  public final int maxDepth;
+  /**
+   * Costs of a weighted search, which finds the paths with the lowest cost rather than the fewest
+   * references. Null for an unweighted search, unless {@link #pathCount} is more than 1.
+   */
+  @Nullable public final PathCostModel costModel;
+  /**
+   * Number of paths to find for each leaking instance, each through a different last reference
+   * to it, cheapest first. More than one path requires a weighted search, which then runs until
+   * enough referrers are found or until the whole heap is visited.
+   */
+  public final int pathCount;
+  /**
+   * Number of nodes of the search tree kept in memory, {@link Integer#MAX_VALUE} to keep them all.
+   * The next nodes are written to a scratch file next to the heap dump, 20 bytes each, which is
+   * mapped as it grows and deleted once the paths are found. Lets a search finish on heap dumps
+   * with more objects than the heap of the analyzer can track.
+   */
+  public final int maxNodesInMemory;
+
+  PathFinderConfig(Builder builder) {
+    this.direction = builder.direction;
+    this.threadCount = builder.threadCount;
+    this.maxDurationMs = builder.maxDurationMs;
+    this.maxNodes = builder.maxNodes;
+    this.maxDepth = builder.maxDepth;
+    this.costModel = builder.costModel;
+    this.pathCount = builder.pathCount;
+    this.maxNodesInMemory = builder.maxNodesInMemory;
+  }
+
+  /** Whether paths are searched with {@link #costModel}, {@link PathCostModel#UNIT} by default. */
+  boolean isWeighted() {
+    return costModel != null || pathCount > 1;
+  }
+
+  public Builder buildUpon() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    Direction direction;
+    int threadCount;
+    long maxDurationMs;
+    int maxNodes;
+    int maxDepth;
+    PathCostModel costModel;
+    int pathCount;
+    int maxNodesInMemory;
+
+    Builder() {
+      direction = Direction.FROM_GC_ROOTS;
+      threadCount = 1;
+      maxDurationMs = Long.MAX_VALUE;
+      maxNodes = Integer.MAX_VALUE;
+      maxDepth = Integer.MAX_VALUE;
+      pathCount = 1;
+      maxNodesInMemory = Integer.MAX_VALUE;
+    }
+
+    Builder(PathFinderConfig config) {
+      this.direction = config.direction;
+      this.threadCount = config.threadCount;
+      this.maxDurationMs = config.maxDurationMs;
+      this.maxNodes = config.maxNodes;
+      this.maxDepth = config.maxDepth;
+      this.costModel = config.costModel;
+      this.pathCount = config.pathCount;
+      this.maxNodesInMemory = config.maxNodesInMemory;
+    }
+
+    public Builder direction(@NonNull Direction direction) {
+      this.direction = checkNotNull(direction, "direction");
+      return this;
+    }
+
+    public Builder threadCount(int threadCount) {
+      if (threadCount < 1) {
+        throw new IllegalArgumentException("threadCount must be at least 1, not " + threadCount);
+      }
+      this.threadCount = threadCount;
+      return this;
+    }
+
+    public Builder maxDurationMs(long maxDurationMs) {
+      if (maxDurationMs < 1) {
+        throw new IllegalArgumentException(
+            "maxDurationMs must be at least 1, not " + maxDurationMs);
+      }
+      this.maxDurationMs = maxDurationMs;
+      return this;
+    }
+
+    public Builder maxNodes(int maxNodes) {
+      if (maxNodes < 1) {
+        throw new IllegalArgumentException("maxNodes must be at least 1, not " + maxNodes);
+      }
+      this.maxNodes = maxNodes;
+      return this;
+    }
+
+    public Builder maxDepth(int maxDepth) {
+      if (maxDepth < 1) {
+        throw new IllegalArgumentException("maxDepth must be at least 1, not " + maxDepth);
+      }
+      this.maxDepth = maxDepth;
+      return this;
+    }
+
+    /** Weighted searches only go {@link Direction#FROM_GC_ROOTS}, on a single thread. */
+    public Builder costModel(@NonNull PathCostModel costModel) {
+      this.costModel = checkNotNull(costModel, "costModel");
+      return this;
+    }
+
+    public Builder pathCount(int pathCount) {
+      if (pathCount < 1) {
+        throw new IllegalArgumentException("pathCount must be at least 1, not " + pathCount);
+      }
+      this.pathCount = pathCount;
+      return this;
+    }
+
+    public Builder maxNodesInMemory(int maxNodesInMemory) {
+      if (maxNodesInMemory < 1) {
+        throw new IllegalArgumentException(
+            "maxNodesInMemory must be at least 1, not " + maxNodesInMemory);
+      }
+      this.maxNodesInMemory = maxNodesInMemory;
+      return this;
+    }
+
+    public PathFinderConfig build() {
+      if ((costModel != null || pathCount > 1) && direction != Direction.FROM_GC_ROOTS) {
+        throw new IllegalArgumentException("Weighted searches only go from the gc roots");
+      }
+      return new PathFinderConfig(this);
+    }
+  }
+}
@@ -92,7 +92,7 @@ public final class RefWatcher {
     retainedKeys.add(key);
     //创建一个弱引用包裹需要监听内存泄漏的对象，并绑定queue弱引用队列，当弱引用被回收时，会把弱引用放进这个队列中
     final KeyedWeakReference reference =
-        new KeyedWeakReference(watchedReference, key, referenceName, queue);
+        new KeyedWeakReference(watchedReference, key, referenceName, watchStartNanoTime, queue);
 
     //开始定时监听对象是否被GC回收
     ensureGoneAsync(watchStartNanoTime, reference);
@@ -72,6 +72,39 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return self();
   }
 
+  /**
+   * Whether LeakCanary should zero the content of primitive arrays in heap dumps once they're
+   * analyzed, which makes compressed heap dumps much smaller to keep and to share. False by
+   * default, because bitmap pixels and other primitive array values are lost.
+   *
+   * @see HprofStripper
+   */
+  public final T stripPrimitiveArrays(boolean stripPrimitiveArrays) {
+    heapDumpBuilder.stripPrimitiveArrays(stripPrimitiveArrays);
+    return self();
+  }
+
+  /**
+   * Whether LeakCanary should compress heap dumps once they're analyzed, so that many more of them
+   * fit in the same disk space. They can still be analyzed without being decompressed first, and
+   * are decompressed when shared. False by default.
+   *
+   * @see CompressedHprofFile
+   */
+  public final T compressHeapDumps(boolean compressHeapDumps) {
+    heapDumpBuilder.compressHeapDump(compressHeapDumps);
+    return self();
+  }
+
+  /**
+   * Number of threads parsing a heap dump the first time it's analyzed. 1 by default, more
+   * threads parse faster on multi-core devices but each one opens the heap dump again.
+   */
+  public final T indexingThreadCount(int indexingThreadCount) {
+    heapDumpBuilder.indexingThreadCount(indexingThreadCount);
+    return self();
+  }
+
   /** Creates a {@link RefWatcher}. */
   public final RefWatcher build() {
     if (isDisabled()) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The objects retained by a single object and their total size, found without the dominators of
+ * the whole heap. The objects reachable from the gc roots without going through that object are
+ * marked first, then the objects reachable from it that aren't marked are the ones it retains.
+ *
+ * Both traversals read references from the index as they go and only use a bit per object and a
+ * stack, rather than a graph of the heap. This is cheaper than a {@link DominatorTree} for one or
+ * two objects. The same strong references are followed, so the retained sizes are the same.
+ */
+final class RetainedSet {
+
+  /** Shallow size of the object plus the shallow sizes of the objects it retains. */
+  final long retainedSize;
+  /**
+   * Object indexes of the object and the objects it retains, in increasing order. Null unless
+   * requested.
+   */
+  @Nullable final int[] objects;
+
+  private RetainedSet(long retainedSize, @Nullable int[] objects) {
+    this.retainedSize = retainedSize;
+    this.objects = objects;
+  }
+
+  /** @param keepObjects whether to also return the retained objects in {@link #objects}. */
+  static RetainedSet compute(HprofIndex index, int objectIndex, boolean keepObjects) {
+    Marker marker = new Marker(index, keepObjects);
+
+    // The object is marked first so that the gc roots traversal doesn't go through it.
+    marker.marked.set(objectIndex);
+    for (int i = 0; i < index.rootCount(); i++) {
+      int rootIndex = index.objectIndex(index.rootId(i));
+      if (rootIndex != -1) {
+        marker.mark(rootIndex);
+      }
+    }
+    marker.drain();
+
+    marker.retaining = true;
+    marker.retain(objectIndex);
+    marker.drain();
+
+    int[] objects = null;
+    if (keepObjects) {
+      objects = Arrays.copyOf(marker.retained, marker.retainedCount);
+      Arrays.sort(objects);
+    }
+    return new RetainedSet(marker.retainedSize, objects);
+  }
+
+  /** Depth first traversal that stops at the objects already marked. */
+  private static final class Marker extends DominatorTree.StrongReferenceReader {
+    final BitSet marked;
+    private final boolean keepObjects;
+    private int[] stack = new int[1024];
+    private int stackSize;
+
+    /** Whether the objects marked from now on are retained. */
+    boolean retaining;
+    long retainedSize;
+    int[] retained;
+    int retainedCount;
+
+    Marker(HprofIndex index, boolean keepObjects) {
+      super(index);
+      this.keepObjects = keepObjects;
+      marked = new BitSet(index.objectCount());
+      retained = keepObjects ? new int[16] : null;
+    }
+
+    void mark(int objectIndex) {
+      if (marked.get(objectIndex)) {
+        return;
+      }
+      marked.set(objectIndex);
+      if (retaining) {
+        retain(objectIndex);
+      } else {
+        push(objectIndex);
+      }
+    }
+
+    void retain(int objectIndex) {
+      retainedSize += DominatorTree.shallowSize(index, objectIndex);
+      if (keepObjects) {
+        if (retainedCount == retained.length) {
+          retained = Arrays.copyOf(retained, retainedCount * 2);
+        }
+        retained[retainedCount++] = objectIndex;
+      }
+      push(objectIndex);
+    }
+
+    void drain() {
+      while (stackSize > 0) {
+        read(stack[--stackSize]);
+      }
+    }
+
+    @Override void reference(int objectIndex, int childIndex) {
+      mark(childIndex);
+    }
+
+    private void push(int objectIndex) {
+      if (stackSize == stack.length) {
+        stack = Arrays.copyOf(stack, stackSize * 2);
+      }
+      stack[stackSize++] = objectIndex;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT_ARRAY_DUMP;
+
+/**
+ * The objects that reference each object of a heap dump, through a static field, an instance
+ * field or an array entry, which are the references {@link ShortestPathFinder} follows.
+ *
+ * Stored as two int arrays indexed by object index: the referrers of an object are
+ * {@code referrers[offsets[objectIndex]]} to {@code referrers[offsets[objectIndex + 1] - 1]}, in
+ * heap dump order. An object is listed once for each reference it holds to the same object.
+ */
+final class ReverseReferenceIndex {
+
+  private final int[] offsets;
+  private final int[] referrers;
+
+  private ReverseReferenceIndex(int[] offsets, int[] referrers) {
+    this.offsets = offsets;
+    this.referrers = referrers;
+  }
+
+  /**
+   * Reads all the references of the heap dump twice: once to count the referrers of each object
+   * and once to store them.
+   */
+  static ReverseReferenceIndex build(HprofIndex index) {
+    int objectCount = index.objectCount();
+    int[] offsets = new int[objectCount + 1];
+    long referenceCount = readReferences(index, offsets, null);
+    if (referenceCount > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("Too many references to index: " + referenceCount);
+    }
+    // Turns the counts into start offsets, which are then moved forward as referrers are added.
+    int offset = 0;
+    for (int i = 0; i < objectCount; i++) {
+      int count = offsets[i];
+      offsets[i] = offset;
+      offset += count;
+    }
+    int[] referrers = new int[offset];
+    readReferences(index, offsets, referrers);
+    // Each offset is now the start offset of the next object.
+    System.arraycopy(offsets, 0, offsets, 1, objectCount);
+    offsets[0] = 0;
+    return new ReverseReferenceIndex(offsets, referrers);
+  }
+
+  /**
+   * @param referrers null to only count the referrers of each object in offsets.
+   * @return the number of references read.
+   */
+  private static long readReferences(HprofIndex index, int[] offsets, int[] referrers) {
+    long referenceCount = 0;
+    for (int i = 0; i < index.objectCount(); i++) {
+      switch (index.tagAt(i)) {
+        case CLASS_DUMP:
+          HprofIndex.ClassInfo classInfo = index.classAt(i);
+          for (int j = 0; j < classInfo.staticFieldNames.length; j++) {
+            if (classInfo.staticFieldTypes[j] == OBJECT
+                && !classInfo.staticFieldNames[j].equals("$staticOverhead")) {
+              long child = index.readId(classInfo.staticValuePositions[j]);
+              referenceCount += addReference(index, offsets, referrers, i, child);
+            }
+          }
+          break;
+        case INSTANCE_DUMP:
+          HprofIndex.ClassInfo instanceClass = index.classAt(i);
+          if (instanceClass == null || index.isPrimitiveWrapperAt(i)) {
+            break;
+          }
+          long position = index.fieldsPositionAt(i);
+          for (int referenceOffset : instanceClass.layout.referenceOffsets) {
+            long child = index.readId(position + referenceOffset);
+            referenceCount += addReference(index, offsets, referrers, i, child);
+          }
+          break;
+        case OBJECT_ARRAY_DUMP:
+          if (index.isPrimitiveOrWrapperArrayAt(i)) {
+            break;
+          }
+          int length = index.arrayLengthAt(i);
+          long valuesPosition = index.arrayValuesPositionAt(i);
+          for (int j = 0; j < length; j++) {
+            long child = index.readId(valuesPosition + (long) j * index.idSize);
+            referenceCount += addReference(index, offsets, referrers, i, child);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return referenceCount;
+  }
+
+  private static int addReference(HprofIndex index, int[] offsets, int[] referrers,
+      int referrer, long child) {
+    int childIndex = index.objectIndex(child);
+    if (childIndex == -1 || childIndex == referrer) {
+      return 0;
+    }
+    if (referrers == null) {
+      offsets[childIndex]++;
+    } else {
+      referrers[offsets[childIndex]++] = referrer;
+    }
+    return 1;
+  }
+
+  int referrersStart(int objectIndex) {
+    return offsets[objectIndex];
+  }
+
+  int referrersEnd(int objectIndex) {
+    return offsets[objectIndex + 1];
+  }
+
+  /** @param i between {@link #referrersStart(int)} and {@link #referrersEnd(int)}. */
+  int referrer(int i) {
+    return referrers[i];
+  }
+}
@@ -15,30 +15,35 @@
  */
 package com.squareup.leakcanary;
 
-import static com.squareup.leakcanary.HahaHelper.isPrimitiveOrWrapperArray;
-import static com.squareup.leakcanary.HahaHelper.isPrimitiveWrapper;
-import static com.squareup.leakcanary.HahaHelper.threadName;
+import static com.squareup.leakcanary.HprofIndexer.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_NODATA;
 import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
 import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
 import static com.squareup.leakcanary.LeakTraceElement.Type.LOCAL;
 import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
 
-import com.squareup.haha.perflib.ArrayInstance;
-import com.squareup.haha.perflib.ClassInstance;
-import com.squareup.haha.perflib.ClassObj;
-import com.squareup.haha.perflib.Field;
-import com.squareup.haha.perflib.HahaSpy;
-import com.squareup.haha.perflib.Instance;
-import com.squareup.haha.perflib.RootObj;
 import com.squareup.haha.perflib.RootType;
-import com.squareup.haha.perflib.Snapshot;
-import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Not thread safe.
@@ -46,280 +51,1786 @@ import java.util.Map;
  * Finds the shortest path from a leaking reference to a gc root, ignoring excluded
  * refs first and then including the ones that are not "always ignorable" as needed if no path is
  * found.
+ *
+ * The search tree is stored in parallel arrays indexed by node, in the order nodes are enqueued.
+ * Each node only records its parent node and how the parent references it (a static field, an
+ * instance field or an array index). {@link LeakNode} and {@link LeakReference} instances are
+ * only created for the nodes of the path that was found.
+ *
+ * With {@link PathFinderConfig.Direction#FROM_LEAKING_INSTANCE}, the search goes the other way,
+ * from the leaking instance to its referrers until it reaches a gc root, with the same exclusion
+ * rules. Nodes then record the node they reference instead of their parent, and the path is
+ * turned around once found.
+ *
+ * With {@link PathFinderConfig#threadCount} threads, the objects of a search from the gc roots
+ * are read in parallel one level at a time, but the search tree is only modified on the calling
+ * thread.
+ *
+ * A search that reaches a limit of its {@link PathFinderConfig} stops and returns the best path
+ * found so far for each leaking reference, see {@link Result#limitReached}.
+ *
+ * A weighted search, see {@link PathFinderConfig#costModel}, visits nodes by increasing path cost
+ * instead of by level, with the same exclusion rules, and keeps the cheapest references to each
+ * leaking reference from {@link PathFinderConfig#pathCount} different referrers.
  */
 final class ShortestPathFinder {
 
+  private static final LeakTraceElement.Type[] EDGE_TYPES = LeakTraceElement.Type.values();
+  /** Edge type of the nodes that have no parent reference, eg gc roots. */
+  private static final byte NO_EDGE = -1;
+  private static final int NO_PARENT = -1;
+  private static final int INITIAL_CAPACITY = 1024;
+  /** Smallest number of nodes read by a task, below which a level is read on a single thread. */
+  private static final int MIN_PARALLEL_NODES = 4096;
+  /**
+   * Cost of an excluded reference in a weighted search, more than any path without exclusions
+   * costs, so that paths with fewer exclusions are always preferred.
+   */
+  private static final long EXCLUDED_COST = 1L << 40;
+  /** Number of nodes visited between two reads of the clock, a power of two. */
+  private static final int CLOCK_CHECK_INTERVAL = 1024;
+
+  /** Limits of {@link PathFinderConfig} that can stop a search before it is complete. */
+  enum Limit {
+    /** {@link PathFinderConfig#maxDurationMs} */
+    DURATION,
+    /** {@link PathFinderConfig#maxNodes} */
+    NODE_COUNT,
+    /** {@link PathFinderConfig#maxDepth} */
+    DEPTH,
+  }
+
   private final ExcludedRefs excludedRefs;
-  private final Deque<LeakNode> toVisitQueue;
-  private final Deque<LeakNode> toVisitIfNoPathQueue;
-  private final LinkedHashSet<Instance> toVisitSet;
-  private final LinkedHashSet<Instance> toVisitIfNoPathSet;
-  private final LinkedHashSet<Instance> visitedSet;
+  private final PathFinderConfig config;
+  private final File heapDumpFile;
+  private final IntQueue toVisitQueue;
+  private final IntQueue toVisitIfNoPathQueue;
+  /**
+   * Bitsets of object indexes, one bit per object in the heap dump. They are kept between
+   * searches in the same heap dump.
+   */
+  private long[] toVisitSet;
+  private long[] toVisitIfNoPathSet;
+  private long[] visitedSet;
+  /** Leaking references not found yet by a forward search. */
+  private long[] targetSet;
+  private HprofIndex index;
   private boolean canIgnoreStrings;
+  /** Objects held by a gc root, for backward searches. */
+  private long[] rootSet;
+  /** Objects only held by the local variables of excluded threads, for backward searches. */
+  private long[] excludedRootSet;
+  /** Built for {@link #reverseReferencesIndex} and kept for the next searches in it. */
+  private ReverseReferenceIndex reverseReferences;
+  private HprofIndex reverseReferencesIndex;
+
+  /**
+   * Exclusions of each class by class index, resolved the first time the class or one of its
+   * instances is visited, for all the searches in {@link #classExclusionsIndex}.
+   */
+  private ClassExclusions[] classExclusions;
+  private HprofIndex classExclusionsIndex;
+  /** Same for the costs of a weighted search, resolved the first time they are needed. */
+  private ClassCosts[] classCosts;
+
+  /** Lowest cost found for each object by a weighted search. */
+  private long[] objectCosts;
+  private NodeHeap toVisitHeap;
+  /** Paths found by a weighted search, for each leaking reference, null if not in the dump. */
+  private WeightedPaths[] weightedPaths;
+  /** Highest cost of the paths still needed by a weighted search, see {@link #settledCost()}. */
+  private long settledCost;
+
+  /** One reader per thread during a parallel search, null otherwise. */
+  private ReferenceBuffer[] readers;
+  private ExecutorService executor;
+
+  /** Reference found by {@link #findReference(int, long)}. */
+  private byte referenceType;
+  private int referenceSlot;
+  private Exclusion referenceExclusion;
+
+  /** {@link PathFinderConfig#maxDurationMs} from the start of {@link #findPaths}. */
+  private long searchStartNanoTime;
+  private long maxDurationNanos;
+  private int limitChecks;
+  /** Statistics of the current search. */
+  private int visitedCount;
+  private int reachedDepth;
+  /** Whether nodes were not visited because of {@link PathFinderConfig#maxDepth}. */
+  private boolean depthLimitReached;
+
+  private int nodeCount;
+  /** Object index of each node. */
+  private int[] nodeObjects;
+  /** Parent node of each node, {@link #NO_PARENT} for roots. */
+  private int[] nodeParents;
+  /** {@link LeakTraceElement.Type} ordinal of the parent reference, {@link #NO_EDGE} for roots. */
+  private byte[] nodeEdgeTypes;
+  /**
+   * Static field index, reference field index in the {@link HprofIndex.FieldLayout} or array
+   * index of the parent reference.
+   */
+  private int[] nodeEdgeSlots;
+  private Exclusion[] nodeExclusions;
+  /** Number of references from the root node of each node. */
+  private int[] nodeDepths;
+  /**
+   * {@link PathFinderConfig#maxNodesInMemory}. The nodes past it are records of
+   * {@link #spillFile}, opened when needed during a search.
+   */
+  private final int maxNodesInMemory;
+  private NodeSpillFile spillFile;
+  /** The exclusions of the spilled nodes, by id. */
+  private final List<Exclusion> spilledExclusions = new ArrayList<>();
+  private final Map<Exclusion, Integer> spilledExclusionIds = new IdentityHashMap<>();
 
   ShortestPathFinder(ExcludedRefs excludedRefs) {
+    this(excludedRefs, PathFinderConfig.DEFAULT);
+  }
+
+  ShortestPathFinder(ExcludedRefs excludedRefs, PathFinderConfig config) {
+    this(excludedRefs, config, null);
+  }
+
+  /**
+   * @param heapDumpFile opened again by each thread when {@link PathFinderConfig#threadCount} is
+   * more than 1, since a {@link HprofBuffer} has a single position. Nodes are spilled next to it.
+   */
+  ShortestPathFinder(ExcludedRefs excludedRefs, PathFinderConfig config, File heapDumpFile) {
+    if (config.threadCount > 1 && heapDumpFile == null) {
+      throw new IllegalArgumentException("Searching on several threads requires heapDumpFile");
+    }
+    if (config.maxNodesInMemory != Integer.MAX_VALUE && heapDumpFile == null) {
+      throw new IllegalArgumentException("Spilling nodes to disk requires heapDumpFile");
+    }
     this.excludedRefs = excludedRefs;
-    toVisitQueue = new ArrayDeque<>();
-    toVisitIfNoPathQueue = new ArrayDeque<>();
-    toVisitSet = new LinkedHashSet<>();
-    toVisitIfNoPathSet = new LinkedHashSet<>();
-    visitedSet = new LinkedHashSet<>();
+    this.config = config;
+    this.heapDumpFile = heapDumpFile;
+    maxNodesInMemory = config.maxNodesInMemory;
+    toVisitQueue = new IntQueue();
+    toVisitIfNoPathQueue = new IntQueue();
+    nodeObjects = new int[INITIAL_CAPACITY];
+    nodeParents = new int[INITIAL_CAPACITY];
+    nodeEdgeTypes = new byte[INITIAL_CAPACITY];
+    nodeEdgeSlots = new int[INITIAL_CAPACITY];
+    nodeExclusions = new Exclusion[INITIAL_CAPACITY];
+    nodeDepths = new int[INITIAL_CAPACITY];
   }
 
   static final class Result {
     final LeakNode leakingNode;
     final boolean excludingKnownLeaks;
+    /**
+     * The limit that stopped the search before it could tell whether there is a shorter path, or
+     * a path without excluded references, null if the result is the same as without limits.
+     * leakingNode is then the best path found so far, if any.
+     */
+    final Limit limitReached;
+    /** Number of objects and nodes of the search and how long it ran, for reports. */
+    final String searchStats;
+    /**
+     * Next cheapest paths found by a weighted search for more than one path, each through a
+     * different referrer of the leaking reference. Empty otherwise.
+     */
+    final List<LeakNode> alternativeLeakingNodes;
 
-    Result(LeakNode leakingNode, boolean excludingKnownLeaks) {
+    Result(LeakNode leakingNode, boolean excludingKnownLeaks, Limit limitReached,
+        String searchStats, List<LeakNode> alternativeLeakingNodes) {
       this.leakingNode = leakingNode;
       this.excludingKnownLeaks = excludingKnownLeaks;
+      this.limitReached = limitReached;
+      this.searchStats = searchStats;
+      this.alternativeLeakingNodes = alternativeLeakingNodes;
     }
   }
 
-  Result findPath(Snapshot snapshot, Instance leakingRef) {
+  Result findPath(HprofIndex index, long leakingRef) {
+    return findPaths(index, new long[] { leakingRef })[0];
+  }
+
+  /**
+   * Same as {@link #findPath(HprofIndex, long)} for several leaking references. The gc roots are
+   * only explored once, until all the leaking references are found or there's nothing left to
+   * visit. Each leaking reference gets the same result as from its own search.
+   *
+   * @return a result for each leaking reference, in the same order.
+   */
+  Result[] findPaths(HprofIndex index, long[] leakingRefs) {
+    this.index = index;
+    searchStartNanoTime = System.nanoTime();
+    maxDurationNanos = TimeUnit.MILLISECONDS.toNanos(config.maxDurationMs);
+    if (classExclusionsIndex != index) {
+      classExclusions = new ClassExclusions[index.classCount()];
+      classCosts = new ClassCosts[index.classCount()];
+      classExclusionsIndex = index;
+    }
+    int[] leakingIndexes = new int[leakingRefs.length];
+    canIgnoreStrings = true;
+    for (int i = 0; i < leakingRefs.length; i++) {
+      leakingIndexes[i] = index.objectIndex(leakingRefs[i]);
+      if (index.isString(leakingRefs[i])) {
+        canIgnoreStrings = false;
+      }
+    }
+
+    Result[] results = new Result[leakingRefs.length];
+    try {
+      if (config.direction == PathFinderConfig.Direction.FROM_LEAKING_INSTANCE) {
+        clearState();
+        markGcRoots();
+        if (reverseReferencesIndex != index) {
+          // Lets the referrers of the previous heap dump be collected before indexing this one.
+          reverseReferences = null;
+          reverseReferences = ReverseReferenceIndex.build(index);
+          reverseReferencesIndex = index;
+        }
+        for (int i = 0; i < leakingRefs.length; i++) {
+          if (i > 0) {
+            clearState();
+          }
+          canIgnoreStrings = !index.isString(leakingRefs[i]);
+          results[i] = findPathFromLeakingInstance(leakingIndexes[i]);
+        }
+      } else if (config.isWeighted()) {
+        findWeightedPaths(leakingIndexes, results);
+      } else if (config.threadCount > 1) {
+        startReaders();
+        try {
+          findPathsFromGcRoots(leakingIndexes, results);
+        } finally {
+          stopReaders();
+        }
+      } else {
+        findPathsFromGcRoots(leakingIndexes, results);
+      }
+    } finally {
+      if (spillFile != null) {
+        // The search tree is not needed anymore once the paths are built.
+        spillFile.close();
+        spillFile = null;
+      }
+    }
+    this.index = null;
+    return results;
+  }
+
+  private void startReaders() {
+    readers = new ReferenceBuffer[config.threadCount];
+    try {
+      for (int i = 0; i < readers.length; i++) {
+        HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+        readers[i] = new ReferenceBuffer(index.withBuffer(buffer));
+      }
+    } catch (IOException e) {
+      stopReaders();
+      throw new RuntimeException("Could not open " + heapDumpFile, e);
+    }
+    executor = Executors.newFixedThreadPool(config.threadCount);
+  }
+
+  private void stopReaders() {
+    if (executor != null) {
+      executor.shutdownNow();
+      try {
+        // The tasks of a level that failed may still be reading.
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // Leaves the buffers to the garbage collector rather than closing them under a reader.
+        readers = null;
+        executor = null;
+        return;
+      }
+      executor = null;
+    }
+    for (ReferenceBuffer reader : readers) {
+      if (reader != null) {
+        CompressedHprofFile.closeBuffer(reader.index.buffer);
+      }
+    }
+    readers = null;
+  }
+
+  private void findPathsFromGcRoots(int[] leakingIndexes, Result[] results) {
     clearState();
-    canIgnoreStrings = !isString(leakingRef);
+    LeakingRefs leakingRefs = new LeakingRefs(leakingIndexes);
+    for (int leakingIndex : leakingIndexes) {
+      if (leakingIndex != -1) {
+        add(targetSet, leakingIndex);
+      }
+    }
+    Enqueuer enqueuer = new Enqueuer();
 
-    enqueueGcRoots(snapshot);
+    enqueueGcRoots();
 
     boolean excludingKnownLeaks = false;
-    LeakNode leakingNode = null;
-    while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
-      LeakNode node;
+    Limit limitReached = null;
+    while (leakingRefs.remaining > 0
+        && (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty())) {
+      boolean readLevel = readers != null && toVisitQueue.size() >= MIN_PARALLEL_NODES;
+      limitReached = checkLimits(readLevel);
+      if (limitReached != null) {
+        break;
+      }
+      if (readLevel) {
+        // Visiting all the nodes to visit now is the same as visiting them one by one, since
+        // the nodes they enqueue are visited after them.
+        int[] nodes = toVisitQueue.pollAll();
+        int nodeCount = 0;
+        for (int node : nodes) {
+          if (checkFound(leakingRefs, node, excludingKnownLeaks)) {
+            break;
+          }
+          int objectIndex = nodeObject(node);
+          if (checkSeen(objectIndex) || !checkDepth(node)) {
+            continue;
+          }
+          resolveClassExclusions(objectIndex);
+          nodes[nodeCount++] = node;
+        }
+        if (leakingRefs.remaining > 0) {
+          readInParallel(nodes, nodeCount);
+        }
+        continue;
+      }
+
+      int node;
       if (!toVisitQueue.isEmpty()) {
         node = toVisitQueue.poll();
       } else {
         node = toVisitIfNoPathQueue.poll();
-        if (node.exclusion == null) {
-          throw new IllegalStateException("Expected node to have an exclusion " + node);
+        if (nodeExclusion(node) == null) {
+          throw new IllegalStateException(
+              "Expected node to have an exclusion " + index.describe(instance(node)));
         }
         excludingKnownLeaks = true;
       }
 
       // Termination
-      if (node.instance == leakingRef) {
-        leakingNode = node;
+      if (checkFound(leakingRefs, node, excludingKnownLeaks)) {
         break;
       }
 
-      if (checkSeen(node)) {
+      int objectIndex = nodeObject(node);
+      if (checkSeen(objectIndex) || !checkDepth(node)) {
         continue;
       }
-
-      if (node.instance instanceof RootObj) {
-        visitRootObj(node);
-      } else if (node.instance instanceof ClassObj) {
-        visitClassObj(node);
-      } else if (node.instance instanceof ClassInstance) {
-        visitClassInstance(node);
-      } else if (node.instance instanceof ArrayInstance) {
-        visitArrayInstance(node);
+      resolveClassExclusions(objectIndex);
+      enqueuer.read(node, objectIndex);
+    }
+    if (limitReached != null) {
+      CanaryLog.d("Path search stopped at %s limit: %s", limitReached, searchStats());
+    }
+    for (int i = 0; i < leakingIndexes.length; i++) {
+      if (leakingRefs.nodes[i] != NO_PARENT) {
+        results[i] = result(leakingRefs.nodes[i], leakingRefs.excludingKnownLeaks[i], null,
+            leakingRefs.depthLimitReached[i]);
+      } else if (limitReached != null && leakingIndexes[i] != -1) {
+        results[i] = partialResult(leakingIndexes[i], excludingKnownLeaks, limitReached);
       } else {
-        throw new IllegalStateException("Unexpected type for " + node.instance);
+        results[i] = result(NO_PARENT, excludingKnownLeaks, null,
+            depthLimitReached && leakingIndexes[i] != -1);
+      }
+    }
+  }
+
+  /**
+   * Result for a leaking reference that the search did not reach before stopping at a limit. If
+   * it is about to be visited, its path is known already. Otherwise its path through excluded
+   * references, if there's one, is the best path found so far.
+   */
+  private Result partialResult(int leakingIndex, boolean excludingKnownLeaks,
+      Limit limitReached) {
+    if (contains(toVisitSet, leakingIndex)) {
+      // Found next with the same path, since toVisitQueue is visited first.
+      return result(queuedNode(toVisitQueue, leakingIndex), excludingKnownLeaks, null,
+          depthLimitReached);
+    }
+    if (contains(toVisitIfNoPathSet, leakingIndex)) {
+      return result(queuedNode(toVisitIfNoPathQueue, leakingIndex), true, limitReached, false);
+    }
+    return result(NO_PARENT, excludingKnownLeaks, limitReached, false);
+  }
+
+  private int queuedNode(IntQueue queue, int objectIndex) {
+    for (int i = 0; i < queue.size(); i++) {
+      int node = queue.get(i);
+      if (nodeObject(node) == objectIndex) {
+        return node;
+      }
+    }
+    throw new IllegalStateException("Expected a node to visit for " + index.describe(
+        index.objectId(objectIndex)));
+  }
+
+  /**
+   * @param node {@link #NO_PARENT} if no path was found.
+   * @param depthLimitReached whether nodes were too deep to visit before the path was found. A
+   * path without excluded references is then still the shortest, but there may be one beyond the
+   * maximum depth if the path found has exclusions or if there's none.
+   */
+  private Result result(int node, boolean excludingKnownLeaks, Limit limitReached,
+      boolean depthLimitReached) {
+    return result(node, excludingKnownLeaks, limitReached, depthLimitReached,
+        Collections.<LeakNode>emptyList());
+  }
+
+  private Result result(int node, boolean excludingKnownLeaks, Limit limitReached,
+      boolean depthLimitReached, List<LeakNode> alternativeLeakingNodes) {
+    if (limitReached == null && depthLimitReached
+        && (node == NO_PARENT || excludingKnownLeaks)) {
+      limitReached = Limit.DEPTH;
+    }
+    LeakNode leakingNode = node == NO_PARENT ? null : buildLeakNode(node);
+    return new Result(leakingNode, excludingKnownLeaks, limitReached, searchStats(),
+        alternativeLeakingNodes);
+  }
+
+  /**
+   * Returns the limit the search has reached, null if it can go on.
+   *
+   * @param readClock whether to read the clock now rather than on the first call and every
+   * {@link #CLOCK_CHECK_INTERVAL} calls, eg before reading a whole level.
+   */
+  private Limit checkLimits(boolean readClock) {
+    if (nodeCount >= config.maxNodes) {
+      return Limit.NODE_COUNT;
+    }
+    if ((readClock || (limitChecks++ & (CLOCK_CHECK_INTERVAL - 1)) == 0)
+        && System.nanoTime() - searchStartNanoTime >= maxDurationNanos) {
+      return Limit.DURATION;
+    }
+    return null;
+  }
+
+  /** Returns whether the references of that node can be followed given the maximum depth. */
+  private boolean checkDepth(int node) {
+    int depth = nodeDepth(node);
+    if (depth >= config.maxDepth) {
+      depthLimitReached = true;
+      return false;
+    }
+    visitedCount++;
+    reachedDepth = Math.max(reachedDepth, depth);
+    return true;
+  }
+
+  private String searchStats() {
+    return visitedCount + " objects visited, " + nodeCount + " nodes, depth " + reachedDepth
+        + ", " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - searchStartNanoTime) + " ms";
+  }
+
+  /**
+   * Records the leaking references held by that node, which are still visited as they are by the
+   * searches for the other leaking references.
+   *
+   * @return true once all the leaking references are found.
+   */
+  private boolean checkFound(LeakingRefs leakingRefs, int node, boolean excludingKnownLeaks) {
+    int objectIndex = nodeObject(node);
+    if (!contains(targetSet, objectIndex)) {
+      return false;
+    }
+    remove(targetSet, objectIndex);
+    for (int i = 0; i < leakingRefs.objectIndexes.length; i++) {
+      if (leakingRefs.objectIndexes[i] == objectIndex) {
+        leakingRefs.nodes[i] = node;
+        leakingRefs.excludingKnownLeaks[i] = excludingKnownLeaks;
+        leakingRefs.depthLimitReached[i] = depthLimitReached;
+        leakingRefs.remaining--;
       }
     }
-    return new Result(leakingNode, excludingKnownLeaks);
+    return leakingRefs.remaining == 0;
+  }
+
+  /**
+   * Reads the references of those nodes on the worker threads, each with its own index, then
+   * enqueues them in the order of the nodes. Nodes are only added on the current thread once all
+   * the workers are done, since they read the search tree, so the search tree is the same as when
+   * reading on a single thread.
+   */
+  private void readInParallel(int[] nodes, int nodeCount) {
+    int taskCount = Math.min(readers.length,
+        (nodeCount + MIN_PARALLEL_NODES - 1) / MIN_PARALLEL_NODES);
+    List<Future<ReferenceBuffer>> tasks = new ArrayList<>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      int from = (int) ((long) nodeCount * i / taskCount);
+      int to = (int) ((long) nodeCount * (i + 1) / taskCount);
+      tasks.add(executor.submit(readTask(readers[i], nodes, from, to)));
+    }
+    try {
+      for (Future<ReferenceBuffer> task : tasks) {
+        task.get();
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    for (int i = 0; i < taskCount; i++) {
+      readers[i].enqueueAll();
+    }
+  }
+
+  private static Callable<ReferenceBuffer> readTask(final ReferenceBuffer reader,
+      final int[] nodes, final int from, final int to) {
+    return new Callable<ReferenceBuffer>() {
+      @Override public ReferenceBuffer call() {
+        reader.clear();
+        for (int i = from; i < to; i++) {
+          reader.read(nodes[i]);
+        }
+        return reader;
+      }
+    };
   }
 
   private void clearState() {
     toVisitQueue.clear();
     toVisitIfNoPathQueue.clear();
-    toVisitSet.clear();
-    toVisitIfNoPathSet.clear();
-    visitedSet.clear();
-  }
-
-  private void enqueueGcRoots(Snapshot snapshot) {
-    for (RootObj rootObj : HahaSpy.allGcRoots(snapshot)) {
-      switch (rootObj.getRootType()) {
-        case JAVA_LOCAL:
-          Instance thread = HahaSpy.allocatingThread(rootObj);
-          String threadName = threadName(thread);
-          Exclusion params = excludedRefs.threadNames.get(threadName);
-          if (params == null || !params.alwaysExclude) {
-            enqueue(params, null, rootObj, null);
+    int bitsetSize = (index.objectCount() + 63) >>> 6;
+    if (visitedSet == null || visitedSet.length != bitsetSize) {
+      toVisitSet = new long[bitsetSize];
+      toVisitIfNoPathSet = new long[bitsetSize];
+      visitedSet = new long[bitsetSize];
+      targetSet = new long[bitsetSize];
+    } else {
+      Arrays.fill(toVisitSet, 0);
+      Arrays.fill(toVisitIfNoPathSet, 0);
+      Arrays.fill(visitedSet, 0);
+      Arrays.fill(targetSet, 0);
+    }
+    Arrays.fill(nodeExclusions, 0, Math.min(nodeCount, maxNodesInMemory), null);
+    nodeCount = 0;
+    if (spillFile != null) {
+      spillFile.clear();
+    }
+    limitChecks = 0;
+    visitedCount = 0;
+    reachedDepth = 0;
+    depthLimitReached = false;
+  }
+
+  private void enqueueGcRoots() {
+    for (int i = 0; i < index.rootCount(); i++) {
+      if (!isGcRoot(index.rootType(i))) {
+        continue;
+      }
+      long child = index.rootId(i);
+      long thread = rootThread(i);
+      if (thread == 0) {
+        // Root nodes have no parent and are ignored when building the leak trace.
+        enqueue(null, NO_PARENT, child, NO_EDGE, 0);
+        continue;
+      }
+      String threadName = index.threadName(thread);
+      Exclusion params = excludedRefs.threadNames.get(threadName);
+      if (params == null || !params.alwaysExclude) {
+        // We switch the parent node with the thread instance that holds
+        // the local reference.
+        int parent = addNode(null, NO_PARENT, index.objectIndex(thread), NO_EDGE, 0);
+        enqueue(params, parent, child, (byte) LOCAL.ordinal(), 0);
+      }
+    }
+  }
+
+  private static boolean isGcRoot(RootType rootType) {
+    switch (rootType) {
+      case INTERNED_STRING:
+      case DEBUGGER:
+      case INVALID_TYPE:
+        // An object that is unreachable from any other root, but not a root itself.
+      case UNREACHABLE:
+      case UNKNOWN:
+        // An object that is in a queue, waiting for a finalizer to run.
+      case FINALIZING:
+        return false;
+      case SYSTEM_CLASS:
+      case VM_INTERNAL:
+        // A local variable in native code.
+      case NATIVE_LOCAL:
+        // A global variable in native code.
+      case NATIVE_STATIC:
+        // An object that was referenced from an active thread block.
+      case THREAD_BLOCK:
+        // Everything that called the wait() or notify() methods, or that is synchronized.
+      case BUSY_MONITOR:
+      case NATIVE_MONITOR:
+      case REFERENCE_CLEANUP:
+        // Input or output parameters in native code.
+      case NATIVE_STACK:
+      case JAVA_STATIC:
+      case JAVA_LOCAL:
+        return true;
+      default:
+        throw new UnsupportedOperationException("Unknown root type:" + rootType);
+    }
+  }
+
+  /** Returns the thread holding that root if it's a local variable, 0 otherwise. */
+  private long rootThread(int rootIndex) {
+    if (index.rootType(rootIndex) != RootType.JAVA_LOCAL) {
+      return 0;
+    }
+    long thread = index.rootThreadId(rootIndex);
+    return index.contains(thread) ? thread : 0;
+  }
+
+  /** Returns the exclusion of the thread holding that root, null if there's none. */
+  private Exclusion rootExclusion(int rootIndex) {
+    long thread = rootThread(rootIndex);
+    return thread == 0 ? null : excludedRefs.threadNames.get(index.threadName(thread));
+  }
+
+  private boolean checkSeen(int objectIndex) {
+    if (contains(visitedSet, objectIndex)) {
+      return true;
+    }
+    add(visitedSet, objectIndex);
+    return false;
+  }
+
+  private ClassExclusions classExclusions(HprofIndex.ClassInfo classInfo) {
+    ClassExclusions exclusions = classExclusions[classInfo.index];
+    if (exclusions == null) {
+      exclusions = new ClassExclusions(excludedRefs, classInfo);
+      classExclusions[classInfo.index] = exclusions;
+    }
+    return exclusions;
+  }
+
+  /** Resolves the exclusions a {@link ReferenceReader} needs to read that object. */
+  private void resolveClassExclusions(int objectIndex) {
+    int tag = index.tagAt(objectIndex);
+    if (tag == CLASS_DUMP || tag == INSTANCE_DUMP) {
+      classExclusions(index.classAt(objectIndex));
+    }
+  }
+
+  private void enqueue(Exclusion exclusion, int parent, long child, byte edgeType,
+      int edgeSlot) {
+    int childIndex = index.objectIndex(child);
+    if (childIndex == -1) {
+      return;
+    }
+    enqueueObject(exclusion, parent, childIndex, edgeType, edgeSlot);
+  }
+
+  private void enqueueObject(Exclusion exclusion, int parent, int childIndex, byte edgeType,
+      int edgeSlot) {
+    if (index.isPrimitiveOrWrapperArrayAt(childIndex) || index.isPrimitiveWrapperAt(childIndex)) {
+      return;
+    }
+    // Whether we want to visit now or later, we should skip if this is already to visit.
+    if (contains(toVisitSet, childIndex)) {
+      return;
+    }
+    boolean visitNow = exclusion == null;
+    if (!visitNow && contains(toVisitIfNoPathSet, childIndex)) {
+      return;
+    }
+    if (canIgnoreStrings && index.isStringAt(childIndex)) {
+      return;
+    }
+    if (contains(visitedSet, childIndex)) {
+      return;
+    }
+    int childNode = addNode(exclusion, parent, childIndex, edgeType, edgeSlot);
+    if (visitNow) {
+      add(toVisitSet, childIndex);
+      toVisitQueue.add(childNode);
+    } else {
+      add(toVisitIfNoPathSet, childIndex);
+      toVisitIfNoPathQueue.add(childNode);
+    }
+  }
+
+  private int addNode(Exclusion exclusion, int parent, int objectIndex, byte edgeType,
+      int edgeSlot) {
+    int node = nodeCount;
+    int depth = parent == NO_PARENT ? 0 : nodeDepth(parent) + 1;
+    if (node >= maxNodesInMemory) {
+      spillNode(exclusion, parent, objectIndex, edgeType, edgeSlot, depth);
+    } else {
+      if (node == nodeObjects.length) {
+        int newCapacity = (int) Math.min(maxNodesInMemory, node + (long) (node >> 1));
+        nodeObjects = Arrays.copyOf(nodeObjects, newCapacity);
+        nodeParents = Arrays.copyOf(nodeParents, newCapacity);
+        nodeEdgeTypes = Arrays.copyOf(nodeEdgeTypes, newCapacity);
+        nodeEdgeSlots = Arrays.copyOf(nodeEdgeSlots, newCapacity);
+        nodeExclusions = Arrays.copyOf(nodeExclusions, newCapacity);
+        nodeDepths = Arrays.copyOf(nodeDepths, newCapacity);
+      }
+      nodeObjects[node] = objectIndex;
+      nodeParents[node] = parent;
+      nodeEdgeTypes[node] = edgeType;
+      nodeEdgeSlots[node] = edgeSlot;
+      nodeExclusions[node] = exclusion;
+      nodeDepths[node] = depth;
+    }
+    nodeCount++;
+    return node;
+  }
+
+  /** Adds the record of a node past {@link PathFinderConfig#maxNodesInMemory}. */
+  private void spillNode(Exclusion exclusion, int parent, int objectIndex, byte edgeType,
+      int edgeSlot, int depth) {
+    try {
+      if (spillFile == null) {
+        spillFile = new NodeSpillFile(heapDumpFile);
+      }
+      spillFile.add(objectIndex, parent, edgeType, edgeSlot, exclusionId(exclusion), depth);
+    } catch (IOException e) {
+      throw new RuntimeException(
+          "Could not spill nodes to " + NodeSpillFile.spillFile(heapDumpFile), e);
+    }
+  }
+
+  private int exclusionId(Exclusion exclusion) {
+    if (exclusion == null) {
+      return -1;
+    }
+    Integer id = spilledExclusionIds.get(exclusion);
+    if (id == null) {
+      if (spilledExclusions.size() > Short.MAX_VALUE) {
+        throw new IllegalStateException("Too many exclusions to spill nodes");
+      }
+      id = spilledExclusions.size();
+      spilledExclusions.add(exclusion);
+      spilledExclusionIds.put(exclusion, id);
+    }
+    return id;
+  }
+
+  private int nodeObject(int node) {
+    return node < maxNodesInMemory ? nodeObjects[node]
+        : spillFile.objectIndex(node - maxNodesInMemory);
+  }
+
+  private int nodeParent(int node) {
+    return node < maxNodesInMemory ? nodeParents[node]
+        : spillFile.parent(node - maxNodesInMemory);
+  }
+
+  private byte nodeEdgeType(int node) {
+    return node < maxNodesInMemory ? nodeEdgeTypes[node]
+        : spillFile.edgeType(node - maxNodesInMemory);
+  }
+
+  private int nodeEdgeSlot(int node) {
+    return node < maxNodesInMemory ? nodeEdgeSlots[node]
+        : spillFile.edgeSlot(node - maxNodesInMemory);
+  }
+
+  private Exclusion nodeExclusion(int node) {
+    if (node < maxNodesInMemory) {
+      return nodeExclusions[node];
+    }
+    int id = spillFile.exclusionId(node - maxNodesInMemory);
+    return id == -1 ? null : spilledExclusions.get(id);
+  }
+
+  private int nodeDepth(int node) {
+    return node < maxNodesInMemory ? nodeDepths[node]
+        : spillFile.depth(node - maxNodesInMemory);
+  }
+
+  private long instance(int node) {
+    return index.objectId(nodeObject(node));
+  }
+
+  /**
+   * Dijkstra's algorithm from the gc roots. An object is enqueued again each time a cheaper path
+   * to it is found, and only visited the first time it's polled. Every reference to a leaking
+   * reference is a candidate path, so the search goes on until each leaking reference has enough
+   * paths cheaper than anything left to visit.
+   */
+  private void findWeightedPaths(int[] leakingIndexes, Result[] results) {
+    clearState();
+    if (objectCosts == null || objectCosts.length != index.objectCount()) {
+      objectCosts = new long[index.objectCount()];
+    }
+    Arrays.fill(objectCosts, Long.MAX_VALUE);
+    if (toVisitHeap == null) {
+      toVisitHeap = new NodeHeap();
+    } else {
+      toVisitHeap.clear();
+    }
+    weightedPaths = new WeightedPaths[leakingIndexes.length];
+    for (int i = 0; i < leakingIndexes.length; i++) {
+      if (leakingIndexes[i] != -1) {
+        add(targetSet, leakingIndexes[i]);
+        weightedPaths[i] = new WeightedPaths(leakingIndexes[i], config.pathCount);
+      }
+    }
+    settledCost = settledCost();
+    PathCostModel costModel = config.costModel != null ? config.costModel : PathCostModel.UNIT;
+    WeightedEnqueuer enqueuer = new WeightedEnqueuer(costModel);
+
+    enqueueWeightedGcRoots(costModel);
+
+    Limit limitReached = null;
+    while (!toVisitHeap.isEmpty() && toVisitHeap.peekCost() < settledCost) {
+      limitReached = checkLimits(false);
+      if (limitReached != null) {
+        break;
+      }
+      long cost = toVisitHeap.peekCost();
+      int node = toVisitHeap.poll();
+      int objectIndex = nodeObject(node);
+      if (checkSeen(objectIndex) || !checkDepth(node)) {
+        continue;
+      }
+      resolveClassExclusions(objectIndex);
+      enqueuer.read(node, objectIndex, cost);
+    }
+    // Paths that cost more than what's left to visit may not be the cheapest.
+    long provenCost = Long.MAX_VALUE;
+    if (limitReached != null) {
+      CanaryLog.d("Path search stopped at %s limit: %s", limitReached, searchStats());
+      provenCost = toVisitHeap.peekCost();
+    }
+    for (int i = 0; i < leakingIndexes.length; i++) {
+      results[i] = weightedResult(weightedPaths[i], limitReached, provenCost);
+    }
+    weightedPaths = null;
+  }
+
+  private void enqueueWeightedGcRoots(PathCostModel costModel) {
+    for (int i = 0; i < index.rootCount(); i++) {
+      RootType rootType = index.rootType(i);
+      if (!isGcRoot(rootType)) {
+        continue;
+      }
+      int childIndex = index.objectIndex(index.rootId(i));
+      if (childIndex == -1) {
+        continue;
+      }
+      long cost = checkCost(costModel.rootCost(rootType.name(), index.className(
+          index.objectId(childIndex))));
+      long thread = rootThread(i);
+      if (thread == 0) {
+        enqueueWeighted(null, NO_PARENT, childIndex, NO_EDGE, 0, cost);
+        continue;
+      }
+      Exclusion params = excludedRefs.threadNames.get(index.threadName(thread));
+      if (params == null || !params.alwaysExclude) {
+        int parent = addNode(null, NO_PARENT, index.objectIndex(thread), NO_EDGE, 0);
+        cost += checkCost(costModel.referenceCost(LOCAL, index.className(thread), null));
+        enqueueWeighted(params, parent, childIndex, (byte) LOCAL.ordinal(), 0,
+            params == null ? cost : cost + EXCLUDED_COST);
+      }
+    }
+  }
+
+  /** Enqueues the child if that's the cheapest path to it so far. */
+  private void enqueueWeighted(Exclusion exclusion, int parent, int childIndex, byte edgeType,
+      int edgeSlot, long cost) {
+    if (index.isPrimitiveOrWrapperArrayAt(childIndex) || index.isPrimitiveWrapperAt(childIndex)
+        || (canIgnoreStrings && index.isStringAt(childIndex))) {
+      return;
+    }
+    if (contains(targetSet, childIndex)) {
+      addWeightedPath(exclusion, parent, childIndex, edgeType, edgeSlot, cost);
+    }
+    if (cost >= objectCosts[childIndex] || contains(visitedSet, childIndex)) {
+      return;
+    }
+    objectCosts[childIndex] = cost;
+    toVisitHeap.add(cost, addNode(exclusion, parent, childIndex, edgeType, edgeSlot));
+  }
+
+  private void addWeightedPath(Exclusion exclusion, int parent, int leakingIndex, byte edgeType,
+      int edgeSlot, long cost) {
+    // A path that goes through the leaking reference before reaching it again is not another
+    // path to it.
+    for (int node = parent; node != NO_PARENT; node = nodeParent(node)) {
+      if (nodeObject(node) == leakingIndex) {
+        return;
+      }
+    }
+    int referrer = parent == NO_PARENT ? -1 : nodeObject(parent);
+    for (WeightedPaths paths : weightedPaths) {
+      if (paths != null && paths.objectIndex == leakingIndex) {
+        paths.add(cost, referrer, exclusion, parent, edgeType, edgeSlot);
+      }
+    }
+    settledCost = settledCost();
+  }
+
+  /** Cost above which no path can replace those found, once all the paths needed are found. */
+  private long settledCost() {
+    long settledCost = Long.MIN_VALUE;
+    for (WeightedPaths paths : weightedPaths) {
+      if (paths != null) {
+        settledCost = Math.max(settledCost, paths.settledCost());
+      }
+    }
+    // Nothing to look for if none of the leaking references are in the heap dump.
+    return settledCost;
+  }
+
+  /**
+   * @param provenCost cost up to which the paths found are the cheapest, when the search stopped
+   * at a limit.
+   */
+  private Result weightedResult(WeightedPaths paths, Limit limitReached, long provenCost) {
+    if (paths == null) {
+      return result(NO_PARENT, false, null, false);
+    }
+    if (paths.size == 0) {
+      return result(NO_PARENT, false, limitReached, depthLimitReached);
+    }
+    int leakingNode = NO_PARENT;
+    List<LeakNode> alternativeLeakingNodes = new ArrayList<>();
+    for (int i = 0; i < paths.size; i++) {
+      int node = addNode(paths.exclusions[i], paths.parents[i], paths.objectIndex,
+          paths.edgeTypes[i], paths.edgeSlots[i]);
+      if (i == 0) {
+        leakingNode = node;
+      } else {
+        alternativeLeakingNodes.add(buildLeakNode(node));
+      }
+    }
+    long cost = paths.costs[0];
+    return result(leakingNode, cost >= EXCLUDED_COST, cost <= provenCost ? null : limitReached,
+        depthLimitReached, alternativeLeakingNodes);
+  }
+
+  private ClassCosts classCosts(HprofIndex.ClassInfo classInfo) {
+    ClassCosts costs = classCosts[classInfo.index];
+    if (costs == null) {
+      costs = new ClassCosts(classInfo);
+      classCosts[classInfo.index] = costs;
+    }
+    return costs;
+  }
+
+  private static int checkCost(int cost) {
+    if (cost < 0 || cost > PathCostModel.MAX_COST) {
+      throw new IllegalArgumentException(
+          "Costs must be between 0 and " + PathCostModel.MAX_COST + ", not " + cost);
+    }
+    return cost;
+  }
+
+  private Result findPathFromLeakingInstance(int leakingIndex) {
+    // The leaking instance is a child that is never enqueued in a forward search.
+    if (leakingIndex == -1 || index.isPrimitiveOrWrapperArrayAt(leakingIndex)
+        || index.isPrimitiveWrapperAt(leakingIndex)) {
+      return result(NO_PARENT, false, null, false);
+    }
+    add(toVisitSet, leakingIndex);
+    toVisitQueue.add(addNode(null, NO_PARENT, leakingIndex, NO_EDGE, 0));
+
+    boolean excludingKnownLeaks = false;
+    int rootNode = NO_PARENT;
+    // First node held by an excluded thread, which is a path with one exclusion.
+    int excludedRootNode = NO_PARENT;
+    Limit limitReached = null;
+    while (true) {
+      limitReached = checkLimits(false);
+      if (limitReached != null) {
+        // A path with one exclusion is the best path found so far.
+        rootNode = excludedRootNode;
+        excludingKnownLeaks |= excludedRootNode != NO_PARENT;
+        CanaryLog.d("Path search stopped at %s limit: %s", limitReached, searchStats());
+        break;
+      }
+      int node;
+      if (!toVisitQueue.isEmpty()) {
+        node = toVisitQueue.poll();
+      } else if (excludedRootNode != NO_PARENT) {
+        rootNode = excludedRootNode;
+        excludingKnownLeaks = true;
+        break;
+      } else if (!toVisitIfNoPathQueue.isEmpty()) {
+        node = toVisitIfNoPathQueue.poll();
+        if (nodeExclusion(node) == null) {
+          throw new IllegalStateException(
+              "Expected node to have an exclusion " + index.describe(instance(node)));
+        }
+        excludingKnownLeaks = true;
+      } else {
+        break;
+      }
+
+      // Termination
+      int objectIndex = nodeObject(node);
+      if (contains(rootSet, objectIndex)) {
+        rootNode = node;
+        break;
+      }
+
+      if (checkSeen(objectIndex) || !checkDepth(node)) {
+        continue;
+      }
+
+      if (excludedRootNode == NO_PARENT && contains(excludedRootSet, objectIndex)) {
+        excludedRootNode = node;
+      }
+
+      long instance = index.objectId(objectIndex);
+      int end = reverseReferences.referrersEnd(objectIndex);
+      for (int i = reverseReferences.referrersStart(objectIndex); i < end; i++) {
+        int referrer = reverseReferences.referrer(i);
+        if (contains(toVisitSet, referrer) || contains(visitedSet, referrer)) {
+          continue;
+        }
+        if (findReference(referrer, instance)) {
+          enqueueObject(referenceExclusion, node, referrer, referenceType, referenceSlot);
+        }
+      }
+    }
+    if (rootNode == NO_PARENT) {
+      return result(NO_PARENT, excludingKnownLeaks, limitReached, depthLimitReached);
+    }
+    return result(reversePath(rootNode, rootNode == excludedRootNode), excludingKnownLeaks,
+        limitReached, depthLimitReached);
+  }
+
+  private void markGcRoots() {
+    int bitsetSize = visitedSet.length;
+    if (rootSet == null || rootSet.length != bitsetSize) {
+      rootSet = new long[bitsetSize];
+      excludedRootSet = new long[bitsetSize];
+    } else {
+      Arrays.fill(rootSet, 0);
+      Arrays.fill(excludedRootSet, 0);
+    }
+    for (int i = 0; i < index.rootCount(); i++) {
+      if (!isGcRoot(index.rootType(i))) {
+        continue;
+      }
+      int objectIndex = index.objectIndex(index.rootId(i));
+      if (objectIndex == -1) {
+        continue;
+      }
+      Exclusion params = rootExclusion(i);
+      if (params == null) {
+        add(rootSet, objectIndex);
+      } else if (!params.alwaysExclude) {
+        add(excludedRootSet, objectIndex);
+      }
+    }
+  }
+
+  /**
+   * Looks for a reference from referrer to instance, preferring references that are not
+   * excluded, and stores it in {@link #referenceType}, {@link #referenceSlot} and
+   * {@link #referenceExclusion}.
+   *
+   * @return false if referrer only holds instance through always excluded references.
+   */
+  private boolean findReference(int referrer, long instance) {
+    boolean found = false;
+    switch (index.tagAt(referrer)) {
+      case CLASS_DUMP:
+        HprofIndex.ClassInfo classInfo = index.classAt(referrer);
+        ClassExclusions staticExclusions = classExclusions(classInfo);
+        for (int i = 0; i < classInfo.staticFieldNames.length; i++) {
+          if (classInfo.staticFieldTypes[i] != OBJECT
+              || index.readId(classInfo.staticValuePositions[i]) != instance) {
+            continue;
+          }
+          Exclusion params = staticExclusions.staticFieldExclusion(i);
+          if (params == null || (!params.alwaysExclude && !found)) {
+            found = true;
+            setReference(STATIC_FIELD, i, params);
+            if (params == null) {
+              break;
+            }
+          }
+        }
+        break;
+      case INSTANCE_DUMP:
+        HprofIndex.ClassInfo instanceClass = index.classAt(referrer);
+        ClassExclusions exclusions = classExclusions(instanceClass);
+        if (exclusions.alwaysExcluded()) {
+          break;
+        }
+        long position = index.fieldsPositionAt(referrer);
+        int[] referenceOffsets = instanceClass.layout.referenceOffsets;
+        for (int i = 0; i < referenceOffsets.length; i++) {
+          if (index.readId(position + referenceOffsets[i]) != instance) {
+            continue;
+          }
+          Exclusion fieldExclusion = exclusions.referenceExclusion(i);
+          if (fieldExclusion == null || !found) {
+            found = true;
+            setReference(INSTANCE_FIELD, i, fieldExclusion);
+            if (fieldExclusion == null) {
+              break;
+            }
+          }
+        }
+        break;
+      case OBJECT_ARRAY_DUMP:
+        int length = index.arrayLengthAt(referrer);
+        long valuesPosition = index.arrayValuesPositionAt(referrer);
+        for (int i = 0; i < length; i++) {
+          if (index.readId(valuesPosition + (long) i * index.idSize) == instance) {
+            found = true;
+            setReference(ARRAY_ENTRY, i, null);
+            break;
           }
+        }
+        break;
+      default:
+        break;
+    }
+    return found;
+  }
+
+  private void setReference(LeakTraceElement.Type type, int slot, Exclusion exclusion) {
+    referenceType = (byte) type.ordinal();
+    referenceSlot = slot;
+    referenceExclusion = exclusion;
+  }
+
+  /**
+   * Adds the nodes of a path found by a backward search, from the gc root to the leaking
+   * instance, and returns the last one.
+   *
+   * @param excludedRoot whether rootNode is only held by the local variables of excluded threads.
+   */
+  private int reversePath(int rootNode, boolean excludedRoot) {
+    int objectIndex = nodeObject(rootNode);
+    int pathNode = NO_PARENT;
+    for (int i = 0; i < index.rootCount(); i++) {
+      if (!isGcRoot(index.rootType(i)) || index.objectIndex(index.rootId(i)) != objectIndex) {
+        continue;
+      }
+      Exclusion params = rootExclusion(i);
+      if (excludedRoot ? params != null && !params.alwaysExclude : params == null) {
+        long thread = rootThread(i);
+        if (thread == 0) {
+          pathNode = addNode(null, NO_PARENT, objectIndex, NO_EDGE, 0);
+        } else {
+          int parent = addNode(null, NO_PARENT, index.objectIndex(thread), NO_EDGE, 0);
+          pathNode = addNode(params, parent, objectIndex, (byte) LOCAL.ordinal(), 0);
+        }
+        break;
+      }
+    }
+    // Each node of the backward search references its parent.
+    for (int node = rootNode; nodeParent(node) != NO_PARENT; node = nodeParent(node)) {
+      pathNode = addNode(nodeExclusion(node), pathNode, nodeObject(nodeParent(node)),
+          nodeEdgeType(node), nodeEdgeSlot(node));
+    }
+    return pathNode;
+  }
+
+  /** Creates the {@link LeakNode} chain from a gc root to that node. */
+  private LeakNode buildLeakNode(int leakingNode) {
+    int depth = 0;
+    for (int node = leakingNode; node != NO_PARENT; node = nodeParent(node)) {
+      depth++;
+    }
+    int[] path = new int[depth];
+    for (int node = leakingNode, i = depth - 1; node != NO_PARENT; node = nodeParent(node)) {
+      path[i--] = node;
+    }
+    LeakNode leakNode = null;
+    for (int node : path) {
+      leakNode = buildLeakNode(leakNode, node);
+    }
+    return leakNode;
+  }
+
+  private LeakNode buildLeakNode(LeakNode parent, int node) {
+    long instance = instance(node);
+    LeakReference leakReference = null;
+    if (nodeEdgeType(node) != NO_EDGE) {
+      LeakTraceElement.Type edgeType = EDGE_TYPES[nodeEdgeType(node)];
+      int edgeSlot = nodeEdgeSlot(node);
+      String name;
+      switch (edgeType) {
+        case STATIC_FIELD:
+          name = index.classInfo(parent.instance).staticFieldNames[edgeSlot];
           break;
-        case INTERNED_STRING:
-        case DEBUGGER:
-        case INVALID_TYPE:
-          // An object that is unreachable from any other root, but not a root itself.
-        case UNREACHABLE:
-        case UNKNOWN:
-          // An object that is in a queue, waiting for a finalizer to run.
-        case FINALIZING:
+        case INSTANCE_FIELD:
+          name = index.instanceClass(parent.instance).layout.referenceNames[edgeSlot];
           break;
-        case SYSTEM_CLASS:
-        case VM_INTERNAL:
-          // A local variable in native code.
-        case NATIVE_LOCAL:
-          // A global variable in native code.
-        case NATIVE_STATIC:
-          // An object that was referenced from an active thread block.
-        case THREAD_BLOCK:
-          // Everything that called the wait() or notify() methods, or that is synchronized.
-        case BUSY_MONITOR:
-        case NATIVE_MONITOR:
-        case REFERENCE_CLEANUP:
-          // Input or output parameters in native code.
-        case NATIVE_STACK:
-        case JAVA_STATIC:
-          enqueue(null, null, rootObj, null);
+        case ARRAY_ENTRY:
+          name = Integer.toString(edgeSlot);
           break;
         default:
-          throw new UnsupportedOperationException("Unknown root type:" + rootObj.getRootType());
+          name = null;
+          break;
       }
+      String value = edgeType == LOCAL ? null : index.describe(instance);
+      leakReference = new LeakReference(edgeType, name, value);
     }
+    return new LeakNode(nodeExclusion(node), instance, parent, leakReference);
+  }
+
+  private static boolean contains(long[] bitset, int objectIndex) {
+    return (bitset[objectIndex >>> 6] & (1L << objectIndex)) != 0;
   }
 
-  private boolean checkSeen(LeakNode node) {
-    return !visitedSet.add(node.instance);
+  private static void add(long[] bitset, int objectIndex) {
+    bitset[objectIndex >>> 6] |= 1L << objectIndex;
   }
 
-  private void visitRootObj(LeakNode node) {
-    RootObj rootObj = (RootObj) node.instance;
-    Instance child = rootObj.getReferredInstance();
+  private static void remove(long[] bitset, int objectIndex) {
+    bitset[objectIndex >>> 6] &= ~(1L << objectIndex);
+  }
 
-    if (rootObj.getRootType() == RootType.JAVA_LOCAL) {
-      Instance holder = HahaSpy.allocatingThread(rootObj);
-      // We switch the parent node with the thread instance that holds
-      // the local reference.
-      Exclusion exclusion = null;
-      if (node.exclusion != null) {
-        exclusion = node.exclusion;
+  /** The leaking references of a search from the gc roots, and where they were found. */
+  private static final class LeakingRefs {
+    final int[] objectIndexes;
+    /** Node of each leaking reference, {@link #NO_PARENT} until found. */
+    final int[] nodes;
+    /** Whether excluded references were followed before each leaking reference was found. */
+    final boolean[] excludingKnownLeaks;
+    /** Whether nodes were too deep to visit before each leaking reference was found. */
+    final boolean[] depthLimitReached;
+    int remaining;
+
+    LeakingRefs(int[] objectIndexes) {
+      this.objectIndexes = objectIndexes;
+      nodes = new int[objectIndexes.length];
+      Arrays.fill(nodes, NO_PARENT);
+      excludingKnownLeaks = new boolean[objectIndexes.length];
+      depthLimitReached = new boolean[objectIndexes.length];
+      for (int objectIndex : objectIndexes) {
+        if (objectIndex != -1) {
+          remaining++;
+        }
       }
-      LeakNode parent = new LeakNode(null, holder, null, null);
-      enqueue(exclusion, parent, child, new LeakReference(LOCAL, null, null));
-    } else {
-      enqueue(null, node, child, null);
     }
   }
 
-  private void visitClassObj(LeakNode node) {
-    ClassObj classObj = (ClassObj) node.instance;
-    Map<String, Exclusion> ignoredStaticFields =
-        excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
-    for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-      Field field = entry.getKey();
-      if (field.getType() != Type.OBJECT) {
-        continue;
+  /**
+   * Reads the references of the objects of the search tree, with their exclusions. Only reads
+   * the tree and its own index, so that several readers can read at once as long as the tree
+   * doesn't change. The exclusions of the classes read must be resolved beforehand.
+   */
+  private abstract class ReferenceReader {
+    final HprofIndex index;
+
+    ReferenceReader(HprofIndex index) {
+      this.index = index;
+    }
+
+    final void read(int node, int objectIndex) {
+      switch (index.tagAt(objectIndex)) {
+        case CLASS_DUMP:
+          readStaticFields(node, objectIndex);
+          break;
+        case INSTANCE_DUMP:
+          readInstanceFields(node, objectIndex);
+          break;
+        case OBJECT_ARRAY_DUMP:
+          readArrayEntries(node, objectIndex);
+          break;
+        case PRIMITIVE_ARRAY_DUMP:
+        case PRIMITIVE_ARRAY_NODATA:
+          break;
+        default:
+          throw new IllegalStateException(
+              "Unexpected type for " + index.describe(index.objectId(objectIndex)));
       }
-      String fieldName = field.getName();
-      if (fieldName.equals("$staticOverhead")) {
-        continue;
+    }
+
+    abstract void reference(Exclusion exclusion, int parent, long child, byte edgeType,
+        int edgeSlot);
+
+    private void readStaticFields(int node, int objectIndex) {
+      HprofIndex.ClassInfo classInfo = index.classAt(objectIndex);
+      ClassExclusions exclusions = classExclusions[classInfo.index];
+      byte edgeType = (byte) STATIC_FIELD.ordinal();
+      for (int i = 0; i < classInfo.staticFieldNames.length; i++) {
+        if (classInfo.staticFieldTypes[i] != OBJECT) {
+          continue;
+        }
+        if (classInfo.staticFieldNames[i].equals("$staticOverhead")) {
+          continue;
+        }
+        Exclusion params = exclusions.staticFieldExclusion(i);
+        if (params == null || !params.alwaysExclude) {
+          long child = index.readId(classInfo.staticValuePositions[i]);
+          reference(params, node, child, edgeType, i);
+        }
       }
-      Instance child = (Instance) entry.getValue();
-      boolean visit = true;
-      String fieldValue = entry.getValue() == null ? "null" : entry.getValue().toString();
-      LeakReference leakReference = new LeakReference(STATIC_FIELD, fieldName, fieldValue);
-      if (ignoredStaticFields != null) {
-        Exclusion params = ignoredStaticFields.get(fieldName);
+    }
+
+    private void readInstanceFields(int node, int objectIndex) {
+      HprofIndex.ClassInfo classInfo = index.classAt(objectIndex);
+      ClassExclusions exclusions = classExclusions[classInfo.index];
+      if (exclusions.alwaysExcluded()) {
+        return;
+      }
+      long position = index.fieldsPositionAt(objectIndex);
+      int[] referenceOffsets = classInfo.layout.referenceOffsets;
+      byte edgeType = (byte) INSTANCE_FIELD.ordinal();
+      for (int i = 0; i < referenceOffsets.length; i++) {
+        long child = index.readId(position + referenceOffsets[i]);
+        reference(exclusions.referenceExclusion(i), node, child, edgeType, i);
+      }
+    }
+
+    private void readArrayEntries(int node, int objectIndex) {
+      int length = index.arrayLengthAt(objectIndex);
+      long position = index.arrayValuesPositionAt(objectIndex);
+      byte edgeType = (byte) ARRAY_ENTRY.ordinal();
+      for (int i = 0; i < length; i++) {
+        long child = index.readId(position + (long) i * index.idSize);
+        reference(null, node, child, edgeType, i);
+      }
+    }
+  }
+
+  /** Enqueues references as they are read, on the current thread. */
+  private final class Enqueuer extends ReferenceReader {
+    Enqueuer() {
+      super(ShortestPathFinder.this.index);
+    }
+
+    @Override void reference(Exclusion exclusion, int parent, long child, byte edgeType,
+        int edgeSlot) {
+      enqueue(exclusion, parent, child, edgeType, edgeSlot);
+    }
+  }
+
+  /** Enqueues references with the cost of the path through them, for a weighted search. */
+  private final class WeightedEnqueuer extends ReferenceReader {
+    private final PathCostModel costModel;
+    /** Cost of the path to the object being read. */
+    private long cost;
+    /** Costs of the static fields or reference fields of the object being read. */
+    private int[] fieldCosts;
+    private int arrayEntryCost;
+    /** Cost of the entries of the arrays of unknown class, -1 until needed. */
+    private int unknownArrayEntryCost = -1;
+
+    WeightedEnqueuer(PathCostModel costModel) {
+      super(ShortestPathFinder.this.index);
+      this.costModel = costModel;
+    }
+
+    void read(int node, int objectIndex, long cost) {
+      this.cost = cost;
+      HprofIndex.ClassInfo classInfo = index.classAt(objectIndex);
+      switch (index.tagAt(objectIndex)) {
+        case CLASS_DUMP:
+          fieldCosts = classCosts(classInfo).staticFieldCosts(costModel);
+          break;
+        case INSTANCE_DUMP:
+          fieldCosts = classCosts(classInfo).referenceCosts(costModel);
+          break;
+        case OBJECT_ARRAY_DUMP:
+          if (classInfo != null) {
+            arrayEntryCost = classCosts(classInfo).arrayEntryCost(costModel);
+          } else {
+            if (unknownArrayEntryCost == -1) {
+              unknownArrayEntryCost = checkCost(
+                  costModel.referenceCost(ARRAY_ENTRY, "java.lang.Object[]", null));
+            }
+            arrayEntryCost = unknownArrayEntryCost;
+          }
+          break;
+        default:
+          break;
+      }
+      read(node, objectIndex);
+    }
+
+    @Override void reference(Exclusion exclusion, int parent, long child, byte edgeType,
+        int edgeSlot) {
+      int childIndex = index.objectIndex(child);
+      if (childIndex == -1) {
+        return;
+      }
+      long childCost = cost + (EDGE_TYPES[edgeType] == ARRAY_ENTRY ? arrayEntryCost
+          : fieldCosts[edgeSlot]);
+      if (exclusion != null) {
+        childCost += EXCLUDED_COST;
+      }
+      enqueueWeighted(exclusion, parent, childIndex, edgeType, edgeSlot, childCost);
+    }
+  }
+
+  /**
+   * Keeps the references read on a worker thread until they are enqueued on the current thread.
+   * References that can't be enqueued given the state of the search before the level was read
+   * are dropped.
+   */
+  private final class ReferenceBuffer extends ReferenceReader {
+    private int size;
+    private Exclusion[] exclusions = new Exclusion[INITIAL_CAPACITY];
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] children = new int[INITIAL_CAPACITY];
+    private byte[] edgeTypes = new byte[INITIAL_CAPACITY];
+    private int[] edgeSlots = new int[INITIAL_CAPACITY];
+
+    ReferenceBuffer(HprofIndex index) {
+      super(index);
+    }
+
+    void read(int node) {
+      read(node, nodeObject(node));
+    }
+
+    @Override void reference(Exclusion exclusion, int parent, long child, byte edgeType,
+        int edgeSlot) {
+      int childIndex = index.objectIndex(child);
+      // Same checks as enqueueObject(), which only get stricter as the search goes.
+      if (childIndex == -1 || contains(toVisitSet, childIndex) || contains(visitedSet, childIndex)
+          || (exclusion != null && contains(toVisitIfNoPathSet, childIndex))) {
+        return;
+      }
+      if (index.isPrimitiveOrWrapperArrayAt(childIndex) || index.isPrimitiveWrapperAt(childIndex)
+          || (canIgnoreStrings && index.isStringAt(childIndex))) {
+        return;
+      }
+      if (size == parents.length) {
+        int newCapacity = size + (size >> 1);
+        exclusions = Arrays.copyOf(exclusions, newCapacity);
+        parents = Arrays.copyOf(parents, newCapacity);
+        children = Arrays.copyOf(children, newCapacity);
+        edgeTypes = Arrays.copyOf(edgeTypes, newCapacity);
+        edgeSlots = Arrays.copyOf(edgeSlots, newCapacity);
+      }
+      exclusions[size] = exclusion;
+      parents[size] = parent;
+      children[size] = childIndex;
+      edgeTypes[size] = edgeType;
+      edgeSlots[size] = edgeSlot;
+      size++;
+    }
+
+    void enqueueAll() {
+      for (int i = 0; i < size; i++) {
+        enqueueObject(exclusions[i], parents[i], children[i], edgeTypes[i], edgeSlots[i]);
+      }
+    }
+
+    void clear() {
+      Arrays.fill(exclusions, 0, size, null);
+      size = 0;
+    }
+  }
+
+  /**
+   * The exclusions that apply to the references of a class and of its instances, resolved once
+   * from the class names of {@link ExcludedRefs}.
+   */
+  private static final class ClassExclusions {
+    /** Strongest exclusion of the class and its superclasses, applies to all instance fields. */
+    private final Exclusion classExclusion;
+    /** By reference index in the {@link HprofIndex.FieldLayout}, null if none is excluded. */
+    private final Exclusion[] referenceExclusions;
+    /** By static field index, null if none is excluded. */
+    private final Exclusion[] staticFieldExclusions;
+
+    ClassExclusions(ExcludedRefs excludedRefs, HprofIndex.ClassInfo classInfo) {
+      Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
+      HprofIndex.ClassInfo superClassInfo = classInfo;
+      Exclusion classExclusion = null;
+      while (superClassInfo != null) {
+        Exclusion params = excludedRefs.classNames.get(superClassInfo.name);
         if (params != null) {
-          visit = false;
-          if (!params.alwaysExclude) {
-            enqueue(params, node, child, leakReference);
+          // true overrides null or false.
+          if (classExclusion == null || !classExclusion.alwaysExclude) {
+            classExclusion = params;
           }
         }
+        Map<String, Exclusion> classIgnoredFields =
+            excludedRefs.fieldNameByClassName.get(superClassInfo.name);
+        if (classIgnoredFields != null) {
+          ignoredFields.putAll(classIgnoredFields);
+        }
+        superClassInfo = superClassInfo.superClass;
       }
-      if (visit) {
-        enqueue(null, node, child, leakReference);
+      this.classExclusion = classExclusion;
+
+      Exclusion[] referenceExclusions = null;
+      if (classExclusion != null || !ignoredFields.isEmpty()) {
+        String[] referenceNames = classInfo.layout.referenceNames;
+        referenceExclusions = new Exclusion[referenceNames.length];
+        for (int i = 0; i < referenceNames.length; i++) {
+          Exclusion fieldExclusion = classExclusion;
+          Exclusion params = ignoredFields.get(referenceNames[i]);
+          // If we found a field exclusion and it's stronger than a class exclusion
+          if (params != null && (fieldExclusion == null || (params.alwaysExclude
+              && !fieldExclusion.alwaysExclude))) {
+            fieldExclusion = params;
+          }
+          referenceExclusions[i] = fieldExclusion;
+        }
       }
+      this.referenceExclusions = referenceExclusions;
+
+      Map<String, Exclusion> ignoredStaticFields =
+          excludedRefs.staticFieldNameByClassName.get(classInfo.name);
+      Exclusion[] staticFieldExclusions = null;
+      if (ignoredStaticFields != null) {
+        String[] staticFieldNames = classInfo.staticFieldNames;
+        staticFieldExclusions = new Exclusion[staticFieldNames.length];
+        for (int i = 0; i < staticFieldNames.length; i++) {
+          staticFieldExclusions[i] = ignoredStaticFields.get(staticFieldNames[i]);
+        }
+      }
+      this.staticFieldExclusions = staticFieldExclusions;
+    }
+
+    /** Whether the instances of that class are never followed. */
+    boolean alwaysExcluded() {
+      return classExclusion != null && classExclusion.alwaysExclude;
+    }
+
+    Exclusion referenceExclusion(int referenceIndex) {
+      return referenceExclusions == null ? null : referenceExclusions[referenceIndex];
+    }
+
+    Exclusion staticFieldExclusion(int staticFieldIndex) {
+      return staticFieldExclusions == null ? null : staticFieldExclusions[staticFieldIndex];
     }
   }
 
-  private void visitClassInstance(LeakNode node) {
-    ClassInstance classInstance = (ClassInstance) node.instance;
-    Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
-    ClassObj superClassObj = classInstance.getClassObj();
-    Exclusion classExclusion = null;
-    while (superClassObj != null) {
-      Exclusion params = excludedRefs.classNames.get(superClassObj.getClassName());
-      if (params != null) {
-        // true overrides null or false.
-        if (classExclusion == null || !classExclusion.alwaysExclude) {
-          classExclusion = params;
+  /** The costs of the references of a class and of its instances, asked once to the model. */
+  private static final class ClassCosts {
+    private final HprofIndex.ClassInfo classInfo;
+    /** By reference index in the {@link HprofIndex.FieldLayout}. */
+    private int[] referenceCosts;
+    /** By static field index. */
+    private int[] staticFieldCosts;
+    private int arrayEntryCost = -1;
+
+    ClassCosts(HprofIndex.ClassInfo classInfo) {
+      this.classInfo = classInfo;
+    }
+
+    int[] referenceCosts(PathCostModel costModel) {
+      if (referenceCosts == null) {
+        String[] referenceNames = classInfo.layout.referenceNames;
+        referenceCosts = new int[referenceNames.length];
+        for (int i = 0; i < referenceNames.length; i++) {
+          referenceCosts[i] = checkCost(
+              costModel.referenceCost(INSTANCE_FIELD, classInfo.name, referenceNames[i]));
+        }
+      }
+      return referenceCosts;
+    }
+
+    int[] staticFieldCosts(PathCostModel costModel) {
+      if (staticFieldCosts == null) {
+        String[] staticFieldNames = classInfo.staticFieldNames;
+        staticFieldCosts = new int[staticFieldNames.length];
+        for (int i = 0; i < staticFieldNames.length; i++) {
+          if (classInfo.staticFieldTypes[i] == OBJECT) {
+            staticFieldCosts[i] = checkCost(
+                costModel.referenceCost(STATIC_FIELD, classInfo.name, staticFieldNames[i]));
+          }
         }
       }
-      Map<String, Exclusion> classIgnoredFields =
-          excludedRefs.fieldNameByClassName.get(superClassObj.getClassName());
-      if (classIgnoredFields != null) {
-        ignoredFields.putAll(classIgnoredFields);
+      return staticFieldCosts;
+    }
+
+    int arrayEntryCost(PathCostModel costModel) {
+      if (arrayEntryCost == -1) {
+        arrayEntryCost = checkCost(costModel.referenceCost(ARRAY_ENTRY, classInfo.name, null));
       }
-      superClassObj = superClassObj.getSuperClassObj();
+      return arrayEntryCost;
     }
+  }
 
-    if (classExclusion != null && classExclusion.alwaysExclude) {
-      return;
+  /**
+   * The cheapest paths to a leaking reference found by a weighted search, at most one per
+   * referrer, by increasing cost. Each path is the node of the referrer and the reference to the
+   * leaking reference.
+   */
+  private static final class WeightedPaths {
+    final int objectIndex;
+    int size;
+    final long[] costs;
+    /** Object index of the referrer of each path, -1 for a gc root. */
+    final int[] referrers;
+    final Exclusion[] exclusions;
+    final int[] parents;
+    final byte[] edgeTypes;
+    final int[] edgeSlots;
+
+    WeightedPaths(int objectIndex, int pathCount) {
+      this.objectIndex = objectIndex;
+      costs = new long[pathCount];
+      referrers = new int[pathCount];
+      exclusions = new Exclusion[pathCount];
+      parents = new int[pathCount];
+      edgeTypes = new byte[pathCount];
+      edgeSlots = new int[pathCount];
     }
 
-    for (ClassInstance.FieldValue fieldValue : classInstance.getValues()) {
-      Exclusion fieldExclusion = classExclusion;
-      Field field = fieldValue.getField();
-      if (field.getType() != Type.OBJECT) {
-        continue;
+    void add(long cost, int referrer, Exclusion exclusion, int parent, byte edgeType,
+        int edgeSlot) {
+      for (int i = 0; i < size; i++) {
+        if (referrers[i] == referrer) {
+          if (costs[i] <= cost) {
+            return;
+          }
+          // Replaced by the cheaper path from the same referrer.
+          move(i + 1, i, size - i - 1);
+          size--;
+          break;
+        }
       }
-      Instance child = (Instance) fieldValue.getValue();
-      String fieldName = field.getName();
-      Exclusion params = ignoredFields.get(fieldName);
-      // If we found a field exclusion and it's stronger than a class exclusion
-      if (params != null && (fieldExclusion == null || (params.alwaysExclude
-          && !fieldExclusion.alwaysExclude))) {
-        fieldExclusion = params;
+      if (size == costs.length && costs[size - 1] <= cost) {
+        return;
       }
-      String value = fieldValue.getValue() == null ? "null" : fieldValue.getValue().toString();
-      enqueue(fieldExclusion, node, child, new LeakReference(INSTANCE_FIELD, fieldName, value));
+      int position = size == costs.length ? size - 1 : size++;
+      while (position > 0 && costs[position - 1] > cost) {
+        position--;
+      }
+      // Drops the last path if there was no room left.
+      move(position, position + 1, size - position - 1);
+      costs[position] = cost;
+      referrers[position] = referrer;
+      exclusions[position] = exclusion;
+      parents[position] = parent;
+      edgeTypes[position] = edgeType;
+      edgeSlots[position] = edgeSlot;
+    }
+
+    private void move(int from, int to, int count) {
+      System.arraycopy(costs, from, costs, to, count);
+      System.arraycopy(referrers, from, referrers, to, count);
+      System.arraycopy(exclusions, from, exclusions, to, count);
+      System.arraycopy(parents, from, parents, to, count);
+      System.arraycopy(edgeTypes, from, edgeTypes, to, count);
+      System.arraycopy(edgeSlots, from, edgeSlots, to, count);
+    }
+
+    /** Cost of the most expensive path kept, or {@link Long#MAX_VALUE} until enough are found. */
+    long settledCost() {
+      return size == costs.length ? costs[size - 1] : Long.MAX_VALUE;
     }
   }
 
-  private void visitArrayInstance(LeakNode node) {
-    ArrayInstance arrayInstance = (ArrayInstance) node.instance;
-    Type arrayType = arrayInstance.getArrayType();
-    if (arrayType == Type.OBJECT) {
-      Object[] values = arrayInstance.getValues();
-      for (int i = 0; i < values.length; i++) {
-        Instance child = (Instance) values[i];
-        String name = Integer.toString(i);
-        String value = child == null ? "null" : child.toString();
-        enqueue(null, node, child, new LeakReference(ARRAY_ENTRY, name, value));
+  /** A binary min-heap of nodes by cost, which polls nodes of the same cost in order. */
+  private static final class NodeHeap {
+    private long[] costs = new long[INITIAL_CAPACITY];
+    private int[] nodes = new int[INITIAL_CAPACITY];
+    private int size;
+
+    void add(long cost, int node) {
+      if (size == costs.length) {
+        int newCapacity = size + (size >> 1);
+        costs = Arrays.copyOf(costs, newCapacity);
+        nodes = Arrays.copyOf(nodes, newCapacity);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!lessThan(cost, node, costs[parent], nodes[parent])) {
+          break;
+        }
+        costs[i] = costs[parent];
+        nodes[i] = nodes[parent];
+        i = parent;
       }
+      costs[i] = cost;
+      nodes[i] = node;
     }
-  }
 
-  private void enqueue(Exclusion exclusion, LeakNode parent, Instance child,
-      LeakReference leakReference) {
-    if (child == null) {
-      return;
+    long peekCost() {
+      return costs[0];
     }
-    if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
-      return;
+
+    int poll() {
+      int polled = nodes[0];
+      size--;
+      long cost = costs[size];
+      int node = nodes[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size
+            && lessThan(costs[child + 1], nodes[child + 1], costs[child], nodes[child])) {
+          child++;
+        }
+        if (!lessThan(costs[child], nodes[child], cost, node)) {
+          break;
+        }
+        costs[i] = costs[child];
+        nodes[i] = nodes[child];
+        i = child;
+      }
+      costs[i] = cost;
+      nodes[i] = node;
+      return polled;
     }
-    // Whether we want to visit now or later, we should skip if this is already to visit.
-    if (toVisitSet.contains(child)) {
-      return;
+
+    private static boolean lessThan(long cost1, int node1, long cost2, int node2) {
+      return cost1 < cost2 || (cost1 == cost2 && node1 < node2);
     }
-    boolean visitNow = exclusion == null;
-    if (!visitNow && toVisitIfNoPathSet.contains(child)) {
-      return;
+
+    boolean isEmpty() {
+      return size == 0;
     }
-    if (canIgnoreStrings && isString(child)) {
-      return;
+
+    void clear() {
+      size = 0;
     }
-    if (visitedSet.contains(child)) {
-      return;
+  }
+
+  /** A FIFO queue of node indexes, which compacts itself instead of wrapping around. */
+  private static final class IntQueue {
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int head;
+    private int tail;
+
+    void add(int value) {
+      if (tail == values.length) {
+        if (head > values.length / 2) {
+          // Reclaims the space of the polled values rather than growing.
+          System.arraycopy(values, head, values, 0, tail - head);
+          tail -= head;
+          head = 0;
+        } else {
+          values = Arrays.copyOf(values, values.length + (values.length >> 1));
+        }
+      }
+      values[tail++] = value;
     }
-    LeakNode childNode = new LeakNode(exclusion, child, parent, leakReference);
-    if (visitNow) {
-      toVisitSet.add(child);
-      toVisitQueue.add(childNode);
-    } else {
-      toVisitIfNoPathSet.add(child);
-      toVisitIfNoPathQueue.add(childNode);
+
+    int poll() {
+      return values[head++];
+    }
+
+    int size() {
+      return tail - head;
     }
-  }
 
-  private boolean isString(Instance instance) {
-    return instance.getClassObj() != null && instance.getClassObj()
-        .getClassName()
-        .equals(String.class.getName());
+    /** @param i between 0 and {@link #size()}, 0 being the next value polled. */
+    int get(int i) {
+      return values[head + i];
+    }
+
+    /** Removes all the values and returns them in a new array. */
+    int[] pollAll() {
+      int[] polled = Arrays.copyOfRange(values, head, tail);
+      clear();
+      return polled;
+    }
+
+    boolean isEmpty() {
+      return head == tail;
+    }
+
+    void clear() {
+      head = 0;
+      tail = 0;
+    }
   }
 }
@@ -26,11 +26,23 @@ public class TrackedReference {
   /** List of all fields (member and static) for that instance. */
   @NonNull public final List<LeakReference> fields;
 
+  /**
+   * Corresponds to {@link KeyedWeakReference#watchStartNanoTime}, -1 for heap dumps taken before
+   * it was tracked.
+   */
+  public final long watchStartNanoTime;
+
   public TrackedReference(@NonNull String key, @NonNull String name, @NonNull String className,
       @NonNull List<LeakReference> fields) {
+    this(key, name, className, fields, -1);
+  }
+
+  public TrackedReference(@NonNull String key, @NonNull String name, @NonNull String className,
+      @NonNull List<LeakReference> fields, long watchStartNanoTime) {
     this.key = key;
     this.name = name;
     this.className = className;
     this.fields = Collections.unmodifiableList(new ArrayList<>(fields));
+    this.watchStartNanoTime = watchStartNanoTime;
   }
 }
@@ -58,12 +58,15 @@ import androidx.core.content.FileProvider;
 import com.squareup.leakcanary.AnalysisResult;
 import com.squareup.leakcanary.AnalyzedHeap;
 import com.squareup.leakcanary.CanaryLog;
+import com.squareup.leakcanary.CompressedHprofFile;
+import com.squareup.leakcanary.DefaultLeakDirectoryProvider;
 import com.squareup.leakcanary.HeapDump;
 import com.squareup.leakcanary.LeakDirectoryProvider;
 import com.squareup.leakcanary.R;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -209,11 +212,15 @@ public final class DisplayLeakActivity extends Activity {
     final File heapDumpFile = visibleLeak.heapDump.heapDumpFile;
     AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
       @Override public void run() {
+        File sharedFile = sharedHeapDumpFile(heapDumpFile);
+        if (sharedFile == null) {
+          return;
+        }
         //noinspection ResultOfMethodCallIgnored
-        heapDumpFile.setReadable(true, false);
+        sharedFile.setReadable(true, false);
         final Uri heapDumpUri = FileProvider.getUriForFile(getBaseContext(),
             "com.squareup.leakcanary.fileprovider." + getApplication().getPackageName(),
-            heapDumpFile);
+            sharedFile);
         runOnUiThread(new Runnable() {
           @Override public void run() {
             startShareIntentChooser(heapDumpUri);
@@ -230,6 +237,41 @@ public final class DisplayLeakActivity extends Activity {
     startActivity(Intent.createChooser(intent, getString(R.string.leak_canary_share_with)));
   }
 
+  /**
+   * Other tools can't read compressed heap dumps, so those are shared decompressed. Only the last
+   * decompressed heap dump is kept.
+   */
+  File sharedHeapDumpFile(File heapDumpFile) {
+    try {
+      if (!CompressedHprofFile.isCompressed(heapDumpFile)) {
+        return heapDumpFile;
+      }
+      File sharedDirectory = sharedDirectory(heapDumpFile);
+      File[] previousFiles = sharedDirectory.listFiles();
+      if (previousFiles != null) {
+        for (File previousFile : previousFiles) {
+          //noinspection ResultOfMethodCallIgnored
+          previousFile.delete();
+        }
+      }
+      if (!sharedDirectory.mkdirs() && !sharedDirectory.exists()) {
+        CanaryLog.d("Could not create directory %s", sharedDirectory.getPath());
+        return null;
+      }
+      File sharedFile = new File(sharedDirectory, heapDumpFile.getName());
+      CompressedHprofFile.decompress(heapDumpFile, sharedFile);
+      return sharedFile;
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not decompress heap dump file %s", heapDumpFile.getPath());
+      return null;
+    }
+  }
+
+  /** Deleted by {@link LeakDirectoryProvider#clearLeakDirectory()}. */
+  private static File sharedDirectory(File heapDumpFile) {
+    return new File(heapDumpFile.getParentFile(), "shared");
+  }
+
   void deleteVisibleLeak() {
     final AnalyzedHeap visibleLeak = getVisibleLeak();
     AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
@@ -244,6 +286,11 @@ public final class DisplayLeakActivity extends Activity {
         if (!heapDumpDeleted) {
           CanaryLog.d("Could not delete heap dump file %s", heapDumpFile.getPath());
         }
+        DefaultLeakDirectoryProvider.deleteSidecarFiles(heapDumpFile);
+        File sharedFile = new File(sharedDirectory(heapDumpFile), heapDumpFile.getName());
+        if (sharedFile.exists() && !sharedFile.delete()) {
+          CanaryLog.d("Could not delete shared heap dump file %s", sharedFile.getPath());
+        }
       }
     });
     visibleLeakRefKey = null;
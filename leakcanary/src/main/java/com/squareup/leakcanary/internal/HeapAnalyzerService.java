@@ -29,6 +29,7 @@ import com.squareup.leakcanary.AnalyzerProgressListener;
 import com.squareup.leakcanary.CanaryLog;
 import com.squareup.leakcanary.HeapAnalyzer;
 import com.squareup.leakcanary.HeapDump;
+import com.squareup.leakcanary.PathFinderConfig;
 import com.squareup.leakcanary.R;
 
 /**
@@ -43,6 +44,12 @@ public final class HeapAnalyzerService extends ForegroundService
   private static final String LISTENER_CLASS_EXTRA = "listener_class_extra";
   private static final String HEAPDUMP_EXTRA = "heapdump_extra";
 
+  /**
+   * 5 minutes, half the time DefaultLeakDirectoryProvider waits for a pending heap dump, so that
+   * a pathological heap dump is still reported with the best path found.
+   */
+  private static final long PATH_SEARCH_MAX_DURATION_MS = 5 * 60 * 1000;
+
   /**
    * 启动Service进行堆内存分析
    */
@@ -75,8 +82,11 @@ public final class HeapAnalyzerService extends ForegroundService
     HeapDump heapDump = (HeapDump) intent.getSerializableExtra(HEAPDUMP_EXTRA);
 
     //创建堆内存分析类
+    PathFinderConfig pathFinderConfig =
+        PathFinderConfig.builder().maxDurationMs(PATH_SEARCH_MAX_DURATION_MS).build();
     HeapAnalyzer heapAnalyzer =
-        new HeapAnalyzer(heapDump.excludedRefs, this, heapDump.reachabilityInspectorClasses);
+        new HeapAnalyzer(heapDump.excludedRefs, this, heapDump.reachabilityInspectorClasses,
+            HeapAnalyzer.NO_MEMORY_BUDGET, pathFinderConfig, heapDump.indexingThreadCount);
 
     //开始分析堆内存信息
     AnalysisResult result = heapAnalyzer.checkForLeak(heapDump.heapDumpFile, heapDump.referenceKey,
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Benchmarks are regular tests that are skipped unless the leakcanary.benchmarks system property
+ * is true, eg with {@code ./gradlew :leakcanary:testDebugUnitTest -Dleakcanary.benchmarks=true}.
+ * They print their timings.
+ */
+final class Benchmarks {
+
+  private static final int WARM_UP_RUNS = 2;
+
+  static void assumeEnabled() {
+    assumeTrue("Benchmarks are disabled", Boolean.getBoolean("leakcanary.benchmarks"));
+  }
+
+  /** Returns the best time of a few runs, after warming up. */
+  static long bestTimeMs(int runs, Callable<?> task) throws Exception {
+    for (int i = 0; i < WARM_UP_RUNS; i++) {
+      task.call();
+    }
+    long bestTimeNanos = Long.MAX_VALUE;
+    for (int i = 0; i < runs; i++) {
+      long start = System.nanoTime();
+      task.call();
+      bestTimeNanos = Math.min(bestTimeNanos, System.nanoTime() - start);
+    }
+    return bestTimeNanos / 1_000_000;
+  }
+
+  static void report(String benchmark, String variant, long timeMs, long baselineTimeMs) {
+    System.out.printf("%s, %s: %d ms, %.2fx%n", benchmark, variant, timeMs,
+        (double) baselineTimeMs / Math.max(1, timeMs));
+  }
+
+  private Benchmarks() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressedHprofFileTest {
+
+  private static final int BLOCK_SIZE = 100;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void roundTrip() throws IOException {
+    for (int length : new int[] { 0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 10_000 }) {
+      byte[] content = content(length);
+      File file = write(content);
+      File compressedFile = folder.newFile();
+      CompressedHprofFile.compress(file, compressedFile, BLOCK_SIZE);
+      assertTrue(CompressedHprofFile.isCompressed(compressedFile));
+      File decompressedFile = folder.newFile();
+      CompressedHprofFile.decompress(compressedFile, decompressedFile);
+      assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()));
+    }
+  }
+
+  @Test public void compressInPlace() throws IOException {
+    File heapDumpFile = HprofIndexFileTest.heapDump(100).write(folder.newFile("dump.hprof"));
+    byte[] content = Files.readAllBytes(heapDumpFile.toPath());
+    assertFalse(CompressedHprofFile.isCompressed(heapDumpFile));
+    File indexFile = HprofIndexFile.indexFile(heapDumpFile);
+    assertTrue(indexFile.createNewFile());
+
+    CompressedHprofFile.compress(heapDumpFile);
+    assertTrue(CompressedHprofFile.isCompressed(heapDumpFile));
+    // The index was for the uncompressed file.
+    assertFalse(indexFile.exists());
+    byte[] compressed = Files.readAllBytes(heapDumpFile.toPath());
+    assertTrue(compressed.length < content.length);
+
+    // Already compressed.
+    CompressedHprofFile.compress(heapDumpFile);
+    assertArrayEquals(compressed, Files.readAllBytes(heapDumpFile.toPath()));
+
+    File decompressedFile = folder.newFile();
+    CompressedHprofFile.decompress(heapDumpFile, decompressedFile);
+    assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()));
+  }
+
+  @Test public void readsSpanningBlocks() throws IOException {
+    byte[] content = content(10 * BLOCK_SIZE + 7);
+    ByteBuffer expected = ByteBuffer.wrap(content);
+    File compressedFile = folder.newFile();
+    CompressedHprofFile.compress(write(content), compressedFile, BLOCK_SIZE);
+
+    // A single cached block, so that going back to a block inflates it again.
+    CompressedHprofBuffer buffer = new CompressedHprofBuffer(compressedFile, 1);
+    try {
+      assertEquals(content.length, buffer.remaining());
+      for (int position = BLOCK_SIZE - 8; position < content.length - 8; position += BLOCK_SIZE) {
+        for (int i = 0; i < 8; i++) {
+          buffer.setPosition(position + i);
+          assertEquals(expected.getLong(position + i), buffer.readLong());
+          buffer.setPosition(position + i);
+          assertEquals(expected.getInt(position + i), buffer.readInt());
+          buffer.setPosition(position + i);
+          assertEquals(expected.getShort(position + i), buffer.readShort());
+          assertEquals(position + i + 2, buffer.position());
+        }
+      }
+
+      // Reads backward, across several blocks at once, then up to the end.
+      buffer.setPosition(3 * BLOCK_SIZE + 50);
+      assertEquals(content[3 * BLOCK_SIZE + 50], buffer.readByte());
+      buffer.setPosition(BLOCK_SIZE / 2);
+      byte[] bytes = new byte[3 * BLOCK_SIZE];
+      buffer.read(bytes);
+      assertArrayEquals(slice(content, BLOCK_SIZE / 2, bytes.length), bytes);
+      buffer.setPosition(content.length - 3);
+      byte[] tail = new byte[3];
+      buffer.read(tail);
+      assertArrayEquals(slice(content, content.length - 3, 3), tail);
+      assertFalse(buffer.hasRemaining());
+    } finally {
+      buffer.close();
+    }
+  }
+
+  @Test public void corruptedBlockSize() throws IOException {
+    File compressedFile = folder.newFile();
+    CompressedHprofFile.compress(write(content(10 * BLOCK_SIZE)), compressedFile, BLOCK_SIZE);
+    byte[] compressed = Files.readAllBytes(compressedFile.toPath());
+
+    for (int blockSize : new int[] {
+        0, -1, CompressedHprofFile.MAX_BLOCK_SIZE + 1, Integer.MAX_VALUE, BLOCK_SIZE / 2
+    }) {
+      // The block size follows the magic and the version.
+      ByteBuffer.wrap(compressed).putInt(8, blockSize);
+      File corruptedFile = write(compressed);
+      try {
+        new CompressedHprofBuffer(corruptedFile).close();
+        fail("Expected an IOException for a block size of " + blockSize);
+      } catch (IOException expected) {
+        assertTrue(expected.getMessage(), expected.getMessage().startsWith("Corrupted"));
+      }
+    }
+  }
+
+  private File write(byte[] content) throws IOException {
+    File file = folder.newFile();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /** Half random, half zeroes, which compresses a bit like a heap dump. */
+  private static byte[] content(int length) {
+    byte[] content = new byte[length];
+    Random random = new Random(length);
+    for (int i = 0; i < length; i += 2) {
+      content[i] = (byte) random.nextInt();
+    }
+    return content;
+  }
+
+  private static byte[] slice(byte[] bytes, int offset, int length) {
+    byte[] slice = new byte[length];
+    System.arraycopy(bytes, offset, slice, 0, length);
+    return slice;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** {@link DominatorTree} against computing the dominators of a snapshot parsed by haha. */
+public class DominatorTreeBenchmark {
+
+  private static final int WIDTH = 200_000;
+  private static final int RUNS = 3;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void dominators() throws Exception {
+    Benchmarks.assumeEnabled();
+    final File heapDumpFile =
+        ShortestPathFinderTest.wideHeapDump(WIDTH).write(folder.newFile("dump.hprof"));
+
+    long hahaMs = Benchmarks.bestTimeMs(RUNS, new Callable<Snapshot>() {
+      @Override public Snapshot call() throws Exception {
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+        try {
+          Snapshot snapshot = new HprofParser(buffer).parse();
+          snapshot.computeDominators();
+          return snapshot;
+        } finally {
+          CompressedHprofFile.closeBuffer(buffer);
+        }
+      }
+    });
+    Benchmarks.report("dominators", "haha parse and computeDominators", hahaMs, hahaMs);
+
+    final HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      long indexMs = Benchmarks.bestTimeMs(RUNS, new Callable<DominatorTree>() {
+        @Override public DominatorTree call() {
+          return DominatorTree.compute(new HprofIndexer(buffer).index());
+        }
+      });
+      Benchmarks.report("dominators", "index and DominatorTree", indexMs, hahaMs);
+
+      final HprofIndex index = new HprofIndexer(buffer).index();
+      long treeMs = Benchmarks.bestTimeMs(RUNS, new Callable<DominatorTree>() {
+        @Override public DominatorTree call() {
+          return DominatorTree.compute(index);
+        }
+      });
+      Benchmarks.report("dominators", "DominatorTree of an existing index", treeMs, hahaMs);
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+}
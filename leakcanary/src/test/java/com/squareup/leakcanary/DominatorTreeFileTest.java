@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DominatorTreeFileTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void savedTreeMatchesComputedTree() throws IOException {
+    File heapDumpFile =
+        ShortestPathFinderTest.wideHeapDump(1000).write(folder.newFile("dump.hprof"));
+    HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      HprofIndex index = new HprofIndexer(buffer).index();
+      assertNull(DominatorTreeFile.read(heapDumpFile, index.objectCount()));
+      DominatorTree computed = DominatorTree.compute(index);
+      DominatorTreeFile.write(computed, heapDumpFile);
+
+      DominatorTree saved = DominatorTreeFile.read(heapDumpFile, index.objectCount());
+      assertNotNull(saved);
+      for (int i = 0; i < index.objectCount(); i++) {
+        assertEquals(computed.immediateDominator(i), saved.immediateDominator(i));
+        assertEquals(computed.pathReferrer(i), saved.pathReferrer(i));
+        assertEquals(computed.retainedSize(i), saved.retainedSize(i));
+      }
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+
+  @Test public void staleTreeIsDeleted() throws IOException {
+    File heapDumpFile =
+        ShortestPathFinderTest.wideHeapDump(1000).write(folder.newFile("dump.hprof"));
+    HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      HprofIndex index = new HprofIndexer(buffer).index();
+      DominatorTreeFile.write(DominatorTree.compute(index), heapDumpFile);
+      File dominatorsFile = DominatorTreeFile.dominatorsFile(heapDumpFile);
+      assertTrue(dominatorsFile.exists());
+
+      assertNull(DominatorTreeFile.read(heapDumpFile, index.objectCount() + 1));
+      assertFalse(dominatorsFile.exists());
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+}
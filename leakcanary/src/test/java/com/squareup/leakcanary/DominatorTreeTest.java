@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofWriter.field;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DominatorTreeTest {
+
+  /** Two references with 4 byte ids. */
+  private static final int NODE_SIZE = 8;
+  /** The key and the referent. */
+  private static final int REFERENCE_SIZE = 8;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private long root;
+  private long diamondLeft;
+  private long diamondRight;
+  private long diamondBottom;
+  private long diamondTail;
+  private long cycle1;
+  private long cycle2;
+  private long cycle3;
+  private long referenceRoot;
+  private long reference;
+  private long referenceKey;
+  private long referent;
+  private long unreachable;
+
+  private HprofBuffer buffer;
+  private HprofIndex index;
+  private DominatorTree tree;
+
+  /**
+   * <pre>
+   * root ─┬─ diamondLeft ──┬─ diamondBottom ── diamondTail ── unreachable
+   *       │                └─ cycle1 → cycle2 → cycle3 → cycle1
+   *       └─ diamondRight ─── diamondBottom
+   * referenceRoot ── reference ─┬─ key: referenceKey
+   *                             └─ referent: referent
+   * </pre>
+   */
+  @Before public void setUp() throws IOException {
+    HprofWriter hprof = new HprofWriter();
+    long nodeClass =
+        hprof.clazz("Node", hprof.objectClass(), field("left", OBJECT), field("right", OBJECT));
+    long referenceClass =
+        hprof.clazz("java.lang.ref.Reference", hprof.objectClass(), field("referent", OBJECT));
+    long weakReferenceClass = hprof.clazz("java.lang.ref.WeakReference", referenceClass);
+    long keyedReferenceClass = hprof.clazz("KeyedRef", weakReferenceClass, field("key", OBJECT));
+
+    diamondTail = hprof.instance(nodeClass, 0, 0);
+    unreachable = hprof.instance(nodeClass, diamondTail, 0);
+    diamondBottom = hprof.instance(nodeClass, diamondTail, 0);
+    cycle1 = hprof.newId();
+    cycle3 = hprof.instance(nodeClass, cycle1, 0);
+    cycle2 = hprof.instance(nodeClass, cycle3, 0);
+    hprof.instanceWithId(cycle1, nodeClass, cycle2, 0);
+    diamondLeft = hprof.instance(nodeClass, diamondBottom, cycle1);
+    diamondRight = hprof.instance(nodeClass, diamondBottom, 0);
+    root = hprof.instance(nodeClass, diamondLeft, diamondRight);
+    hprof.root(ROOT_JNI_GLOBAL, root);
+
+    referent = hprof.instance(nodeClass, 0, 0);
+    referenceKey = hprof.instance(nodeClass, 0, 0);
+    reference = hprof.instance(keyedReferenceClass, referenceKey, referent);
+    referenceRoot = hprof.instance(nodeClass, reference, 0);
+    hprof.root(ROOT_JNI_GLOBAL, referenceRoot);
+
+    buffer = CompressedHprofFile.openBuffer(hprof.write(folder.newFile("dump.hprof")));
+    index = new HprofIndexer(buffer).index();
+    tree = DominatorTree.compute(index);
+  }
+
+  @After public void tearDown() {
+    CompressedHprofFile.closeBuffer(buffer);
+  }
+
+  @Test public void immediateDominators() {
+    assertDominator(DominatorTree.GC_ROOTS, root);
+    assertDominator(root, diamondLeft);
+    assertDominator(root, diamondRight);
+    assertDominator(root, diamondBottom);
+    assertDominator(diamondBottom, diamondTail);
+    assertDominator(diamondLeft, cycle1);
+    assertDominator(cycle1, cycle2);
+    assertDominator(cycle2, cycle3);
+    assertDominator(DominatorTree.GC_ROOTS, referenceRoot);
+    assertDominator(referenceRoot, reference);
+    assertDominator(reference, referenceKey);
+    // Only weakly reachable.
+    assertDominator(DominatorTree.GC_ROOTS, referent);
+    assertDominator(DominatorTree.GC_ROOTS, unreachable);
+  }
+
+  @Test public void retainedSizes() {
+    assertEquals(NODE_SIZE, tree.retainedSize(index.objectIndex(diamondTail)));
+    assertEquals(2 * NODE_SIZE, tree.retainedSize(index.objectIndex(diamondBottom)));
+    assertEquals(NODE_SIZE, tree.retainedSize(index.objectIndex(diamondRight)));
+    assertEquals(NODE_SIZE, tree.retainedSize(index.objectIndex(cycle3)));
+    assertEquals(3 * NODE_SIZE, tree.retainedSize(index.objectIndex(cycle1)));
+    assertEquals(4 * NODE_SIZE, tree.retainedSize(index.objectIndex(diamondLeft)));
+    assertEquals(8 * NODE_SIZE, tree.retainedSize(index.objectIndex(root)));
+    assertEquals(REFERENCE_SIZE + NODE_SIZE, tree.retainedSize(index.objectIndex(reference)));
+    assertEquals(REFERENCE_SIZE + 2 * NODE_SIZE,
+        tree.retainedSize(index.objectIndex(referenceRoot)));
+    assertEquals(0, tree.retainedSize(index.objectIndex(referent)));
+    assertEquals(0, tree.retainedSize(index.objectIndex(unreachable)));
+  }
+
+  @Test public void retainedSetsMatchDominatorTree() {
+    assertSameRetainedSizes(index, tree);
+    int[] retained = RetainedSet.compute(index, index.objectIndex(diamondLeft), true).objects;
+    int[] expected = {
+        index.objectIndex(diamondLeft), index.objectIndex(cycle1), index.objectIndex(cycle2),
+        index.objectIndex(cycle3)
+    };
+    Arrays.sort(expected);
+    assertArrayEquals(expected, retained);
+  }
+
+  @Test public void randomGraphs() throws IOException {
+    Random random = new Random(42);
+    for (int graph = 0; graph < 20; graph++) {
+      HprofWriter hprof = new HprofWriter();
+      long nodeClass =
+          hprof.clazz("Node", hprof.objectClass(), field("left", OBJECT), field("right", OBJECT));
+      int nodeCount = 50 + random.nextInt(150);
+      long[] ids = new long[nodeCount];
+      for (int i = 0; i < nodeCount; i++) {
+        ids[i] = hprof.newId();
+      }
+      for (int i = 0; i < nodeCount; i++) {
+        // Mostly forward references so that the graph is deep, with a few back edges.
+        hprof.instanceWithId(ids[i], nodeClass, randomReference(random, ids, i),
+            randomReference(random, ids, i));
+      }
+      for (int i = 0; i < 3; i++) {
+        hprof.root(ROOT_JNI_GLOBAL, ids[random.nextInt(nodeCount)]);
+      }
+      File heapDumpFile = hprof.write(folder.newFile("random" + graph + ".hprof"));
+      HprofBuffer randomBuffer = CompressedHprofFile.openBuffer(heapDumpFile);
+      try {
+        HprofIndex randomIndex = new HprofIndexer(randomBuffer).index();
+        DominatorTree randomTree = DominatorTree.compute(randomIndex);
+        assertSameRetainedSizes(randomIndex, randomTree);
+        assertSameDominators(randomIndex, randomTree);
+      } finally {
+        CompressedHprofFile.closeBuffer(randomBuffer);
+      }
+    }
+  }
+
+  private static long randomReference(Random random, long[] ids, int from) {
+    int roll = random.nextInt(10);
+    if (roll < 2) {
+      return 0;
+    }
+    if (roll < 3) {
+      return ids[random.nextInt(ids.length)];
+    }
+    return from + 1 < ids.length ? ids[from + 1 + random.nextInt(ids.length - from - 1)] : 0;
+  }
+
+  private void assertDominator(long expected, long object) {
+    int expectedIndex =
+        expected == DominatorTree.GC_ROOTS ? DominatorTree.GC_ROOTS : index.objectIndex(expected);
+    assertEquals(expectedIndex, tree.immediateDominator(index.objectIndex(object)));
+  }
+
+  /**
+   * For the objects reachable from the gc roots. Unreachable objects retain nothing in a dominator
+   * tree, whereas a retained set is whatever they reference that isn't reachable otherwise.
+   */
+  private static void assertSameRetainedSizes(HprofIndex index, DominatorTree tree) {
+    BitSet reachable = reachable(index, tree);
+    for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+      assertEquals(index.describe(index.objectId(i)), tree.retainedSize(i),
+          RetainedSet.compute(index, i, false).retainedSize);
+    }
+  }
+
+  /**
+   * Checks the dominators of each object against the brute force definition: the objects whose
+   * retained set holds it, which are its ancestors in the dominator tree.
+   */
+  private static void assertSameDominators(HprofIndex index, DominatorTree tree) {
+    BitSet reachable = reachable(index, tree);
+    BitSet[] dominators = new BitSet[index.objectCount()];
+    for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+      dominators[i] = new BitSet(index.objectCount());
+    }
+    for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+      for (int retained : RetainedSet.compute(index, i, true).objects) {
+        if (retained != i) {
+          dominators[retained].set(i);
+        }
+      }
+    }
+    for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+      BitSet ancestors = new BitSet(index.objectCount());
+      for (int dominator = tree.immediateDominator(i); dominator != DominatorTree.GC_ROOTS;
+          dominator = tree.immediateDominator(dominator)) {
+        ancestors.set(dominator);
+      }
+      assertEquals(index.describe(index.objectId(i)), dominators[i], ancestors);
+    }
+  }
+
+  /** The gc roots and the objects that have a path referrer. */
+  private static BitSet reachable(HprofIndex index, DominatorTree tree) {
+    BitSet reachable = new BitSet(index.objectCount());
+    for (int i = 0; i < index.rootCount(); i++) {
+      int rootIndex = index.objectIndex(index.rootId(i));
+      if (rootIndex != -1) {
+        reachable.set(rootIndex);
+      }
+    }
+    for (int i = 0; i < index.objectCount(); i++) {
+      if (tree.pathReferrer(i) != DominatorTree.GC_ROOTS) {
+        reachable.set(i);
+      }
+    }
+    return reachable;
+  }
+}
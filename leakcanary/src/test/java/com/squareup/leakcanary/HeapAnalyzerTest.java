@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.BITMAP_RETAINED_SIZE;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.DOMINATORS;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.FIELD_DESCRIPTIONS;
+import static com.squareup.leakcanary.AnalysisResult.SkippedStep.SHORTEST_PATH;
+import static com.squareup.leakcanary.HprofIndexer.LONG;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_STICKY_CLASS;
+import static com.squareup.leakcanary.HprofWriter.field;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeapAnalyzerTest {
+
+  private static final long WATCH_START_NANO_TIME = 42;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<AnalyzerProgressListener.Step> steps = new ArrayList<>();
+  private final AnalyzerProgressListener listener = new AnalyzerProgressListener() {
+    @Override public void onProgressUpdate(Step step) {
+      steps.add(step);
+    }
+  };
+
+  @Test public void resultsFollowReferenceKeys() throws IOException {
+    File heapDumpFile = heapDump(true);
+    List<String> keys = asList("leak2", "missing", "cleared", "unreachable", "leak1");
+    Map<String, AnalysisResult> results =
+        analyzer(HeapAnalyzer.NO_MEMORY_BUDGET).checkForLeaks(heapDumpFile, keys, false);
+    assertEquals(keys, new ArrayList<>(results.keySet()));
+
+    assertLeak("Leaking", results.get("leak1"));
+    assertLeak("Leaking", results.get("leak2"));
+
+    AnalysisResult missing = results.get("missing");
+    assertFalse(missing.leakFound);
+    assertNotNull(missing.failure);
+
+    AnalysisResult cleared = results.get("cleared");
+    assertFalse(cleared.leakFound);
+    assertNull(cleared.failure);
+
+    AnalysisResult unreachable = results.get("unreachable");
+    assertFalse(unreachable.leakFound);
+    assertNull(unreachable.failure);
+    assertEquals("Leaking", unreachable.className);
+  }
+
+  @Test public void severalLeaksFromOneParse() throws IOException {
+    File heapDumpFile = heapDump(true);
+    Map<String, AnalysisResult> results =
+        analyzer(HeapAnalyzer.NO_MEMORY_BUDGET).checkForAllLeaks(heapDumpFile, true);
+    // Cleared references are left out, in heap dump order otherwise.
+    assertEquals(asList("leak1", "leak2", "deep", "unreachable", "Aa", "BB"),
+        new ArrayList<>(results.keySet()));
+    for (String key : asList("leak1", "leak2")) {
+      AnalysisResult result = results.get(key);
+      assertLeak("Leaking", result);
+      assertTrue(result.retainedHeapSize > 0);
+      assertTrue(result.skippedSteps.toString(), result.skippedSteps.isEmpty());
+    }
+    assertEquals(1, Collections.frequency(steps, AnalyzerProgressListener.Step.PARSING_HEAP_DUMP));
+    assertEquals(1,
+        Collections.frequency(steps, AnalyzerProgressListener.Step.FINDING_SHORTEST_PATH));
+    assertEquals(1,
+        Collections.frequency(steps, AnalyzerProgressListener.Step.COMPUTING_DOMINATORS));
+  }
+
+  @Test public void stepsAreSkippedOverMemoryBudget() throws IOException {
+    File heapDumpFile = heapDump(true);
+    Map<String, AnalysisResult> results =
+        analyzer(1).checkForLeaks(heapDumpFile, asList("leak1", "leak2"), true);
+    for (AnalysisResult result : results.values()) {
+      assertLeak("Leaking", result);
+      assertEquals(asList(DOMINATORS, BITMAP_RETAINED_SIZE, FIELD_DESCRIPTIONS),
+          result.skippedSteps);
+      assertEquals(AnalysisResult.RETAINED_HEAP_SKIPPED, result.retainedHeapSize);
+    }
+  }
+
+  @Test public void pathSearchLimits() throws IOException {
+    File heapDumpFile = heapDump(true);
+    HeapAnalyzer analyzer = analyzer(HeapAnalyzer.NO_MEMORY_BUDGET,
+        PathFinderConfig.builder().maxDepth(1).build());
+    Map<String, AnalysisResult> results =
+        analyzer.checkForLeaks(heapDumpFile, asList("leak1", "leak2", "deep"), false);
+
+    AnalysisResult leak1 = results.get("leak1");
+    assertLeak("Leaking", leak1);
+    assertTrue(leak1.skippedSteps.toString(), leak1.skippedSteps.isEmpty());
+
+    // The path through the excluded field is the best path found within the limit.
+    AnalysisResult leak2 = results.get("leak2");
+    assertLeak("Leaking", leak2);
+    assertTrue(leak2.excludedLeak);
+    assertEquals(asList(SHORTEST_PATH), leak2.skippedSteps);
+
+    AnalysisResult deep = results.get("deep");
+    assertFalse(deep.leakFound);
+    assertNotNull(deep.failure);
+  }
+
+  @Test public void keysWithTheSameHash() throws IOException {
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    File heapDumpFile = heapDump(true);
+    Map<String, AnalysisResult> results = analyzer(HeapAnalyzer.NO_MEMORY_BUDGET).checkForLeaks(
+        heapDumpFile, asList("BB", "Aa"), false);
+    assertLeak("First", results.get("Aa"));
+    assertLeak("Second", results.get("BB"));
+  }
+
+  @Test public void watchStartNanoTime() throws IOException {
+    List<TrackedReference> references =
+        analyzer(HeapAnalyzer.NO_MEMORY_BUDGET).findTrackedReferences(heapDump(true));
+    assertEquals(6, references.size());
+    for (TrackedReference reference : references) {
+      assertEquals(WATCH_START_NANO_TIME, reference.watchStartNanoTime);
+    }
+  }
+
+  @Test public void referencesDumpedWithoutWatchStartNanoTime() throws IOException {
+    File heapDumpFile = heapDump(false);
+    HeapAnalyzer analyzer = analyzer(HeapAnalyzer.NO_MEMORY_BUDGET);
+    for (TrackedReference reference : analyzer.findTrackedReferences(heapDumpFile)) {
+      assertEquals(KeyedWeakReferenceTable.UNKNOWN_WATCH_START, reference.watchStartNanoTime);
+    }
+    Map<String, AnalysisResult> results =
+        analyzer.checkForLeaks(heapDumpFile, asList("leak1", "Aa", "BB"), false);
+    assertLeak("Leaking", results.get("leak1"));
+    assertLeak("First", results.get("Aa"));
+    assertLeak("Second", results.get("BB"));
+  }
+
+  private HeapAnalyzer analyzer(long memoryBudgetBytes) {
+    return analyzer(memoryBudgetBytes, PathFinderConfig.DEFAULT);
+  }
+
+  private HeapAnalyzer analyzer(long memoryBudgetBytes, PathFinderConfig pathFinderConfig) {
+    ExcludedRefs excludedRefs = ExcludedRefs.builder().instanceField("Holder", "leaky").build();
+    return new HeapAnalyzer(excludedRefs, listener,
+        Collections.<Class<? extends Reachability.Inspector>>emptyList(), memoryBudgetBytes,
+        pathFinderConfig);
+  }
+
+  private static void assertLeak(String className, AnalysisResult result) {
+    assertNull(result.failure);
+    assertTrue(result.leakFound);
+    assertEquals(className, result.className);
+    assertNotNull(result.leakTrace);
+  }
+
+  /**
+   * Keyed weak references to instances held by a static field, one of them also through an
+   * excluded field and another one further away, to an instance that is not held, and to an
+   * instance that is gone. Two of the keys have the same hash.
+   *
+   * @param watchStartField whether the references have a watchStartNanoTime field, which older
+   * versions didn't have.
+   */
+  private File heapDump(boolean watchStartField) throws IOException {
+    HprofWriter hprof = new HprofWriter();
+    long referenceClass =
+        hprof.clazz("java.lang.ref.Reference", hprof.objectClass(), field("referent", OBJECT));
+    long weakReferenceClass = hprof.clazz("java.lang.ref.WeakReference", referenceClass);
+    long keyedWeakReferenceClass = watchStartField
+        ? hprof.clazz(KeyedWeakReference.class.getName(), weakReferenceClass,
+            field("key", OBJECT), field("name", OBJECT), field("watchStartNanoTime", LONG))
+        : hprof.clazz(KeyedWeakReference.class.getName(), weakReferenceClass,
+            field("key", OBJECT), field("name", OBJECT));
+    long leakingClass = hprof.clazz("Leaking", hprof.objectClass(), field("next", OBJECT));
+    long firstClass = hprof.clazz("First", hprof.objectClass());
+    long secondClass = hprof.clazz("Second", hprof.objectClass());
+    long registryClass = hprof.clazz("Registry", hprof.objectClass());
+    long holderClass = hprof.clazz("Holder", hprof.objectClass(), field("leaky", OBJECT));
+
+    long deep = hprof.instance(leakingClass, 0);
+    long leak2 = hprof.instance(leakingClass, deep);
+    long leak1 = hprof.instance(leakingClass, leak2);
+    long first = hprof.instance(firstClass);
+    long second = hprof.instance(secondClass);
+    hprof.staticField(registryClass, "leak1", leak1);
+    hprof.staticField(registryClass, "first", first);
+    hprof.staticField(registryClass, "second", second);
+    hprof.root(ROOT_STICKY_CLASS, registryClass);
+    hprof.root(ROOT_JNI_GLOBAL, hprof.instance(holderClass, leak2));
+
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "leak1", leak1);
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "leak2", leak2);
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "deep", deep);
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "cleared", 0);
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "unreachable",
+        hprof.instance(leakingClass, 0));
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "Aa", first);
+    keyedWeakReference(hprof, keyedWeakReferenceClass, watchStartField, "BB", second);
+    return hprof.write(folder.newFile("dump.hprof"));
+  }
+
+  private static void keyedWeakReference(HprofWriter hprof, long keyedWeakReferenceClass,
+      boolean watchStartField, String key, long referent) {
+    long keyId = hprof.string(key);
+    long nameId = hprof.string("name of " + key);
+    if (watchStartField) {
+      hprof.instance(keyedWeakReferenceClass, keyId, nameId, WATCH_START_NANO_TIME, referent);
+    } else {
+      hprof.instance(keyedWeakReferenceClass, keyId, nameId, referent);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.INT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_STICKY_CLASS;
+import static com.squareup.leakcanary.HprofWriter.field;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HprofIndexFileTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void savedIndexMatchesParsedIndex() throws IOException {
+    File heapDumpFile = heapDump(100).write(folder.newFile("dump.hprof"));
+
+    MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+    try {
+      HprofIndex parsed = HprofIndexFile.open(heapDumpFile, buffer);
+      File indexFile = HprofIndexFile.indexFile(heapDumpFile);
+      assertTrue(indexFile.exists());
+      long indexLength = indexFile.length();
+
+      HprofIndex saved = HprofIndexFile.open(heapDumpFile, buffer);
+      assertEquals(indexLength, indexFile.length());
+      assertSameIndex(parsed, saved);
+      HprofIndex.ClassInfo nodeClass = saved.findClass("Node");
+      assertEquals(100, saved.instancesOf(nodeClass).length);
+      long lastNode = saved.instancesOf(nodeClass)[0];
+      assertEquals("node 99", saved.asString(saved.referenceField(lastNode, "name")));
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+
+  @Test public void staleIndexIsRebuilt() throws IOException {
+    File heapDumpFile = heapDump(10).write(folder.newFile("dump.hprof"));
+    MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+    try {
+      HprofIndexFile.open(heapDumpFile, buffer);
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+
+    heapDump(20).write(heapDumpFile);
+    buffer = new MemoryMappedFileBuffer(heapDumpFile);
+    try {
+      HprofIndex index = HprofIndexFile.open(heapDumpFile, buffer);
+      assertEquals(20, index.instancesOf(index.findClass("Node")).length);
+      assertSameIndex(new HprofIndexer(buffer).index(), index);
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+
+  /** A linked list of nodes, each with a name. */
+  static HprofWriter heapDump(int nodeCount) {
+    HprofWriter hprof = new HprofWriter().segmentSize(256);
+    long nodeClass = hprof.clazz("Node", hprof.objectClass(), field("next", OBJECT),
+        field("name", OBJECT), field("index", INT));
+    long next = 0;
+    for (int i = nodeCount - 1; i >= 0; i--) {
+      next = hprof.instance(nodeClass, next, hprof.string("node " + i), i);
+    }
+    hprof.root(ROOT_STICKY_CLASS, nodeClass);
+    hprof.root(ROOT_JNI_GLOBAL, next);
+    return hprof;
+  }
+
+  static void assertSameIndex(HprofIndex expected, HprofIndex actual) {
+    assertEquals(expected.idSize, actual.idSize);
+    assertEquals(expected.objectCount(), actual.objectCount());
+    assertEquals(expected.classCount(), actual.classCount());
+    for (int i = 0; i < expected.objectCount(); i++) {
+      long id = expected.objectId(i);
+      assertEquals(id, actual.objectId(i));
+      assertEquals(i, actual.objectIndex(id));
+      assertEquals(expected.objectPosition(i), actual.objectPosition(i));
+      assertEquals(expected.tagAt(i), actual.tagAt(i));
+      HprofIndex.ClassInfo expectedClass = expected.classAt(i);
+      HprofIndex.ClassInfo actualClass = actual.classAt(i);
+      assertEquals(expectedClass == null ? null : expectedClass.name,
+          actualClass == null ? null : actualClass.name);
+    }
+    assertEquals(expected.rootCount(), actual.rootCount());
+    long[] expectedRoots = new long[expected.rootCount()];
+    long[] actualRoots = new long[actual.rootCount()];
+    for (int i = 0; i < expected.rootCount(); i++) {
+      expectedRoots[i] = expected.rootId(i);
+      actualRoots[i] = actual.rootId(i);
+      assertEquals(expected.rootType(i), actual.rootType(i));
+    }
+    assertArrayEquals(expectedRoots, actualRoots);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HprofIndexTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void decodesStringsOnce() throws IOException {
+    File heapDumpFile = HprofIndexFileTest.heapDump(200).write(folder.newFile("dump.hprof"));
+    HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      HprofIndex index = new HprofIndexer(buffer).index();
+      long[] nodes = index.instancesOf(index.findClass("Node"));
+      String[] names = new String[nodes.length];
+      for (int i = 0; i < nodes.length; i++) {
+        long nameId = index.referenceField(nodes[i], "name");
+        // Nodes are written from the last one.
+        names[i] = index.asString(nameId);
+        assertEquals("node " + (nodes.length - 1 - i), names[i]);
+        assertEquals(names[i].hashCode(), index.stringHash(nameId));
+      }
+      for (int i = 0; i < nodes.length; i++) {
+        assertSame(names[i], index.asString(index.referenceField(nodes[i], "name")));
+      }
+      assertArrayEquals(new String[] { "next", "name", "index" },
+          index.findClass("Node").fieldNames);
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Speedup of parsing heap dump segments on several threads. */
+public class HprofIndexerBenchmark {
+
+  private static final int NODE_COUNT = 300_000;
+  private static final int RUNS = 5;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void parallelIndexing() throws Exception {
+    Benchmarks.assumeEnabled();
+    File heapDumpFile = HprofIndexFileTest.heapDump(NODE_COUNT)
+        .segmentSize(64 * 1024)
+        .write(folder.newFile("dump.hprof"));
+    run("uncompressed", heapDumpFile);
+
+    File compressedFile = folder.newFile("compressed.hprof");
+    CompressedHprofFile.compress(heapDumpFile, compressedFile);
+    run("compressed", compressedFile);
+  }
+
+  private static void run(String variant, final File heapDumpFile) throws Exception {
+    final HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      long sequentialMs = Benchmarks.bestTimeMs(RUNS, new Callable<HprofIndex>() {
+        @Override public HprofIndex call() {
+          return new HprofIndexer(buffer).index();
+        }
+      });
+      Benchmarks.report("indexing " + variant, "1 thread", sequentialMs, sequentialMs);
+      int maxThreadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+      for (int threadCount = 2; threadCount <= maxThreadCount; threadCount *= 2) {
+        final int threads = threadCount;
+        long parallelMs = Benchmarks.bestTimeMs(RUNS, new Callable<HprofIndex>() {
+          @Override public HprofIndex call() {
+            return new HprofIndexer(heapDumpFile, buffer, threads).index();
+          }
+        });
+        Benchmarks.report("indexing " + variant, threads + " threads", parallelMs, sequentialMs);
+      }
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexFileTest.assertSameIndex;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HprofIndexerTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void parallelIndexMatchesSequentialIndex() throws IOException {
+    File heapDumpFile = HprofIndexFileTest.heapDump(1000).write(folder.newFile("dump.hprof"));
+    assertParallelIndexMatches(heapDumpFile);
+  }
+
+  @Test public void parallelIndexOfCompressedHeapDump() throws IOException {
+    File heapDumpFile = HprofIndexFileTest.heapDump(1000).write(folder.newFile("dump.hprof"));
+    File compressedFile = folder.newFile("compressed.hprof");
+    // Blocks smaller than the segments, so that segments span several blocks.
+    CompressedHprofFile.compress(heapDumpFile, compressedFile, 100);
+    assertParallelIndexMatches(compressedFile);
+  }
+
+  @Test public void moreThreadsThanSegments() throws IOException {
+    HprofWriter hprof = HprofIndexFileTest.heapDump(3).segmentSize(Integer.MAX_VALUE);
+    assertParallelIndexMatches(hprof.write(folder.newFile("dump.hprof")));
+  }
+
+  private static void assertParallelIndexMatches(File heapDumpFile) throws IOException {
+    HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      HprofIndex sequential = new HprofIndexer(buffer).index();
+      for (int threadCount = 2; threadCount <= 8; threadCount *= 2) {
+        HprofIndex parallel = new HprofIndexer(heapDumpFile, buffer, threadCount).index();
+        assertSameIndex(sequential, parallel);
+      }
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+}
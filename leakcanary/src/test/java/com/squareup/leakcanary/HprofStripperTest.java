@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.BYTE;
+import static com.squareup.leakcanary.HprofIndexer.INT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofWriter.field;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HprofStripperTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private long pixelsId;
+  private long nameId;
+
+  @Test public void zeroesPrimitiveArraysAndKeepsStrings() throws IOException {
+    File heapDumpFile = heapDump().write(folder.newFile("dump.hprof"));
+    File strippedFile = folder.newFile("stripped.hprof");
+    HprofStripper.strip(heapDumpFile, strippedFile);
+
+    // Same records, only the content of the pixels changed.
+    assertEquals(heapDumpFile.length(), strippedFile.length());
+    HprofBuffer buffer = CompressedHprofFile.openBuffer(strippedFile);
+    try {
+      HprofIndex index = new HprofIndexer(buffer).index();
+      assertEquals("bitmap", index.asString(nameId));
+      assertEquals(1000, index.arrayLength(pixelsId));
+      buffer.setPosition(index.arrayValuesPosition(pixelsId));
+      byte[] pixels = new byte[1000];
+      buffer.read(pixels);
+      assertArrayEquals(new byte[1000], pixels);
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+
+  @Test public void strippingTwiceChangesNothing() throws IOException {
+    File heapDumpFile = heapDump().write(folder.newFile("dump.hprof"));
+    HprofStripper.strip(heapDumpFile);
+    byte[] strippedOnce = Files.readAllBytes(heapDumpFile.toPath());
+    HprofStripper.strip(heapDumpFile);
+    assertArrayEquals(strippedOnce, Files.readAllBytes(heapDumpFile.toPath()));
+    assertFalse(new File(heapDumpFile.getPath() + ".tmp").exists());
+  }
+
+  @Test public void perflibReadsStrippedHeapDump() throws IOException {
+    File heapDumpFile = heapDump().write(folder.newFile("dump.hprof"));
+    HprofStripper.strip(heapDumpFile);
+    MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+    try {
+      Snapshot snapshot = new HprofParser(buffer).parse();
+      ArrayInstance pixels = (ArrayInstance) snapshot.findInstance(pixelsId);
+      assertEquals(1000, pixels.getValues().length);
+      for (Object value : pixels.getValues()) {
+        assertEquals((byte) 0, value);
+      }
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+
+  private HprofWriter heapDump() {
+    HprofWriter hprof = new HprofWriter();
+    long bitmapClass = hprof.clazz("android.graphics.Bitmap", hprof.objectClass(),
+        field("mBuffer", OBJECT), field("mName", OBJECT), field("mWidth", INT));
+    byte[] content = new byte[1000];
+    Arrays.fill(content, (byte) 0x5a);
+    pixelsId = hprof.primitiveArray(BYTE, content);
+    nameId = hprof.string("bitmap");
+    long bitmapId = hprof.instance(bitmapClass, pixelsId, nameId, 25);
+    hprof.root(ROOT_JNI_GLOBAL, bitmapId);
+    return hprof;
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.CHAR;
+import static com.squareup.leakcanary.HprofIndexer.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP_SEGMENT;
+import static com.squareup.leakcanary.HprofIndexer.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.INT;
+import static com.squareup.leakcanary.HprofIndexer.LOAD_CLASS;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JAVA_FRAME;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_THREAD_OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.STRING_IN_UTF8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes small heap dumps for tests, with 4 byte ids like Android. Objects are written in the order
+ * they are added, split in heap dump segments of about {@link #segmentSize(int)} bytes.
+ */
+final class HprofWriter {
+
+  static final class Field {
+    final String name;
+    final int type;
+
+    Field(String name, int type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  static Field field(String name, int type) {
+    return new Field(name, type);
+  }
+
+  private static final int ID_SIZE = 4;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final class ClassDef {
+    final long id;
+    final long superClassId;
+    final Field[] fields;
+    final List<Field> staticFields = new ArrayList<>();
+    final List<Long> staticValues = new ArrayList<>();
+
+    ClassDef(long id, long superClassId, Field[] fields) {
+      this.id = id;
+      this.superClassId = superClassId;
+      this.fields = fields;
+    }
+  }
+
+  private long nextId = 0x12c00000L;
+  private int segmentSize = 64 * 1024;
+  private final Map<String, Long> names = new LinkedHashMap<>();
+  private final Map<Long, Long> classNames = new LinkedHashMap<>();
+  private final Map<Long, ClassDef> classes = new LinkedHashMap<>();
+  /** Sub records in heap dump order, classes are only serialized once complete. */
+  private final List<Object> records = new ArrayList<>();
+  private long objectClassId;
+  private long stringClassId;
+
+  HprofWriter segmentSize(int segmentSize) {
+    this.segmentSize = segmentSize;
+    return this;
+  }
+
+  long newId() {
+    long id = nextId;
+    nextId += 16;
+    return id;
+  }
+
+  long objectClass() {
+    if (objectClassId == 0) {
+      objectClassId = clazz("java.lang.Object", 0);
+    }
+    return objectClassId;
+  }
+
+  long clazz(String name, long superClassId, Field... fields) {
+    long id = newId();
+    classNames.put(id, name(name));
+    for (Field field : fields) {
+      name(field.name);
+    }
+    ClassDef classDef = new ClassDef(id, superClassId, fields);
+    classes.put(id, classDef);
+    records.add(classDef);
+    return id;
+  }
+
+  /** Adds a static reference field to a class. */
+  void staticField(long classId, String name, long valueId) {
+    ClassDef classDef = classes.get(classId);
+    name(name);
+    classDef.staticFields.add(field(name, OBJECT));
+    classDef.staticValues.add(valueId);
+  }
+
+  /**
+   * @param values of the fields of the class, then of the fields of its super classes. References
+   * are ids, booleans are 0 or 1.
+   */
+  long instance(long classId, long... values) {
+    long id = newId();
+    instanceWithId(id, classId, values);
+    return id;
+  }
+
+  /** Writes an instance with an id from {@link #newId()}, so that it can be referenced first. */
+  void instanceWithId(long id, long classId, long... values) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      int i = 0;
+      for (ClassDef classDef = classes.get(classId); classDef != null;
+          classDef = classes.get(classDef.superClassId)) {
+        for (Field field : classDef.fields) {
+          writeValue(out, field.type, values[i++]);
+        }
+      }
+      if (i != values.length) {
+        throw new IllegalArgumentException("Expected " + i + " values, not " + values.length);
+      }
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      DataOutputStream recordOut = new DataOutputStream(record);
+      recordOut.writeByte(INSTANCE_DUMP);
+      writeId(recordOut, id);
+      recordOut.writeInt(0);
+      writeId(recordOut, classId);
+      recordOut.writeInt(bytes.size());
+      bytes.writeTo(recordOut);
+      records.add(record.toByteArray());
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  long objectArray(long arrayClassId, long... elements) {
+    long id = newId();
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(record);
+    try {
+      out.writeByte(OBJECT_ARRAY_DUMP);
+      writeId(out, id);
+      out.writeInt(0);
+      out.writeInt(elements.length);
+      writeId(out, arrayClassId);
+      for (long element : elements) {
+        writeId(out, element);
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    records.add(record.toByteArray());
+    return id;
+  }
+
+  /** @param content big endian values, its length must be a multiple of the type size. */
+  long primitiveArray(int type, byte[] content) {
+    long id = newId();
+    int size = HprofIndex.sizeOf(type, ID_SIZE);
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(record);
+    try {
+      out.writeByte(PRIMITIVE_ARRAY_DUMP);
+      writeId(out, id);
+      out.writeInt(0);
+      out.writeInt(content.length / size);
+      out.writeByte(type);
+      out.write(content);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    records.add(record.toByteArray());
+    return id;
+  }
+
+  long charArray(String value) {
+    byte[] content = new byte[value.length() * 2];
+    for (int i = 0; i < value.length(); i++) {
+      content[i * 2] = (byte) (value.charAt(i) >>> 8);
+      content[i * 2 + 1] = (byte) value.charAt(i);
+    }
+    return primitiveArray(CHAR, content);
+  }
+
+  /** A java.lang.String backed by a char array, like on Android before O. */
+  long string(String value) {
+    if (stringClassId == 0) {
+      stringClassId = clazz("java.lang.String", objectClass(), field("count", INT),
+          field("hash", INT), field("offset", INT), field("value", OBJECT));
+    }
+    long valueId = charArray(value);
+    return instance(stringClassId, value.length(), 0, 0, valueId);
+  }
+
+  void root(int tag, long id) {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(record);
+    try {
+      out.writeByte(tag);
+      writeId(out, id);
+      switch (tag) {
+        case ROOT_JNI_GLOBAL:
+          writeId(out, 0);
+          break;
+        case ROOT_JAVA_FRAME:
+          // Thread serial and frame number.
+          out.writeInt(1);
+          out.writeInt(0);
+          break;
+        case ROOT_THREAD_OBJECT:
+          throw new IllegalArgumentException("Use thread()");
+        default:
+          // Most roots only have an id, see HprofIndexer.readHeapDump().
+          break;
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    records.add(record.toByteArray());
+  }
+
+  void thread(long threadId, int threadSerial) {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(record);
+    try {
+      out.writeByte(ROOT_THREAD_OBJECT);
+      writeId(out, threadId);
+      out.writeInt(threadSerial);
+      out.writeInt(0);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    records.add(record.toByteArray());
+  }
+
+  File write(File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(toByteArray());
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  byte[] toByteArray() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write("JAVA PROFILE 1.0.3".getBytes(UTF_8));
+    out.writeByte(0);
+    out.writeInt(ID_SIZE);
+    out.writeLong(0);
+
+    for (Map.Entry<String, Long> name : names.entrySet()) {
+      byte[] utf8 = name.getKey().getBytes(UTF_8);
+      writeRecordHeader(out, STRING_IN_UTF8, ID_SIZE + utf8.length);
+      writeId(out, name.getValue());
+      out.write(utf8);
+    }
+    int classSerial = 1;
+    for (Map.Entry<Long, Long> className : classNames.entrySet()) {
+      writeRecordHeader(out, LOAD_CLASS, 4 + ID_SIZE + 4 + ID_SIZE);
+      out.writeInt(classSerial++);
+      writeId(out, className.getKey());
+      out.writeInt(0);
+      writeId(out, className.getValue());
+    }
+
+    ByteArrayOutputStream segment = new ByteArrayOutputStream();
+    for (Object record : records) {
+      byte[] recordBytes = record instanceof ClassDef ? classDump((ClassDef) record)
+          : (byte[]) record;
+      segment.write(recordBytes);
+      if (segment.size() >= segmentSize) {
+        writeSegment(out, segment);
+      }
+    }
+    if (segment.size() > 0) {
+      writeSegment(out, segment);
+    }
+    // HEAP_DUMP_END.
+    writeRecordHeader(out, 0x2c, 0);
+    return bytes.toByteArray();
+  }
+
+  private byte[] classDump(ClassDef classDef) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(record);
+    out.writeByte(CLASS_DUMP);
+    writeId(out, classDef.id);
+    out.writeInt(0);
+    writeId(out, classDef.superClassId);
+    // Class loader, signers, protection domain and two reserved ids.
+    for (int i = 0; i < 5; i++) {
+      writeId(out, 0);
+    }
+    int instanceSize = 0;
+    for (ClassDef c = classDef; c != null; c = classes.get(c.superClassId)) {
+      for (Field field : c.fields) {
+        instanceSize += HprofIndex.sizeOf(field.type, ID_SIZE);
+      }
+    }
+    out.writeInt(instanceSize);
+    // Constant pool.
+    out.writeShort(0);
+    out.writeShort(classDef.staticFields.size());
+    for (int i = 0; i < classDef.staticFields.size(); i++) {
+      Field field = classDef.staticFields.get(i);
+      writeId(out, names.get(field.name));
+      out.writeByte(field.type);
+      writeValue(out, field.type, classDef.staticValues.get(i));
+    }
+    out.writeShort(classDef.fields.length);
+    for (Field field : classDef.fields) {
+      writeId(out, names.get(field.name));
+      out.writeByte(field.type);
+    }
+    return record.toByteArray();
+  }
+
+  private long name(String name) {
+    Long id = names.get(name);
+    if (id == null) {
+      id = newId();
+      names.put(name, id);
+    }
+    return id;
+  }
+
+  private static void writeSegment(DataOutputStream out, ByteArrayOutputStream segment)
+      throws IOException {
+    writeRecordHeader(out, HEAP_DUMP_SEGMENT, segment.size());
+    segment.writeTo(out);
+    segment.reset();
+  }
+
+  private static void writeRecordHeader(DataOutputStream out, int tag, int length)
+      throws IOException {
+    out.writeByte(tag);
+    // Timestamp.
+    out.writeInt(0);
+    out.writeInt(length);
+  }
+
+  private static void writeValue(DataOutputStream out, int type, long value) throws IOException {
+    switch (HprofIndex.sizeOf(type, ID_SIZE)) {
+      case 1:
+        out.writeByte((int) value);
+        break;
+      case 2:
+        out.writeShort((int) value);
+        break;
+      case 4:
+        out.writeInt((int) value);
+        break;
+      case 8:
+        out.writeLong(value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown type " + type);
+    }
+  }
+
+  private static void writeId(DataOutputStream out, long id) throws IOException {
+    out.writeInt((int) id);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IdTableTest {
+
+  @Test public void growsPastExpectedSize() {
+    IdTable table = new IdTable(0);
+    int count = 100_000;
+    for (int i = 0; i < count; i++) {
+      // Aligned like heap addresses.
+      assertEquals(i, table.add(0x12c00000L + i * 8L, i * 3L));
+    }
+    assertEquals(count, table.size());
+    for (int i = 0; i < count; i++) {
+      long id = 0x12c00000L + i * 8L;
+      assertEquals(i, table.indexOf(id));
+      assertEquals(id, table.id(i));
+      assertEquals(i * 3L, table.value(i));
+    }
+    assertEquals(-1, table.indexOf(0x12c00000L + count * 8L));
+    assertEquals(-1, table.indexOf(0x12c00004L));
+  }
+
+  @Test public void addReplacesValue() {
+    IdTable table = new IdTable(4);
+    assertEquals(0, table.add(42, 1));
+    assertEquals(1, table.add(43, 2));
+    assertEquals(0, table.add(42, 3));
+    assertEquals(2, table.size());
+    assertEquals(3, table.value(0));
+    assertEquals(2, table.value(1));
+  }
+
+  @Test public void zeroAndMinusOneIds() {
+    IdTable table = new IdTable(4);
+    assertEquals(-1, table.indexOf(0));
+    assertEquals(-1, table.indexOf(-1));
+    assertEquals(0, table.add(-1, 10));
+    assertEquals(-1, table.indexOf(0));
+    assertEquals(1, table.add(0, 20));
+    assertEquals(0, table.indexOf(-1));
+    assertEquals(1, table.indexOf(0));
+    assertEquals(10, table.value(0));
+    assertEquals(20, table.value(1));
+    assertEquals(-1, table.indexOf(Long.MIN_VALUE));
+    assertEquals(-1, table.indexOf(Long.MAX_VALUE));
+  }
+
+  @Test public void sealKeepsEntries() {
+    IdTable table = new IdTable(1000);
+    for (int i = 0; i < 10; i++) {
+      table.add(i, -i);
+    }
+    table.seal();
+    assertEquals(10, table.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, table.indexOf(i));
+      assertEquals(-i, table.value(i));
+    }
+  }
+
+  @Test public void slotCountStaysUnderLoadFactor() {
+    assertEquals(32, IdTable.slotCount(0));
+    assertEquals(32, IdTable.slotCount(16));
+    assertEquals(1 << 21, IdTable.slotCount(1_000_000));
+    for (int size = 1; size < 1 << 28; size = size * 3 + 1) {
+      int slots = IdTable.slotCount(size);
+      assertEquals(1, Integer.bitCount(slots));
+      assertTrue(size <= slots - (slots >> 2));
+    }
+  }
+
+  @Test public void slotCountIsCapped() {
+    assertEquals(IdTable.MAX_SLOT_COUNT, IdTable.slotCount(1 << 29));
+    assertEquals(IdTable.MAX_SLOT_COUNT, IdTable.slotCount(1 << 30));
+    assertEquals(IdTable.MAX_SLOT_COUNT, IdTable.slotCount(Integer.MAX_VALUE));
+  }
+}
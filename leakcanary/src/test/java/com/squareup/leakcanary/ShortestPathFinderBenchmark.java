@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Speedup of reading the levels of a path search on several threads. */
+public class ShortestPathFinderBenchmark {
+
+  private static final int WIDTH = 400_000;
+  private static final int RUNS = 5;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void parallelSearch() throws Exception {
+    Benchmarks.assumeEnabled();
+    final File heapDumpFile =
+        ShortestPathFinderTest.wideHeapDump(WIDTH).write(folder.newFile("dump.hprof"));
+    HprofBuffer buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    try {
+      final HprofIndex index = new HprofIndexer(buffer).index();
+      final long[] targets = index.instancesOf(index.findClass("Target"));
+      final ExcludedRefs excludedRefs = ExcludedRefs.builder().build();
+      long sequentialMs = Benchmarks.bestTimeMs(RUNS, new Callable<Object>() {
+        @Override public Object call() {
+          return new ShortestPathFinder(excludedRefs).findPaths(index, targets);
+        }
+      });
+      Benchmarks.report("path search", "1 thread", sequentialMs, sequentialMs);
+      int maxThreadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+      for (int threadCount = 2; threadCount <= maxThreadCount; threadCount *= 2) {
+        final PathFinderConfig config = PathFinderConfig.builder().threadCount(threadCount).build();
+        long parallelMs = Benchmarks.bestTimeMs(RUNS, new Callable<Object>() {
+          @Override public Object call() {
+            return new ShortestPathFinder(excludedRefs, config, heapDumpFile).findPaths(index,
+                targets);
+          }
+        });
+        Benchmarks.report("path search", threadCount + " threads", parallelMs, sequentialMs);
+      }
+    } finally {
+      CompressedHprofFile.closeBuffer(buffer);
+    }
+  }
+}
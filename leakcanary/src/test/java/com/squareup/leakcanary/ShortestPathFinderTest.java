@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import static com.squareup.leakcanary.HprofIndexer.OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_STICKY_CLASS;
+import static com.squareup.leakcanary.HprofWriter.field;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShortestPathFinderTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExcludedRefs excludedRefs = ExcludedRefs.builder()
+      .instanceField("Holder", "leaky")
+      .build();
+  /** Reachable through a longer path without exclusions. */
+  private long shortcut;
+  /** Holds shortcut through both of its fields. */
+  private long shortPath;
+  /** Holds shortcut at the end of the longer path. */
+  private long longPathEnd;
+  /** Held by a static field. */
+  private long staticTarget;
+  /** Also held by an excluded field, through which it's closer. */
+  private long excludedShortcut;
+  /** Only held by an excluded field. */
+  private long excludedOnly;
+  /** Not reachable from a gc root. */
+  private long unreachable;
+  private long[] targets;
+
+  private File heapDumpFile;
+  private HprofBuffer buffer;
+  private HprofIndex index;
+
+  @Before public void setUp() throws IOException {
+    HprofWriter hprof = new HprofWriter();
+    long nodeClass =
+        hprof.clazz("Node", hprof.objectClass(), field("next", OBJECT), field("other", OBJECT));
+    long holderClass = hprof.clazz("Holder", hprof.objectClass(), field("leaky", OBJECT));
+    long registryClass = hprof.clazz("Registry", hprof.objectClass());
+
+    shortcut = hprof.instance(nodeClass, 0, 0);
+    staticTarget = hprof.instance(nodeClass, 0, 0);
+    excludedShortcut = hprof.instance(nodeClass, 0, 0);
+    excludedOnly = hprof.instance(nodeClass, 0, 0);
+    unreachable = hprof.instance(nodeClass, 0, 0);
+    targets = new long[] { shortcut, staticTarget, excludedShortcut, excludedOnly, unreachable };
+
+    longPathEnd = hprof.instance(nodeClass, shortcut, 0);
+    long longPath = hprof.instance(nodeClass, longPathEnd, 0);
+    shortPath = hprof.instance(nodeClass, shortcut, shortcut);
+    hprof.root(ROOT_JNI_GLOBAL, hprof.instance(nodeClass, longPath, shortPath));
+
+    hprof.staticField(registryClass, "INSTANCE", hprof.instance(nodeClass, staticTarget, 0));
+    hprof.root(ROOT_STICKY_CLASS, registryClass);
+
+    long chain = excludedShortcut;
+    for (int i = 0; i < 4; i++) {
+      chain = hprof.instance(nodeClass, chain, 0);
+    }
+    hprof.root(ROOT_JNI_GLOBAL, chain);
+    hprof.root(ROOT_JNI_GLOBAL, hprof.instance(holderClass, excludedShortcut));
+    hprof.root(ROOT_JNI_GLOBAL, hprof.instance(holderClass, excludedOnly));
+
+    heapDumpFile = hprof.write(folder.newFile("dump.hprof"));
+    buffer = CompressedHprofFile.openBuffer(heapDumpFile);
+    index = new HprofIndexer(buffer).index();
+  }
+
+  @After public void tearDown() {
+    CompressedHprofFile.closeBuffer(buffer);
+  }
+
+  @Test public void forwardPaths() {
+    List<String> shortcutPath = path(findPath(PathFinderConfig.DEFAULT, shortcut));
+    assertEquals(3, shortcutPath.size());
+    assertTrue(shortcutPath.get(1).contains("other"));
+
+    assertEquals(3, path(findPath(PathFinderConfig.DEFAULT, staticTarget)).size());
+
+    ShortestPathFinder.Result excludedShortcutResult =
+        findPath(PathFinderConfig.DEFAULT, excludedShortcut);
+    assertFalse(excludedShortcutResult.excludingKnownLeaks);
+    assertEquals(5, path(excludedShortcutResult).size());
+
+    ShortestPathFinder.Result excludedOnlyResult = findPath(PathFinderConfig.DEFAULT, excludedOnly);
+    assertTrue(excludedOnlyResult.excludingKnownLeaks);
+    assertEquals(2, path(excludedOnlyResult).size());
+
+    assertNull(findPath(PathFinderConfig.DEFAULT, unreachable).leakingNode);
+  }
+
+  @Test public void backwardPathsMatchForwardPaths() {
+    PathFinderConfig backward = PathFinderConfig.builder()
+        .direction(PathFinderConfig.Direction.FROM_LEAKING_INSTANCE)
+        .build();
+    for (long target : targets) {
+      assertEquals(describe(findPath(PathFinderConfig.DEFAULT, target)),
+          describe(findPath(backward, target)));
+    }
+  }
+
+  @Test public void multiTargetPathsMatchSingleTargetPaths() {
+    ShortestPathFinder.Result[] results =
+        new ShortestPathFinder(excludedRefs, PathFinderConfig.DEFAULT, heapDumpFile).findPaths(
+            index, targets);
+    assertEquals(targets.length, results.length);
+    for (int i = 0; i < targets.length; i++) {
+      assertEquals(describe(findPath(PathFinderConfig.DEFAULT, targets[i])),
+          describe(results[i]));
+    }
+  }
+
+  @Test public void findPathsReusesFinder() {
+    ShortestPathFinder finder =
+        new ShortestPathFinder(excludedRefs, PathFinderConfig.DEFAULT, heapDumpFile);
+    // In reverse order, so that the first search stops at a different point.
+    for (int i = targets.length - 1; i >= 0; i--) {
+      assertEquals(describe(findPath(PathFinderConfig.DEFAULT, targets[i])),
+          describe(finder.findPath(index, targets[i])));
+    }
+  }
+
+  @Test public void parallelAndSpilledPathsMatchSingleThreadPaths() throws IOException {
+    File wideHeapDumpFile = wideHeapDump(20_000).write(folder.newFile("wide.hprof"));
+    HprofBuffer wideBuffer = CompressedHprofFile.openBuffer(wideHeapDumpFile);
+    try {
+      HprofIndex wideIndex = new HprofIndexer(wideBuffer).index();
+      long[] wideTargets = wideIndex.instancesOf(wideIndex.findClass("Target"));
+      List<String> expected =
+          describe(findPaths(PathFinderConfig.DEFAULT, wideHeapDumpFile, wideIndex, wideTargets));
+      assertEquals(wideTargets.length, expected.size());
+
+      PathFinderConfig[] configs = {
+          PathFinderConfig.builder().threadCount(2).build(),
+          PathFinderConfig.builder().threadCount(4).build(),
+          PathFinderConfig.builder().maxNodesInMemory(1000).build(),
+          PathFinderConfig.builder().threadCount(4).maxNodesInMemory(1000).build(),
+      };
+      for (PathFinderConfig config : configs) {
+        assertEquals(expected,
+            describe(findPaths(config, wideHeapDumpFile, wideIndex, wideTargets)));
+      }
+    } finally {
+      CompressedHprofFile.closeBuffer(wideBuffer);
+    }
+  }
+
+  @Test public void staleSpillFileIsReplaced() throws IOException {
+    File spillFile = NodeSpillFile.spillFile(heapDumpFile);
+    FileOutputStream out = new FileOutputStream(spillFile);
+    try {
+      byte[] garbage = new byte[4096];
+      Arrays.fill(garbage, (byte) 0x55);
+      out.write(garbage);
+    } finally {
+      out.close();
+    }
+    PathFinderConfig spilled = PathFinderConfig.builder().maxNodesInMemory(1).build();
+    for (long target : targets) {
+      assertEquals(describe(findPath(PathFinderConfig.DEFAULT, target)),
+          describe(findPath(spilled, target)));
+      assertFalse(spillFile.exists());
+    }
+  }
+
+  @Test public void unitCostWeightedPathsMatchPaths() {
+    PathFinderConfig weighted = PathFinderConfig.builder().costModel(PathCostModel.UNIT).build();
+    for (long target : targets) {
+      assertEquals(describe(findPath(PathFinderConfig.DEFAULT, target)),
+          describe(findPath(weighted, target)));
+    }
+    assertEquals(describe(findPaths(PathFinderConfig.DEFAULT, heapDumpFile, index, targets)),
+        describe(findPaths(weighted, heapDumpFile, index, targets)));
+  }
+
+  @Test public void alternativePathsByCost() {
+    PathFinderConfig twoPaths = PathFinderConfig.builder().pathCount(2).build();
+    ShortestPathFinder.Result result = findPath(twoPaths, shortcut);
+    assertEquals(describe(findPath(PathFinderConfig.DEFAULT, shortcut)), describe(result));
+    assertEquals(shortPath, result.leakingNode.parent.instance);
+    assertEquals(1, result.alternativeLeakingNodes.size());
+    LeakNode alternative = result.alternativeLeakingNodes.get(0);
+    assertEquals(shortcut, alternative.instance);
+    assertEquals(longPathEnd, alternative.parent.instance);
+    assertEquals(4, depth(alternative));
+
+    // Only one path was found.
+    assertTrue(findPath(twoPaths, staticTarget).alternativeLeakingNodes.isEmpty());
+  }
+
+  @Test public void cheaperPathFromSameReferrerReplacesPath() {
+    PathFinderConfig twoPaths = PathFinderConfig.builder()
+        .costModel(fieldCosts("next", 5))
+        .pathCount(2)
+        .build();
+    ShortestPathFinder.Result result = findPath(twoPaths, shortcut);
+    // shortPath.next is found first, then replaced by shortPath.other.
+    assertEquals(shortPath, result.leakingNode.parent.instance);
+    assertEquals("other", result.leakingNode.leakReference.name);
+    assertEquals(1, result.alternativeLeakingNodes.size());
+    assertEquals(longPathEnd, result.alternativeLeakingNodes.get(0).parent.instance);
+  }
+
+  @Test public void excludedPathsCostMoreThanAnyOtherPath() {
+    // The path through Holder.leaky is found first, then evicted by the longer chain.
+    ShortestPathFinder.Result result =
+        findPath(PathFinderConfig.builder().pathCount(1).costModel(PathCostModel.UNIT).build(),
+            excludedShortcut);
+    assertFalse(result.excludingKnownLeaks);
+    assertEquals(5, path(result).size());
+    assertTrue(result.alternativeLeakingNodes.isEmpty());
+
+    result = findPath(PathFinderConfig.builder().pathCount(2).build(), excludedShortcut);
+    assertFalse(result.excludingKnownLeaks);
+    assertEquals(5, path(result).size());
+    assertEquals(1, result.alternativeLeakingNodes.size());
+    LeakNode excludedPath = result.alternativeLeakingNodes.get(0);
+    assertEquals("field Holder#leaky", excludedPath.exclusion.matching);
+    assertEquals(2, depth(excludedPath));
+
+    result = findPath(PathFinderConfig.builder().pathCount(2).build(), excludedOnly);
+    assertTrue(result.excludingKnownLeaks);
+    assertEquals(2, path(result).size());
+  }
+
+  @Test public void weightedSearchStopsOnceThePathsAreSettled() {
+    PathFinderConfig onePath = PathFinderConfig.builder().costModel(PathCostModel.UNIT).build();
+    PathFinderConfig twoPaths = PathFinderConfig.builder().pathCount(2).build();
+    int onePathVisited = visitedCount(findPath(onePath, shortcut));
+    int twoPathsVisited = visitedCount(findPath(twoPaths, shortcut));
+    int allVisited = visitedCount(findPath(onePath, unreachable));
+    assertTrue(onePathVisited + " < " + twoPathsVisited, onePathVisited < twoPathsVisited);
+    assertTrue(twoPathsVisited + " < " + allVisited, twoPathsVisited < allVisited);
+  }
+
+  @Test public void costModelChoosesPath() {
+    // Going through shortPath costs more than the three references of the longer path.
+    ShortestPathFinder.Result result = findPath(
+        PathFinderConfig.builder().costModel(fieldCosts("other", 10)).build(), shortcut);
+    assertEquals(longPathEnd, result.leakingNode.parent.instance);
+    assertEquals(4, path(result).size());
+    assertNull(result.limitReached);
+  }
+
+  @Test public void costModelIsAskedForRootAndReferenceCosts() {
+    final List<String> asked = new ArrayList<>();
+    PathCostModel recording = new PathCostModel() {
+      @Override public int rootCost(String rootType, String className) {
+        asked.add(rootType + " " + className);
+        return 1;
+      }
+
+      @Override public int referenceCost(LeakTraceElement.Type type, String holderClassName,
+          String referenceName) {
+        asked.add(type + " " + holderClassName + " " + referenceName);
+        return 1;
+      }
+    };
+    findPath(PathFinderConfig.builder().costModel(recording).build(), staticTarget);
+    assertTrue(asked.toString(), asked.contains("SYSTEM_CLASS Registry"));
+    assertTrue(asked.toString(), asked.contains("NATIVE_STATIC Node"));
+    assertTrue(asked.toString(), asked.contains("NATIVE_STATIC Holder"));
+    assertTrue(asked.toString(), asked.contains("STATIC_FIELD Registry INSTANCE"));
+    assertTrue(asked.toString(), asked.contains("INSTANCE_FIELD Node next"));
+    // Once per class and reference, even though many nodes are read.
+    assertEquals(asked.indexOf("INSTANCE_FIELD Node next"),
+        asked.lastIndexOf("INSTANCE_FIELD Node next"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rootCostAboveMaxCostIsRejected() {
+    PathCostModel tooExpensive = new PathCostModel() {
+      @Override public int rootCost(String rootType, String className) {
+        return MAX_COST + 1;
+      }
+
+      @Override public int referenceCost(LeakTraceElement.Type type, String holderClassName,
+          String referenceName) {
+        return 1;
+      }
+    };
+    findPath(PathFinderConfig.builder().costModel(tooExpensive).build(), shortcut);
+  }
+
+  @Test public void nodeLimit() {
+    PathFinderConfig fewNodes = PathFinderConfig.builder().maxNodes(10).build();
+    // The path through the excluded field is the best path found so far.
+    ShortestPathFinder.Result result = findPath(fewNodes, excludedShortcut);
+    assertTrue(result.excludingKnownLeaks);
+    assertEquals(ShortestPathFinder.Limit.NODE_COUNT, result.limitReached);
+    assertEquals(2, path(result).size());
+
+    for (long target : targets) {
+      assertEquals("no path NODE_COUNT",
+          describe(findPath(PathFinderConfig.builder().maxNodes(1).build(), target)));
+    }
+  }
+
+  @Test public void depthLimit() {
+    PathFinderConfig[] configs = {
+        PathFinderConfig.builder().maxDepth(3).build(),
+        PathFinderConfig.builder().maxDepth(3).pathCount(2).build(),
+    };
+    for (PathFinderConfig shallow : configs) {
+      // The path without exclusions is too deep.
+      ShortestPathFinder.Result result = findPath(shallow, excludedShortcut);
+      assertTrue(result.excludingKnownLeaks);
+      assertEquals(ShortestPathFinder.Limit.DEPTH, result.limitReached);
+      assertEquals(2, path(result).size());
+
+      // Found within the limit.
+      assertEquals(describe(findPath(PathFinderConfig.DEFAULT, shortcut)),
+          describe(findPath(shallow, shortcut)));
+    }
+
+    PathFinderConfig deepEnough = PathFinderConfig.builder().maxDepth(4).build();
+    assertEquals(describe(findPath(PathFinderConfig.DEFAULT, excludedShortcut)),
+        describe(findPath(deepEnough, excludedShortcut)));
+
+    assertEquals("no path DEPTH",
+        describe(findPath(PathFinderConfig.builder().maxDepth(1).build(), shortcut)));
+  }
+
+  @Test public void durationLimit() throws IOException {
+    File wideHeapDumpFile = wideHeapDump(100_000).write(folder.newFile("wide.hprof"));
+    HprofBuffer wideBuffer = CompressedHprofFile.openBuffer(wideHeapDumpFile);
+    try {
+      HprofIndex wideIndex = new HprofIndexer(wideBuffer).index();
+      long[] wideTargets = wideIndex.instancesOf(wideIndex.findClass("Target"));
+      ShortestPathFinder.Result[] results = findPaths(
+          PathFinderConfig.builder().maxDurationMs(1).build(), wideHeapDumpFile, wideIndex,
+          wideTargets);
+      int excludedPaths = 0;
+      for (ShortestPathFinder.Result result : results) {
+        if (result.leakingNode == null) {
+          assertEquals(ShortestPathFinder.Limit.DURATION, result.limitReached);
+        } else if (result.excludingKnownLeaks) {
+          // Held by Holder.leaky only, which is the best path found so far.
+          assertEquals(ShortestPathFinder.Limit.DURATION, result.limitReached);
+          excludedPaths++;
+        }
+      }
+      assertEquals(4, excludedPaths);
+    } finally {
+      CompressedHprofFile.closeBuffer(wideBuffer);
+    }
+  }
+
+  /**
+   * Three levels of nodes below an array held by a gc root, each level twice as small as the one
+   * above so that nodes have several referrers, and targets below them. The first levels are
+   * wide enough to be read in parallel. The last targets are only held by an excluded field, or
+   * not at all.
+   */
+  static HprofWriter wideHeapDump(int width) {
+    HprofWriter hprof = new HprofWriter().segmentSize(64 * 1024);
+    long nodeClass =
+        hprof.clazz("Node", hprof.objectClass(), field("next", OBJECT), field("other", OBJECT));
+    long targetClass = hprof.clazz("Target", hprof.objectClass());
+    long holderClass = hprof.clazz("Holder", hprof.objectClass(), field("leaky", OBJECT));
+    long arrayClass = hprof.clazz("Node[]", hprof.objectClass());
+
+    long[] targets = new long[50];
+    for (int i = 0; i < targets.length; i++) {
+      targets[i] = hprof.instance(targetClass);
+    }
+    long[] level3 = new long[width / 4];
+    for (int i = 0; i < level3.length; i++) {
+      // Spread over the level so that the targets are found at different points of the search.
+      long next = i % 97 == 0 ? targets[(i / 97) % (targets.length - 5)] : 0;
+      level3[i] = hprof.instance(nodeClass, next, 0);
+    }
+    long[] level2 = new long[width / 2];
+    for (int i = 0; i < level2.length; i++) {
+      level2[i] = hprof.instance(nodeClass, level3[i % level3.length],
+          level3[(i * 31) % level3.length]);
+    }
+    long[] level1 = new long[width];
+    for (int i = 0; i < level1.length; i++) {
+      level1[i] = hprof.instance(nodeClass, level2[i % level2.length],
+          level2[(i * 7 + 3) % level2.length]);
+    }
+    hprof.root(ROOT_JNI_GLOBAL, hprof.objectArray(arrayClass, level1));
+    for (int i = targets.length - 5; i < targets.length - 1; i++) {
+      hprof.root(ROOT_JNI_GLOBAL, hprof.instance(holderClass, targets[i]));
+    }
+    return hprof;
+  }
+
+  /** Costs 1 for every root and reference, except for the instance fields with that name. */
+  private static PathCostModel fieldCosts(final String fieldName, final int fieldCost) {
+    return new PathCostModel() {
+      @Override public int rootCost(String rootType, String className) {
+        return 1;
+      }
+
+      @Override public int referenceCost(LeakTraceElement.Type type, String holderClassName,
+          String referenceName) {
+        return fieldName.equals(referenceName) ? fieldCost : 1;
+      }
+    };
+  }
+
+  private static int depth(LeakNode node) {
+    int depth = 0;
+    for (; node != null; node = node.parent) {
+      depth++;
+    }
+    return depth;
+  }
+
+  private static int visitedCount(ShortestPathFinder.Result result) {
+    return Integer.parseInt(result.searchStats.substring(0, result.searchStats.indexOf(' ')));
+  }
+
+  private ShortestPathFinder.Result[] findPaths(PathFinderConfig config, File heapDumpFile,
+      HprofIndex index, long[] targets) {
+    return new ShortestPathFinder(excludedRefs, config, heapDumpFile).findPaths(index, targets);
+  }
+
+  private ShortestPathFinder.Result findPath(PathFinderConfig config, long target) {
+    return new ShortestPathFinder(excludedRefs, config, heapDumpFile).findPath(index, target);
+  }
+
+  /** The path from the gc root to the leaking instance, and whether it has exclusions. */
+  private String describe(ShortestPathFinder.Result result) {
+    if (result.leakingNode == null) {
+      // excludingKnownLeaks only tells how far the search went.
+      return "no path " + result.limitReached;
+    }
+    return result.excludingKnownLeaks + " " + result.limitReached + " " + path(result);
+  }
+
+  private List<String> describe(ShortestPathFinder.Result[] results) {
+    List<String> descriptions = new ArrayList<>();
+    for (ShortestPathFinder.Result result : results) {
+      descriptions.add(describe(result));
+    }
+    return descriptions;
+  }
+
+  private List<String> path(ShortestPathFinder.Result result) {
+    List<String> path = new ArrayList<>();
+    for (LeakNode node = result.leakingNode; node != null; node = node.parent) {
+      path.add(0, Long.toHexString(node.instance) + " " + node.leakReference + " "
+          + (node.exclusion == null ? "" : node.exclusion.name));
+    }
+    return path;
+  }
+}